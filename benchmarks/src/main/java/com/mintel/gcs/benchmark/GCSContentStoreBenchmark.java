@@ -0,0 +1,168 @@
+package com.mintel.gcs.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageOptions;
+import com.mintel.gcs.GCSContentStore;
+
+/**
+ * Benchmarks the hot paths of the GCS content store, reader and writer against an in-memory fake of GCS with configurable
+ * latency and bandwidth.
+ * <p>
+ * The metadata cache is disabled so that every probe reaches the fake. Run with
+ * <code>java -jar target/benchmarks.jar -p latencyMillis=20 -p bandwidthMBps=50</code> to change the simulated connection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class GCSContentStoreBenchmark
+{
+    private static final String BUCKET_NAME = "benchmark";
+    private static final String ROOT_DIR = "contentstore";
+
+    /**
+     * Latency added to every call to GCS
+     */
+    @Param("10")
+    public long latencyMillis;
+    /**
+     * Bandwidth of reads and writes, 0 for unlimited
+     */
+    @Param("100")
+    public long bandwidthMBps;
+    @Param("16384")
+    public int smallObjectSize;
+    @Param("33554432")
+    public int largeObjectSize;
+
+    private GCSContentStore store;
+    private byte[] smallContent;
+    private String smallContentUrl;
+    private String largeContentUrl;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        Storage storage = StorageOptions.newBuilder().setProjectId("benchmark")
+                .setServiceRpcFactory(new ThrottledStorageRpc.Factory(latencyMillis, bandwidthMBps * 1024 * 1024)).build().getService();
+        store = new GCSContentStore(storage, BUCKET_NAME, ROOT_DIR);
+        store.setMetadataCacheTtlSeconds(0);
+
+        Random random = new Random(42);
+        smallContent = new byte[smallObjectSize];
+        random.nextBytes(smallContent);
+        byte[] largeContent = new byte[largeObjectSize];
+        random.nextBytes(largeContent);
+
+        smallContentUrl = write(smallContent);
+        largeContentUrl = write(largeContent);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        store.shutdown();
+    }
+
+    @Benchmark
+    public long smallObjectRead() throws IOException
+    {
+        return read(smallContentUrl);
+    }
+
+    @Benchmark
+    public long largeObjectRead() throws IOException
+    {
+        return read(largeContentUrl);
+    }
+
+    @Benchmark
+    public boolean metadataProbe()
+    {
+        return store.exists(smallContentUrl);
+    }
+
+    @Benchmark
+    public long readerMetadataProbe()
+    {
+        return store.getReader(smallContentUrl).getSize();
+    }
+
+    @Benchmark
+    public String writeAndClose()
+    {
+        return write(smallContent);
+    }
+
+    @Benchmark
+    public boolean delete(Deletable deletable)
+    {
+        return store.delete(deletable.contentUrl);
+    }
+
+    @Benchmark
+    public String createNewUrl()
+    {
+        return GCSContentStore.createNewUrl();
+    }
+
+    /**
+     * Content written before each delete invocation, so its write isn't measured
+     */
+    @State(Scope.Thread)
+    public static class Deletable
+    {
+        private String contentUrl;
+
+        @Setup(Level.Invocation)
+        public void setUp(GCSContentStoreBenchmark benchmark)
+        {
+            contentUrl = benchmark.write(benchmark.smallContent);
+        }
+    }
+
+    private String write(byte[] content)
+    {
+        ContentWriter writer = store.getWriterInternal(null, null);
+        writer.putContent(new ByteArrayInputStream(content));
+        return writer.getContentUrl();
+    }
+
+    private long read(String contentUrl) throws IOException
+    {
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        try (InputStream is = store.getReader(contentUrl).getContentInputStream())
+        {
+            int read;
+            while ((read = is.read(buffer)) != -1)
+            {
+                total += read;
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,120 @@
+package com.mintel.gcs.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+import com.google.api.services.storage.model.Bucket;
+import com.google.cloud.ServiceRpc;
+import com.google.cloud.Tuple;
+import com.google.cloud.storage.StorageOptions;
+import com.google.cloud.storage.contrib.nio.testing.FakeStorageRpc;
+import com.google.cloud.storage.spi.StorageRpcFactory;
+import com.google.cloud.storage.spi.v1.StorageRpc;
+
+/**
+ * Wraps the in-memory GCS fake so every call pays a fixed latency and data transfers are limited to a bandwidth, to get
+ * numbers closer to a real bucket than a purely in-memory store would give.
+ * <p>
+ * The fake doesn't know about buckets, so any bucket asked for is reported as existing.
+ */
+public class ThrottledStorageRpc implements InvocationHandler
+{
+    private final StorageRpc delegate;
+    private final long latencyMillis;
+    private final long bytesPerSecond;
+
+    private ThrottledStorageRpc(StorageRpc delegate, long latencyMillis, long bytesPerSecond)
+    {
+        this.delegate = delegate;
+        this.latencyMillis = latencyMillis;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Creates a throttled in-memory GCS fake
+     *
+     * @param latencyMillis The latency added to every call
+     * @param bytesPerSecond The bandwidth of reads and writes, 0 for unlimited
+     * @return The storage RPC
+     */
+    public static StorageRpc create(long latencyMillis, long bytesPerSecond)
+    {
+        ThrottledStorageRpc handler = new ThrottledStorageRpc(new FakeStorageRpc(false), latencyMillis, bytesPerSecond);
+        return (StorageRpc) Proxy.newProxyInstance(StorageRpc.class.getClassLoader(), new Class<?>[] { StorageRpc.class }, handler);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+    {
+        if (method.getDeclaringClass() == Object.class)
+        {
+            return method.invoke(delegate, args);
+        }
+        if ("get".equals(method.getName()) && args[0] instanceof Bucket)
+        {
+            return new Bucket().setName(((Bucket) args[0]).getName());
+        }
+        sleep(latencyMillis);
+        Object result;
+        try
+        {
+            result = method.invoke(delegate, args);
+        }
+        catch (InvocationTargetException e)
+        {
+            throw e.getCause();
+        }
+        if ("read".equals(method.getName()) && result instanceof Tuple)
+        {
+            transfer(((byte[]) ((Tuple<?, ?>) result).y()).length);
+        }
+        else if ("write".equals(method.getName()) && args.length == 6)
+        {
+            transfer((Integer) args[4]);
+        }
+        return result;
+    }
+
+    /**
+     * Waits for the time it would take to move the bytes at the configured bandwidth
+     */
+    private void transfer(long bytes) throws InterruptedException
+    {
+        if (bytesPerSecond > 0)
+        {
+            sleep(TimeUnit.SECONDS.toMillis(bytes) / bytesPerSecond);
+        }
+    }
+
+    private static void sleep(long millis) throws InterruptedException
+    {
+        if (millis > 0)
+        {
+            Thread.sleep(millis);
+        }
+    }
+
+    /**
+     * Factory plugging the throttled fake into {@link StorageOptions}
+     */
+    public static class Factory implements StorageRpcFactory
+    {
+        private final long latencyMillis;
+        private final long bytesPerSecond;
+
+        public Factory(long latencyMillis, long bytesPerSecond)
+        {
+            this.latencyMillis = latencyMillis;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        @Override
+        public ServiceRpc create(StorageOptions options)
+        {
+            return ThrottledStorageRpc.create(latencyMillis, bytesPerSecond);
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package com.mintel.gcs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.cloud.BatchResult;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageBatch;
+import com.google.cloud.storage.StorageException;
+
+/**
+ * Deletes content in batches using the GCS batch endpoint instead of one HTTP call per content URL.
+ * <p>
+ * Content URLs are accumulated and sent in batches of up to {@link #MAX_BATCH_SIZE} deletes as soon as a batch is full, and the
+ * batches run concurrently on the store's delete executor. Finishing or closing the deleter sends the last batch and waits for all
+ * of them. As with {@link GCSContentStore#delete(String)}, content that didn't exist counts as deleted and content that couldn't
+ * be archived isn't deleted. A content URL that fails on its own, such as an invalid one or one whose metadata can't be read, is
+ * reported as not deleted without failing the rest of its batch. Instances are not thread safe.
+ * <p>
+ * When objects may be pointers to deduplicated content, see {@link GCSContentStore#isPointerLookup()}, their metadata is read
+ * first to find the references to release, from the metadata cache or with a batch request of its own. With archiving each
+ * content URL still costs an archive copy, made one after the other before the batch is sent.
+ */
+public class GCSBatchDeleter implements AutoCloseable
+{
+    private static final Log LOG = LogFactory.getLog(GCSBatchDeleter.class);
+    /**
+     * Maximum number of calls GCS accepts in a single batch request
+     */
+    public static final int MAX_BATCH_SIZE = 100;
+
+    private final GCSContentStore store;
+    private final Storage storage;
+    private final ExecutorService executor;
+    private List<String> batch = new ArrayList<>(MAX_BATCH_SIZE);
+    private final List<Future<?>> submitted = new ArrayList<>();
+    /**
+     * Whether each content URL was deleted, by content URL
+     */
+    private final Map<String, Boolean> results = new ConcurrentHashMap<>();
+
+    /**
+     * Initialises the batch deleter
+     *
+     * @param store The store the content is deleted from
+     * @param storage The storage of the store
+     * @param executor The executor the batches run on
+     */
+    protected GCSBatchDeleter(GCSContentStore store, Storage storage, ExecutorService executor)
+    {
+        this.store = store;
+        this.storage = storage;
+        this.executor = executor;
+    }
+
+    /**
+     * Queues the deletion of content, sending a batch if it is full
+     *
+     * @param contentUrl The content URL to delete
+     */
+    public void delete(String contentUrl)
+    {
+        batch.add(contentUrl);
+        if (batch.size() >= MAX_BATCH_SIZE)
+        {
+            flush();
+        }
+    }
+
+    /**
+     * Sends the queued deletes without waiting for them
+     */
+    public void flush()
+    {
+        if (batch.isEmpty())
+        {
+            return;
+        }
+        List<String> contentUrls = batch;
+        batch = new ArrayList<>(MAX_BATCH_SIZE);
+        submitted.add(executor.submit(() -> submit(contentUrls)));
+    }
+
+    /**
+     * Sends the queued deletes and waits for all the batches to finish
+     *
+     * @return Whether each content URL was deleted, by content URL
+     */
+    public Map<String, Boolean> finish()
+    {
+        flush();
+        try
+        {
+            for (Future<?> future : submitted)
+            {
+                future.get();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new ContentIOException("Interrupted while deleting content", e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new ContentIOException("Could not delete content", e.getCause());
+        }
+        finally
+        {
+            submitted.clear();
+        }
+        return results;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Same as {@link #finish()}.
+     */
+    @Override
+    public void close()
+    {
+        finish();
+    }
+
+    /**
+     * Sends a single batch request
+     */
+    private void submit(List<String> contentUrls)
+    {
+        Map<String, GCSMetadataCache.Metadata> metadata = store.isPointerLookup() ? getMetadata(contentUrls) : null;
+        StorageBatch storageBatch = storage.batch();
+        int deletes = 0;
+        // The shared objects of the deduplicated content deleted by the batch, released once it is sent
+        List<String> released = new ArrayList<>();
+        for (String contentUrl : contentUrls)
+        {
+            try
+            {
+                if (queue(storageBatch, contentUrl, metadata, released))
+                {
+                    deletes++;
+                }
+                else
+                {
+                    results.put(contentUrl, Boolean.FALSE);
+                }
+            }
+            catch (RuntimeException e)
+            {
+                // Only fails this content URL, the others are still deleted
+                LOG.warn("Could not delete " + contentUrl + ": " + e.getMessage());
+                results.put(contentUrl, Boolean.FALSE);
+            }
+        }
+        if (deletes == 0)
+        {
+            return;
+        }
+        GCSMetrics.Timer timer = store.getMetrics().start(GCSMetrics.Operation.DELETE);
+        try
+        {
+            storageBatch.submit();
+            timer.success(0);
+        }
+        catch (StorageException e)
+        {
+            timer.failure(e);
+            LOG.warn("Could not delete a batch of " + contentUrls.size() + " content URLs", e);
+            for (String contentUrl : contentUrls)
+            {
+                results.putIfAbsent(contentUrl, Boolean.FALSE);
+            }
+        }
+        for (String contentPath : released)
+        {
+            try
+            {
+                store.getDeduplicator().release(contentPath);
+            }
+            catch (RuntimeException e)
+            {
+                LOG.warn("Could not release the reference to " + contentPath + ": " + e.getMessage());
+            }
+        }
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("Deleted a batch of " + contentUrls.size() + " content URLs");
+        }
+    }
+
+    /**
+     * Adds the deletion of a content URL to a batch request, archiving it first if archiving is enabled
+     *
+     * @param storageBatch The batch request
+     * @param contentUrl The content URL to delete
+     * @param metadata The metadata of the objects by content URL, <code>null</code> if they can't be pointers to deduplicated content
+     * @param released The shared objects to release once the batch is sent, filled as the deletes succeed
+     * @return <code>true</code> if the deletion was added, <code>false</code> if the content can't be deleted
+     */
+    private boolean queue(StorageBatch storageBatch, String contentUrl, Map<String, GCSMetadataCache.Metadata> metadata, List<String> released)
+    {
+        String contentPath = null;
+        if (metadata != null)
+        {
+            GCSMetadataCache.Metadata objectMetadata = metadata.get(contentUrl);
+            if (objectMetadata == null)
+            {
+                // Deleting a pointer without releasing its reference would leak the shared object
+                return false;
+            }
+            contentPath = objectMetadata.getContentPath();
+        }
+        BlobId blobId = store.prepareDelete(contentUrl);
+        if (!store.archive(contentUrl, contentPath == null ? blobId : BlobId.of(store.getShardBucket(contentPath).getName(), contentPath)))
+        {
+            return false;
+        }
+        String releasedPath = contentPath;
+        storageBatch.delete(blobId).notify(new BatchResult.Callback<Boolean, StorageException>()
+        {
+            @Override
+            public void success(Boolean deleted)
+            {
+                results.put(contentUrl, Boolean.TRUE);
+                if (Boolean.TRUE.equals(deleted) && releasedPath != null)
+                {
+                    released.add(releasedPath);
+                }
+            }
+
+            @Override
+            public void error(StorageException e)
+            {
+                LOG.warn("Could not delete " + contentUrl + ": " + e.getMessage());
+                results.put(contentUrl, Boolean.FALSE);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Gets the metadata of the objects about to be deleted, from the metadata cache or with a single batch request for the others
+     *
+     * @param contentUrls The content URLs of a batch
+     * @return The metadata by content URL, without the content URLs whose metadata couldn't be read
+     */
+    private Map<String, GCSMetadataCache.Metadata> getMetadata(List<String> contentUrls)
+    {
+        // The callbacks run on this thread when the batch is submitted
+        Map<String, GCSMetadataCache.Metadata> metadata = new HashMap<>();
+        StorageBatch storageBatch = storage.batch();
+        int gets = 0;
+        for (String contentUrl : contentUrls)
+        {
+            String path;
+            try
+            {
+                path = store.getPath(contentUrl);
+            }
+            catch (RuntimeException e)
+            {
+                // Left out of the metadata, so it isn't deleted
+                continue;
+            }
+            GCSMetadataCache.Metadata cached = store.getMetadataCache().getIfPresent(path);
+            if (cached != null)
+            {
+                metadata.put(contentUrl, cached);
+                continue;
+            }
+            storageBatch.get(BlobId.of(store.getShardBucket(path).getName(), path), GCSContentStore.METADATA_FIELDS).notify(
+                    new BatchResult.Callback<Blob, StorageException>()
+                    {
+                        @Override
+                        public void success(Blob blob)
+                        {
+                            metadata.put(contentUrl, GCSMetadataCache.Metadata.of(blob));
+                        }
+
+                        @Override
+                        public void error(StorageException e)
+                        {
+                            LOG.warn("Could not read the metadata of " + contentUrl + ": " + e.getMessage());
+                        }
+                    });
+            gets++;
+        }
+        if (gets == 0)
+        {
+            return metadata;
+        }
+        GCSMetrics.Timer timer = store.getMetrics().start(GCSMetrics.Operation.METADATA_GET);
+        try
+        {
+            storageBatch.submit();
+            timer.success(0);
+        }
+        catch (StorageException e)
+        {
+            timer.failure(e);
+            LOG.warn("Could not read the metadata of a batch of " + gets + " content URLs", e);
+        }
+        return metadata;
+    }
+}
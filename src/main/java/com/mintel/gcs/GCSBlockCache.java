@@ -0,0 +1,473 @@
+package com.mintel.gcs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.cloud.storage.BlobId;
+import com.google.common.hash.Hashing;
+
+/**
+ * Read-through cache of fixed-size blocks of GCS objects on local disk.
+ * <p>
+ * Each block is a file named after the object, its generation, the block size and the block index, so only the parts of a large
+ * object that are actually read are downloaded and kept. Changing the block size leaves the blocks of the previous size unused
+ * until they are evicted. The index of the blocks is held in memory and the least recently used blocks are deleted
+ * once the cache goes over its maximum size. Concurrent reads of a block that isn't cached yet wait for a single download.
+ * <p>
+ * As blocks are keyed by generation they never go stale and don't need to be invalidated: the blocks of deleted or overwritten
+ * objects are simply never read again and age out. Objects whose generation isn't known are not cached. The index is rebuilt from
+ * the directory on startup so the cache survives restarts.
+ */
+public class GCSBlockCache
+{
+    private static final Log LOG = LogFactory.getLog(GCSBlockCache.class);
+    private static final String TEMP_SUFFIX = ".tmp";
+    /**
+     * Returned by {@link #readFromFile(String, int, ByteBuffer)} when the block isn't cached
+     */
+    private static final int NOT_CACHED = -2;
+    private static final Pattern BLOCK_NAME = Pattern.compile("[0-9a-f]{64}\\.[0-9]+");
+
+    private final File directory;
+    private final int blockSize;
+    private final long maxSize;
+    /**
+     * The length of each cached block by file name, in access order
+     */
+    private final Map<String, Long> blocks = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * The total length of the cached blocks
+     */
+    private long size = 0;
+    /**
+     * Blocks being downloaded, by file name
+     */
+    private final ConcurrentMap<String, CompletableFuture<ByteBuffer>> loading = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Loads a block from GCS
+     */
+    @FunctionalInterface
+    public interface BlockLoader
+    {
+        /**
+         * @return The block, positioned at 0
+         * @throws IOException If the block couldn't be read
+         */
+        ByteBuffer load() throws IOException;
+    }
+
+    /**
+     * Initialises the block cache, indexing the blocks already in the directory
+     *
+     * @param directory The directory the blocks are stored in, which should be on a local disk and only used by this cache
+     * @param blockSize The size of each block
+     * @param maxSize The maximum total size of the blocks
+     * @throws IOException If the directory can't be created
+     */
+    public GCSBlockCache(File directory, int blockSize, long maxSize) throws IOException
+    {
+        this.directory = directory;
+        this.blockSize = blockSize;
+        this.maxSize = maxSize;
+        Files.createDirectories(directory.toPath());
+        File[] files = directory.listFiles();
+        if (files != null)
+        {
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+            for (File file : files)
+            {
+                if (BLOCK_NAME.matcher(file.getName()).matches())
+                {
+                    blocks.put(file.getName(), file.length());
+                    size += file.length();
+                }
+                else if (file.getName().endsWith(TEMP_SUFFIX))
+                {
+                    // Left over by a download that didn't complete
+                    Files.deleteIfExists(file.toPath());
+                }
+            }
+        }
+        evict();
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("Block cache in " + directory + " holds " + blocks.size() + " blocks, " + size + " bytes");
+        }
+    }
+
+    /**
+     * Gets a block of an object from the cache, downloading it if it isn't there
+     *
+     * @param blobId The object, including its generation
+     * @param index The index of the block in the object
+     * @param loader Downloads the block
+     * @return The block, positioned at 0
+     * @throws IOException If the block couldn't be downloaded
+     */
+    public ByteBuffer get(BlobId blobId, long index, BlockLoader loader) throws IOException
+    {
+        if (blobId.getGeneration() == null)
+        {
+            misses.incrementAndGet();
+            return loader.load();
+        }
+        String name = getName(blobId, index);
+        ByteBuffer block = readBlock(name);
+        if (block != null)
+        {
+            hits.incrementAndGet();
+            return block;
+        }
+        CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
+        CompletableFuture<ByteBuffer> download = loading.putIfAbsent(name, future);
+        if (download != null)
+        {
+            coalesced.incrementAndGet();
+            return await(download).duplicate();
+        }
+        try
+        {
+            // It may have been written between the first look and the registration of the download
+            block = readBlock(name);
+            if (block != null)
+            {
+                hits.incrementAndGet();
+            }
+            else
+            {
+                misses.incrementAndGet();
+                block = loader.load();
+                writeBlock(name, block.duplicate());
+            }
+            future.complete(block);
+            return block.duplicate();
+        }
+        catch (IOException | RuntimeException e)
+        {
+            future.completeExceptionally(e);
+            throw e;
+        }
+        finally
+        {
+            loading.remove(name);
+        }
+    }
+
+    /**
+     * Reads part of a block of an object into a buffer, downloading the block if it isn't cached. Cached blocks are read straight
+     * from their file into the buffer, without being copied to the heap first.
+     *
+     * @param blobId The object, including its generation
+     * @param index The index of the block in the object
+     * @param offset The offset in the block to read from
+     * @param dst The buffer to read into, up to its remaining bytes or the end of the block
+     * @param loader Downloads the block
+     * @return The number of bytes read, or -1 if the offset is at or past the end of the block
+     * @throws IOException If the block couldn't be downloaded
+     */
+    public int read(BlobId blobId, long index, int offset, ByteBuffer dst, BlockLoader loader) throws IOException
+    {
+        if (blobId.getGeneration() != null)
+        {
+            int read = readFromFile(getName(blobId, index), offset, dst);
+            if (read != NOT_CACHED)
+            {
+                hits.incrementAndGet();
+                return read;
+            }
+        }
+        ByteBuffer block = get(blobId, index, loader);
+        if (offset >= block.remaining())
+        {
+            return -1;
+        }
+        block.position(offset);
+        int count = Math.min(dst.remaining(), block.remaining());
+        block.limit(offset + count);
+        dst.put(block);
+        return count;
+    }
+
+    /**
+     * Reads part of a cached block from its file
+     *
+     * @return The number of bytes read, -1 if the offset is past the end of the block, or {@link #NOT_CACHED}
+     */
+    private int readFromFile(String name, int offset, ByteBuffer dst) throws IOException
+    {
+        Long length;
+        synchronized (blocks)
+        {
+            length = blocks.get(name);
+        }
+        if (length == null)
+        {
+            return NOT_CACHED;
+        }
+        if (offset >= length)
+        {
+            return -1;
+        }
+        // Only moves the position of the destination once the read is complete
+        ByteBuffer target = dst.duplicate();
+        target.limit(target.position() + (int) Math.min(dst.remaining(), length - offset));
+        int count = target.remaining();
+        try (FileChannel channel = FileChannel.open(new File(directory, name).toPath(), StandardOpenOption.READ))
+        {
+            while (target.hasRemaining())
+            {
+                if (channel.read(target, offset + count - target.remaining()) < 0)
+                {
+                    LOG.warn("Block " + name + " is truncated, it will be downloaded again");
+                    remove(name);
+                    return NOT_CACHED;
+                }
+            }
+        }
+        catch (NoSuchFileException e)
+        {
+            // Evicted while we were looking it up
+            remove(name);
+            return NOT_CACHED;
+        }
+        dst.position(target.position());
+        return count;
+    }
+
+    /**
+     * Waits for a block being downloaded by another reader
+     */
+    private static ByteBuffer await(CompletableFuture<ByteBuffer> download) throws IOException
+    {
+        try
+        {
+            return download.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a block");
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException("Could not download a block", e.getCause());
+        }
+    }
+
+    /**
+     * Reads a cached block
+     *
+     * @return The block or <code>null</code> if it isn't cached
+     */
+    private ByteBuffer readBlock(String name) throws IOException
+    {
+        Long length;
+        synchronized (blocks)
+        {
+            length = blocks.get(name);
+        }
+        if (length == null)
+        {
+            return null;
+        }
+        ByteBuffer block = ByteBuffer.allocate(length.intValue());
+        try (FileChannel channel = FileChannel.open(new File(directory, name).toPath(), StandardOpenOption.READ))
+        {
+            while (block.hasRemaining() && channel.read(block) >= 0)
+            {
+                // Keep reading until the block is full
+            }
+        }
+        catch (NoSuchFileException e)
+        {
+            // Evicted while we were looking it up
+            remove(name);
+            return null;
+        }
+        if (block.hasRemaining())
+        {
+            LOG.warn("Block " + name + " is truncated, it will be downloaded again");
+            remove(name);
+            return null;
+        }
+        block.flip();
+        return block;
+    }
+
+    /**
+     * Writes a downloaded block to disk and indexes it
+     */
+    private void writeBlock(String name, ByteBuffer block)
+    {
+        long length = block.remaining();
+        if (length > maxSize)
+        {
+            return;
+        }
+        File temp = new File(directory, name + TEMP_SUFFIX);
+        try
+        {
+            try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+            {
+                while (block.hasRemaining())
+                {
+                    channel.write(block);
+                }
+            }
+            Files.move(temp.toPath(), new File(directory, name).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (IOException e)
+        {
+            // The block was downloaded, so the read can go on without caching it
+            LOG.warn("Could not cache block " + name + ": " + e.getMessage());
+            temp.delete();
+            return;
+        }
+        synchronized (blocks)
+        {
+            Long previous = blocks.put(name, length);
+            size += length - (previous == null ? 0 : previous);
+        }
+        evict();
+    }
+
+    /**
+     * Deletes the least recently used blocks until the cache is within its maximum size
+     */
+    private void evict()
+    {
+        List<String> evicted = new ArrayList<>();
+        synchronized (blocks)
+        {
+            Iterator<Map.Entry<String, Long>> it = blocks.entrySet().iterator();
+            while (size > maxSize && it.hasNext())
+            {
+                Map.Entry<String, Long> eldest = it.next();
+                size -= eldest.getValue();
+                evicted.add(eldest.getKey());
+                it.remove();
+            }
+        }
+        for (String name : evicted)
+        {
+            new File(directory, name).delete();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Forgets a block whose file has gone
+     */
+    private void remove(String name)
+    {
+        synchronized (blocks)
+        {
+            Long length = blocks.remove(name);
+            if (length != null)
+            {
+                size -= length;
+            }
+        }
+    }
+
+    /**
+     * Gets the file name of a block. It includes the block size, so blocks cached with another size are never read back as blocks
+     * of this size.
+     */
+    private String getName(BlobId blobId, long index)
+    {
+        String key = blobId.getBucket() + "/" + blobId.getName() + "#" + blobId.getGeneration() + "@" + blockSize;
+        return Hashing.sha256().hashString(key, StandardCharsets.UTF_8).toString() + "." + index;
+    }
+
+    /**
+     * @return The size of each block
+     */
+    public int getBlockSize()
+    {
+        return blockSize;
+    }
+
+    /**
+     * @return The total size of the cached blocks
+     */
+    public long getSize()
+    {
+        synchronized (blocks)
+        {
+            return size;
+        }
+    }
+
+    /**
+     * @return The number of cached blocks
+     */
+    public int getBlockCount()
+    {
+        synchronized (blocks)
+        {
+            return blocks.size();
+        }
+    }
+
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+
+    /**
+     * @return The number of reads that waited for a download started by another reader
+     */
+    public long getCoalescedCount()
+    {
+        return coalesced.get();
+    }
+
+    public long getEvictionCount()
+    {
+        return evictions.get();
+    }
+}
@@ -0,0 +1,157 @@
+package com.mintel.gcs;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Spreads new content across several buckets, so the write rate isn't limited by what a single bucket can take.
+ * <p>
+ * The bucket of a content URL is derived from the GUID of its path with rendezvous (highest random weight) hashing, so nothing
+ * needs to be stored to find it again: reads, deletes and writes of the same content URL always resolve to the same bucket,
+ * on every node. Paths are unchanged, each bucket holds the usual <code>yyyy/MM/dd/HH/mm/guid.bin</code> layout.
+ * <p>
+ * The list of buckets is versioned by the creation time of the content URLs, which is part of their path: each content URL is
+ * spread across the list in use when it was created. Adding buckets from a given time on only spreads content created from then
+ * on across them, existing content stays where it was written. Paths outside of that layout, such as the shared objects of
+ * deduplicated content, and content URLs created before the first list stay in the primary bucket, the first one of every list.
+ * The latter lets sharding be enabled on a store that already holds content.
+ */
+public class GCSBucketShards
+{
+    /**
+     * The date, time and GUID of the paths of content URLs created by {@link GCSContentStore#createNewUrl()}
+     */
+    private static final Pattern LAYOUT = Pattern.compile("^(\\d{4}/\\d{2}/\\d{2}/\\d{2}/\\d{2})/([^/]+)$");
+    /**
+     * The times lists of buckets are used from, compared with the date and time of the paths as strings
+     */
+    private static final Pattern SINCE = Pattern.compile("^\\d{4}/\\d{2}/\\d{2}/\\d{2}/\\d{2}$");
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    /**
+     * The buckets content is spread across by the time they are used from
+     */
+    private final NavigableMap<String, List<String>> bucketNamesSince = new TreeMap<>();
+    private final String primaryBucketName;
+    private final String rootDir;
+
+    /**
+     * Initialises the shards with a single list of buckets
+     *
+     * @param bucketNames The buckets content is spread across, the primary bucket first
+     * @param rootDir The root directory of the store in the buckets
+     * @param since Content URLs created before this time, as <code>yyyy/MM/dd/HH/mm</code> in the local time zone like the
+     *            content URLs, stay in the primary bucket. Empty to spread all content.
+     */
+    public GCSBucketShards(List<String> bucketNames, String rootDir, String since)
+    {
+        this(Collections.singletonMap(StringUtils.trimToEmpty(since), bucketNames), rootDir);
+    }
+
+    /**
+     * Initialises the shards with the lists of buckets used over time
+     *
+     * @param bucketNamesSince The buckets content is spread across by the time they are used from, as <code>yyyy/MM/dd/HH/mm</code>
+     *            in the local time zone like the content URLs, empty for all content. Each list starts with the primary bucket.
+     * @param rootDir The root directory of the store in the buckets
+     * @throws IllegalArgumentException If a time isn't in the <code>yyyy/MM/dd/HH/mm</code> format or a list doesn't start with the
+     *             primary bucket
+     */
+    public GCSBucketShards(Map<String, List<String>> bucketNamesSince, String rootDir)
+    {
+        if (bucketNamesSince.isEmpty())
+        {
+            throw new IllegalArgumentException("At least one list of buckets is needed");
+        }
+        String primary = null;
+        for (Map.Entry<String, List<String>> entry : bucketNamesSince.entrySet())
+        {
+            String since = StringUtils.trimToEmpty(entry.getKey());
+            if (!since.isEmpty() && !SINCE.matcher(since).matches())
+            {
+                // Compared as a string, any other format would route content to the wrong bucket
+                throw new IllegalArgumentException("The time buckets are used from must be yyyy/MM/dd/HH/mm: " + since);
+            }
+            List<String> bucketNames = entry.getValue();
+            if (bucketNames.isEmpty())
+            {
+                throw new IllegalArgumentException("At least one bucket is needed since " + entry.getKey());
+            }
+            if (primary != null && !primary.equals(bucketNames.get(0)))
+            {
+                throw new IllegalArgumentException("The buckets since " + entry.getKey() + " don't start with the primary bucket " + primary);
+            }
+            primary = bucketNames.get(0);
+            this.bucketNamesSince.put(since, Collections.unmodifiableList(new ArrayList<>(bucketNames)));
+        }
+        this.primaryBucketName = primary;
+        this.rootDir = rootDir;
+    }
+
+    /**
+     * Gets the bucket of an object
+     *
+     * @param path The path of the object, including the root directory
+     * @return The name of the bucket
+     */
+    public String getBucketName(String path)
+    {
+        String relativePath = path;
+        if (StringUtils.isNotBlank(rootDir) && path.startsWith(rootDir + "/"))
+        {
+            relativePath = path.substring(rootDir.length() + 1);
+        }
+        Matcher matcher = LAYOUT.matcher(relativePath);
+        if (!matcher.matches())
+        {
+            return primaryBucketName;
+        }
+        Map.Entry<String, List<String>> since = bucketNamesSince.floorEntry(matcher.group(1));
+        if (since == null || since.getValue().size() == 1)
+        {
+            return primaryBucketName;
+        }
+        String guid = matcher.group(2);
+        String selected = null;
+        long selectedWeight = Long.MIN_VALUE;
+        for (String bucketName : since.getValue())
+        {
+            long weight = HASH.newHasher().putString(bucketName, StandardCharsets.UTF_8).putByte((byte) 0).putString(guid, StandardCharsets.UTF_8)
+                    .hash().asLong();
+            if (selected == null || weight > selectedWeight)
+            {
+                selected = bucketName;
+                selectedWeight = weight;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * @return All the buckets content is spread across over time, the primary bucket first
+     */
+    public List<String> getBucketNames()
+    {
+        Set<String> bucketNames = new LinkedHashSet<>();
+        bucketNames.add(primaryBucketName);
+        for (List<String> since : bucketNamesSince.values())
+        {
+            bucketNames.addAll(since);
+        }
+        return new ArrayList<>(bucketNames);
+    }
+}
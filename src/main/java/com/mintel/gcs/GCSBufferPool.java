@@ -0,0 +1,65 @@
+package com.mintel.gcs;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pool of direct buffers of a fixed size, so uploads don't allocate a large buffer each.
+ * <p>
+ * Direct buffers are expensive to allocate and are only freed by the garbage collector, so they are reused instead. When the
+ * pool is empty a new buffer is allocated, and buffers released to a full pool are dropped, so the pool never blocks and holds
+ * at most <code>maxBuffers</code> idle buffers.
+ */
+public class GCSBufferPool
+{
+    private final int bufferSize;
+    private final BlockingQueue<ByteBuffer> buffers;
+
+    /**
+     * Initialises the pool
+     *
+     * @param bufferSize The size of each buffer
+     * @param maxBuffers The maximum number of idle buffers kept
+     */
+    public GCSBufferPool(int bufferSize, int maxBuffers)
+    {
+        this.bufferSize = bufferSize;
+        this.buffers = new ArrayBlockingQueue<>(Math.max(1, maxBuffers));
+    }
+
+    /**
+     * Takes a buffer from the pool, or allocates one if the pool is empty
+     *
+     * @return An empty buffer
+     */
+    public ByteBuffer acquire()
+    {
+        ByteBuffer buffer = buffers.poll();
+        return buffer == null ? ByteBuffer.allocateDirect(bufferSize) : buffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool. It mustn't be used afterwards.
+     *
+     * @param buffer A buffer taken from this pool
+     */
+    public void release(ByteBuffer buffer)
+    {
+        buffer.clear();
+        buffers.offer(buffer);
+    }
+
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    /**
+     * @return The number of idle buffers in the pool
+     */
+    public int size()
+    {
+        return buffers.size();
+    }
+}
@@ -0,0 +1,199 @@
+package com.mintel.gcs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.alfresco.util.GUID;
+import org.alfresco.util.TraceableThreadFactory;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Uploads large files as several parts in parallel and joins them with a GCS compose into the final object.
+ * <p>
+ * The parts are written as temporary objects under {@link #PART_PREFIX} and deleted once they have been composed, so a
+ * lifecycle rule on that prefix can clean up after uploads that were interrupted.
+ */
+public class GCSCompositeUploader
+{
+    private static final Log LOG = LogFactory.getLog(GCSCompositeUploader.class);
+    /**
+     * Prefix of the temporary part objects in the bucket
+     */
+    public static final String PART_PREFIX = "composite-parts/";
+    /**
+     * Maximum number of objects GCS can compose in a single request
+     */
+    public static final int MAX_PARTS = 32;
+
+    private final Storage storage;
+    private final ExecutorService executor;
+    private final int parts;
+
+    /**
+     * Initialises the composite uploader
+     *
+     * @param storage The storage to upload to
+     * @param parts The number of parts to split each file into, at most {@link #MAX_PARTS}
+     * @param threads The number of parts uploaded at the same time across all uploads
+     */
+    public GCSCompositeUploader(Storage storage, int parts, int threads)
+    {
+        this.storage = storage;
+        this.parts = Math.max(1, Math.min(parts, MAX_PARTS));
+        TraceableThreadFactory threadFactory = new TraceableThreadFactory();
+        threadFactory.setNamePrefix("GCSCompositeUpload");
+        threadFactory.setThreadDaemon(true);
+        this.executor = Executors.newFixedThreadPool(threads, threadFactory);
+    }
+
+    /**
+     * Uploads the file in parallel parts and composes them into the target object
+     *
+     * @param file The content to upload
+     * @param target The object to create
+     * @param options The preconditions of the compose into the target object
+     * @return The object created
+     */
+    public Blob upload(File file, BlobInfo target, Storage.BlobTargetOption... options)
+    {
+        long size = file.length();
+        long partSize = (size + parts - 1) / parts;
+        String partDir = PART_PREFIX + GUID.generate() + "/";
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("Uploading " + target.getName() + " (" + size + " bytes) as " + parts + " parts under " + partDir);
+        }
+
+        List<String> partNames = new ArrayList<>(parts);
+        List<Future<?>> uploads = new ArrayList<>(parts);
+        AtomicBoolean aborted = new AtomicBoolean();
+        try
+        {
+            for (long start = 0; start < size; start += partSize)
+            {
+                String partName = partDir + partNames.size();
+                BlobInfo partInfo = BlobInfo.newBuilder(BlobId.of(target.getBucket(), partName)).build();
+                long position = start;
+                long length = Math.min(partSize, size - start);
+                partNames.add(partName);
+                uploads.add(executor.submit(() -> aborted.get() ? null : uploadPart(file, position, length, partInfo)));
+            }
+            for (Future<?> upload : uploads)
+            {
+                upload.get();
+            }
+            return storage.compose(Storage.ComposeRequest.newBuilder().addSource(partNames).setTarget(target).setTargetOptions(options).build());
+        }
+        catch (ExecutionException e)
+        {
+            throw new ContentIOException("Could not upload part of " + target.getName(), e.getCause());
+        }
+        catch (CancellationException e)
+        {
+            throw new ContentIOException("The upload of " + target.getName() + " was cancelled by the shutdown", e);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new ContentIOException("Interrupted while uploading " + target.getName(), e);
+        }
+        finally
+        {
+            // The parts that haven't started are skipped, the running ones must finish before the parts can be deleted
+            aborted.set(true);
+            awaitParts(uploads);
+            deleteParts(target.getBucket(), partNames);
+        }
+    }
+
+    /**
+     * Uploads a range of the file as a temporary object
+     *
+     * @return <code>null</code>, so it can be submitted as a callable and throw
+     */
+    private Void uploadPart(File file, long position, long length, BlobInfo partInfo) throws IOException
+    {
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ); WriteChannel out = storage.writer(partInfo))
+        {
+            long transferred = 0;
+            while (transferred < length)
+            {
+                transferred += in.transferTo(position + transferred, length - transferred, out);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Waits for the part uploads to finish whether they succeed or not, so that none of them creates its part after the parts
+     * are deleted
+     */
+    private void awaitParts(List<Future<?>> uploads)
+    {
+        for (Future<?> upload : uploads)
+        {
+            try
+            {
+                Uninterruptibles.getUninterruptibly(upload);
+            }
+            catch (ExecutionException | CancellationException e)
+            {
+                // Reported by the first part that failed
+            }
+        }
+    }
+
+    /**
+     * Deletes the temporary part objects in one batch
+     */
+    private void deleteParts(String bucketName, List<String> partNames)
+    {
+        if (partNames.isEmpty())
+        {
+            return;
+        }
+        List<BlobId> blobIds = new ArrayList<>(partNames.size());
+        for (String partName : partNames)
+        {
+            blobIds.add(BlobId.of(bucketName, partName));
+        }
+        try
+        {
+            storage.delete(blobIds);
+        }
+        catch (Exception e)
+        {
+            LOG.warn("Could not delete the temporary parts under " + PART_PREFIX + " for " + partNames.get(0), e);
+        }
+    }
+
+    /**
+     * Stops the upload threads. The parts that haven't started are cancelled so the uploads waiting for them fail.
+     */
+    public void shutdown()
+    {
+        for (Runnable part : executor.shutdownNow())
+        {
+            ((Future<?>) part).cancel(false);
+        }
+    }
+}
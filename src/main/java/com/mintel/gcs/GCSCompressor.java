@@ -0,0 +1,231 @@
+package com.mintel.gcs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.alfresco.util.TempFileProvider;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.cloud.storage.BlobInfo;
+
+/**
+ * Compresses content of compressible mimetypes before it is uploaded, so text, XML, JSON and uncompressed office formats take
+ * less storage and less transfer time.
+ * <p>
+ * Content is compressed with gzip. The compressed object is tagged with the {@link GCSMetadataCache.Metadata#CONTENT_COMPRESSION}
+ * and {@link GCSMetadataCache.Metadata#CONTENT_SIZE} user metadata, so readers know to decompress it and report the size of the
+ * content instead of the size of the object. The object itself stays a plain <code>application/octet-stream</code> without a
+ * <code>Content-Encoding</code>, so GCS never transcodes it and ranges of it can still be read. Content that doesn't shrink
+ * enough, such as documents that are already compressed despite their mimetype, is uploaded as it is.
+ */
+public class GCSCompressor
+{
+    private static final Log LOG = LogFactory.getLog(GCSCompressor.class);
+    /**
+     * The value of the compression metadata for gzip
+     */
+    public static final String GZIP = "gzip";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Mimetypes compressed, exactly or by prefix for the entries ending with <code>*</code>
+     */
+    private final List<String> mimetypes = new ArrayList<>();
+    private final long minSize;
+    private final double maxRatio;
+
+    /**
+     * Initialises the compressor
+     *
+     * @param mimetypes Comma separated mimetypes to compress, such as <code>text/*,application/json</code>
+     * @param minSize Content smaller than this is never compressed
+     * @param maxRatio The compressed content is only kept if it is at most this fraction of the original size
+     */
+    public GCSCompressor(String mimetypes, long minSize, double maxRatio)
+    {
+        if (StringUtils.isNotBlank(mimetypes))
+        {
+            for (String mimetype : mimetypes.split(","))
+            {
+                if (StringUtils.isNotBlank(mimetype))
+                {
+                    this.mimetypes.add(mimetype.trim().toLowerCase(Locale.ROOT));
+                }
+            }
+        }
+        this.minSize = minSize;
+        this.maxRatio = maxRatio;
+    }
+
+    /**
+     * @return <code>true</code> if some mimetypes are compressed
+     */
+    public boolean isEnabled()
+    {
+        return !mimetypes.isEmpty();
+    }
+
+    /**
+     * Checks if content should be compressed
+     *
+     * @param mimetype The mimetype of the content, possibly with parameters such as a charset
+     * @param size The size of the content
+     * @return <code>true</code> if it should be compressed
+     */
+    public boolean isCompressible(String mimetype, long size)
+    {
+        if (mimetype == null || size < minSize)
+        {
+            return false;
+        }
+        String type = StringUtils.substringBefore(mimetype, ";").trim().toLowerCase(Locale.ROOT);
+        for (String compressed : mimetypes)
+        {
+            if (compressed.endsWith("*") ? type.startsWith(compressed.substring(0, compressed.length() - 1)) : type.equals(compressed))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compresses content held in memory
+     *
+     * @param content The content
+     * @return The compressed content, or <code>null</code> if it doesn't shrink enough
+     */
+    public byte[] compress(byte[] content)
+    {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 2);
+        try (OutputStream os = new GZIPOutputStream(compressed, BUFFER_SIZE))
+        {
+            os.write(content);
+        }
+        catch (IOException e)
+        {
+            throw new ContentIOException("Could not compress the content", e);
+        }
+        return isWorthIt(compressed.size(), content.length) ? compressed.toByteArray() : null;
+    }
+
+    /**
+     * Compresses spooled content to a new temporary file
+     *
+     * @param file The content
+     * @param checksum Computes the CRC32C of the compressed content as it is written, or <code>null</code>
+     * @return The compressed content, to be deleted once uploaded, or <code>null</code> if it doesn't shrink enough
+     */
+    public File compress(File file, GCSCrc32c checksum)
+    {
+        File compressed = TempFileProvider.createTempFile("gcs-compressed-", ".gz");
+        try (OutputStream os = new GZIPOutputStream(checksummed(new FileOutputStream(compressed), checksum), BUFFER_SIZE))
+        {
+            Files.copy(file.toPath(), os);
+        }
+        catch (IOException e)
+        {
+            compressed.delete();
+            throw new ContentIOException("Could not compress " + file, e);
+        }
+        if (isWorthIt(compressed.length(), file.length()))
+        {
+            return compressed;
+        }
+        compressed.delete();
+        return null;
+    }
+
+    /**
+     * Tags the definition of an object as holding compressed content
+     *
+     * @param blobInfo The object the content is uploaded as
+     * @param size The size of the content before compression
+     * @param crc32c The CRC32C of the content before compression, checked once it is decompressed, or <code>null</code> if it isn't known
+     * @return The object to upload the compressed content as
+     */
+    public static BlobInfo withCompression(BlobInfo blobInfo, long size, String crc32c)
+    {
+        Map<String, String> metadata = new HashMap<>();
+        if (blobInfo.getMetadata() != null)
+        {
+            metadata.putAll(blobInfo.getMetadata());
+        }
+        metadata.put(GCSMetadataCache.Metadata.CONTENT_COMPRESSION, GZIP);
+        metadata.put(GCSMetadataCache.Metadata.CONTENT_SIZE, Long.toString(size));
+        if (crc32c != null)
+        {
+            metadata.put(GCSMetadataCache.Metadata.CONTENT_ORIGINAL_CRC32C, crc32c);
+        }
+        return blobInfo.toBuilder().setMetadata(metadata).build();
+    }
+
+    /**
+     * Decompresses content as it is read
+     *
+     * @param compression The compression of the content, from its metadata
+     * @param is The compressed content
+     * @return The content
+     * @throws IOException If the content isn't compressed with a supported compression
+     */
+    public static InputStream decompress(String compression, InputStream is) throws IOException
+    {
+        if (!GZIP.equals(compression))
+        {
+            throw new IOException("Unsupported compression: " + compression);
+        }
+        return new GZIPInputStream(is, BUFFER_SIZE);
+    }
+
+    /**
+     * Adds the bytes written to a stream to a checksum
+     */
+    private static OutputStream checksummed(OutputStream os, GCSCrc32c checksum)
+    {
+        if (checksum == null)
+        {
+            return os;
+        }
+        return new FilterOutputStream(os)
+        {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+                checksum.update(b, off, len);
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void write(int b) throws IOException
+            {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+        };
+    }
+
+    private boolean isWorthIt(long compressedSize, long size)
+    {
+        boolean worthIt = compressedSize <= size * maxRatio;
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("Compressed " + size + " bytes to " + compressedSize + (worthIt ? "" : ", uploading them uncompressed"));
+        }
+        return worthIt;
+    }
+}
@@ -0,0 +1,304 @@
+package com.mintel.gcs;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.apache.commons.lang3.StringUtils;
+
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.Bucket;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.Storage.BlobListOption;
+
+/**
+ * Lists the content URLs of a store in sorted order, without holding the whole listing in memory.
+ * <p>
+ * Content URLs created by {@link GCSContentStore#createNewUrl()} are laid out as <code>yyyy/MM/dd/HH/mm/guid.bin</code>. The
+ * directories are discovered level by level down to the shard depth (4 lists each hour separately), and each shard is then listed
+ * in full on the store's list executor. Up to <code>prefetch</code> shards are listed ahead of the one being consumed. The shards
+ * are returned in order and GCS lists each of them in order, so the URLs come out sorted like their paths. Objects outside
+ * of this layout are returned too, but temporary objects of composite uploads and the shared objects of deduplicated content are
+ * left out.
+ * <p>
+ * When content is spread across several buckets, each directory and shard is listed in all of them and the results are merged.
+ * <p>
+ * Listers created with metadata list the size, generation and user metadata of each object along with its name, available from
+ * {@link #getMetadata()}, so the objects can be looked at without a request per object.
+ * <p>
+ * Instances are not thread safe. They should be closed if they are not consumed to the end, to cancel the listings in progress.
+ */
+public class GCSContentLister implements Iterator<String>, AutoCloseable
+{
+    private static final BlobListOption NAME_FIELDS = BlobListOption.fields(Storage.BlobField.NAME);
+    /**
+     * The fields {@link GCSMetadataCache.Metadata#of(Blob)} reads
+     */
+    private static final BlobListOption METADATA_FIELDS = BlobListOption.fields(Storage.BlobField.NAME, Storage.BlobField.UPDATED, Storage.BlobField.SIZE,
+            Storage.BlobField.GENERATION, Storage.BlobField.METADATA, Storage.BlobField.CRC32C);
+
+    private final GCSContentStore store;
+    private final List<Bucket> buckets;
+    private final ExecutorService executor;
+    private final int shardDepth;
+    private final int prefetch;
+    private final boolean metadata;
+    private final BlobListOption fields;
+    /**
+     * The directories being walked, deepest last
+     */
+    private final Deque<Level> levels = new ArrayDeque<>();
+    /**
+     * The shards being listed, in order
+     */
+    private final Deque<Future<List<Blob>>> shards = new ArrayDeque<>();
+    /**
+     * The objects of the shard being consumed
+     */
+    private Iterator<Blob> current = Collections.emptyIterator();
+    /**
+     * The object of the last content URL returned
+     */
+    private Blob last;
+
+    /**
+     * Initialises the lister
+     *
+     * @param store The store the content belongs to
+     * @param buckets The buckets of the store
+     * @param executor The executor the shards are listed on
+     * @param prefix The beginning of the path of the content, relative to the root directory of the store
+     * @param rootDir The root directory of the store
+     * @param shardDepth The number of directory levels walked before listing everything under them
+     * @param prefetch The number of shards listed ahead
+     * @param metadata Whether to list the metadata of the objects along with their names
+     */
+    protected GCSContentLister(GCSContentStore store, List<Bucket> buckets, ExecutorService executor, String prefix, String rootDir, int shardDepth, int prefetch,
+            boolean metadata)
+    {
+        this.store = store;
+        this.buckets = buckets;
+        this.executor = executor;
+        this.shardDepth = shardDepth;
+        this.prefetch = Math.max(1, prefetch);
+        this.metadata = metadata;
+        this.fields = metadata ? METADATA_FIELDS : NAME_FIELDS;
+
+        String relativePrefix = StringUtils.defaultString(prefix);
+        String pathPrefix = StringUtils.isBlank(rootDir) ? relativePrefix : rootDir + "/" + relativePrefix;
+        if (pathPrefix.isEmpty())
+        {
+            levels.push(new Level(listChildren(pathPrefix), 1));
+        }
+        else if (pathPrefix.endsWith("/"))
+        {
+            SortedMap<String, Blob> directory = new TreeMap<>();
+            directory.put(pathPrefix, null);
+            levels.push(new Level(directory, StringUtils.countMatches(relativePrefix, '/')));
+        }
+        else
+        {
+            // Not a directory, so it can't be walked
+            shards.add(executor.submit(() -> listShard(pathPrefix)));
+        }
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        while (!current.hasNext())
+        {
+            fill();
+            Future<List<Blob>> shard = shards.poll();
+            if (shard == null)
+            {
+                return false;
+            }
+            current = get(shard).iterator();
+            fill();
+        }
+        return true;
+    }
+
+    @Override
+    public String next()
+    {
+        if (!hasNext())
+        {
+            throw new NoSuchElementException();
+        }
+        last = current.next();
+        return store.getContentUrl(last.getName());
+    }
+
+    /**
+     * Gets the metadata of the object of the last content URL returned by {@link #next()}, as it was listed
+     *
+     * @return The metadata, or <code>null</code> if the lister wasn't created with metadata or nothing was returned yet
+     */
+    public GCSMetadataCache.Metadata getMetadata()
+    {
+        return last == null || !metadata ? null : GCSMetadataCache.Metadata.of(last);
+    }
+
+    /**
+     * Cancels the listings in progress
+     */
+    @Override
+    public void close()
+    {
+        for (Future<List<Blob>> shard : shards)
+        {
+            shard.cancel(true);
+        }
+        shards.clear();
+        levels.clear();
+        current = Collections.emptyIterator();
+        last = null;
+    }
+
+    /**
+     * Starts listing shards until <code>prefetch</code> of them are in progress or the walk is over
+     */
+    private void fill()
+    {
+        while (shards.size() < prefetch)
+        {
+            Future<List<Blob>> shard = nextShard();
+            if (shard == null)
+            {
+                return;
+            }
+            shards.add(shard);
+        }
+    }
+
+    /**
+     * Walks the directories until the next shard
+     *
+     * @return The listing of the shard, or <code>null</code> once everything has been walked
+     */
+    private Future<List<Blob>> nextShard()
+    {
+        while (!levels.isEmpty())
+        {
+            Level level = levels.peek();
+            if (!level.children.hasNext())
+            {
+                levels.pop();
+                continue;
+            }
+            Map.Entry<String, Blob> child = level.children.next();
+            String name = child.getKey();
+            if (!name.endsWith("/"))
+            {
+                // An object outside of the directory layout
+                return CompletableFuture.completedFuture(Collections.singletonList(child.getValue()));
+            }
+            if (name.equals(GCSCompositeUploader.PART_PREFIX) || name.equals(GCSDeduplicator.CONTENT_PREFIX))
+            {
+                continue;
+            }
+            if (level.depth >= shardDepth)
+            {
+                return executor.submit(() -> listShard(name));
+            }
+            levels.push(new Level(listChildren(name), level.depth + 1));
+        }
+        return null;
+    }
+
+    /**
+     * Lists the objects and directories directly under a directory, sorted by name
+     */
+    private SortedMap<String, Blob> listChildren(String prefix)
+    {
+        SortedMap<String, Blob> children = new TreeMap<>();
+        for (Bucket bucket : buckets)
+        {
+            for (Blob blob : bucket.list(BlobListOption.prefix(prefix), BlobListOption.currentDirectory(), fields).iterateAll())
+            {
+                if (!blob.getName().equals(prefix))
+                {
+                    children.put(blob.getName(), blob);
+                }
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Lists all the objects under a prefix, sorted by name
+     */
+    private List<Blob> listShard(String prefix)
+    {
+        List<Blob> blobs = new ArrayList<>();
+        for (Bucket bucket : buckets)
+        {
+            for (Blob blob : bucket.list(BlobListOption.prefix(prefix), fields).iterateAll())
+            {
+                String name = blob.getName();
+                if (!name.endsWith("/") && !name.startsWith(GCSCompositeUploader.PART_PREFIX) && !name.startsWith(GCSDeduplicator.CONTENT_PREFIX))
+                {
+                    blobs.add(blob);
+                }
+            }
+        }
+        if (buckets.size() > 1)
+        {
+            blobs.sort(Comparator.comparing(Blob::getName));
+        }
+        return blobs;
+    }
+
+    private static List<Blob> get(Future<List<Blob>> shard)
+    {
+        try
+        {
+            return shard.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new ContentIOException("Interrupted while listing content", e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new ContentIOException("Could not list content", e.getCause());
+        }
+    }
+
+    /**
+     * The remaining children of a directory being walked
+     */
+    private static class Level
+    {
+        private final Iterator<Map.Entry<String, Blob>> children;
+        /**
+         * The depth of the children below the root directory
+         */
+        private final int depth;
+
+        /**
+         * @param children The objects and directories, by name. Directories have no object.
+         */
+        Level(SortedMap<String, Blob> children, int depth)
+        {
+            this.children = children.entrySet().iterator();
+            this.depth = depth;
+        }
+    }
+}
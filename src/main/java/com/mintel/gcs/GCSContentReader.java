@@ -1,5 +1,11 @@
 package com.mintel.gcs;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 
 import org.alfresco.repo.content.AbstractContentReader;
@@ -8,10 +14,10 @@ import org.alfresco.service.cmr.repository.ContentReader;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
 import com.google.cloud.storage.Bucket;
-import com.google.cloud.storage.Storage;
-import com.google.cloud.storage.Storage.BlobGetOption;
+import com.google.cloud.storage.StorageException;
+import com.google.common.io.ByteStreams;
 
 /**
  * Google cloud storage contend reader implementation.
@@ -25,7 +31,10 @@ public class GCSContentReader extends AbstractContentReader
 {
     private static final Log LOG = LogFactory.getLog(GCSContentStore.class);
 
-    private static final BlobGetOption METADATA_FIELDS = BlobGetOption.fields(Storage.BlobField.UPDATED, Storage.BlobField.SIZE);
+    /**
+     * HTTP status returned by GCS when the object doesn't exist
+     */
+    private static final int NOT_FOUND = 404;
     /**
      * The path of the content within the store/bucket. By using this if data is migrated to a new bucket it will still work without changing the database values.
      */
@@ -39,9 +48,17 @@ public class GCSContentReader extends AbstractContentReader
      */
     private Bucket bucket;
     /**
-     * A google cloud object with only the metadata we need
+     * The store that created this reader
      */
-    private Blob metadata = null;
+    private GCSContentStore store;
+    /**
+     * The metadata we need, shared with other readers through the store's metadata cache
+     */
+    private GCSMetadataCache.Metadata metadata = null;
+    /**
+     * Set while {@link #getFileChannel()} asks for the direct channel, so a seekable one is returned
+     */
+    private boolean seekable = false;
 
     /**
      * Initialises a GCS content reader
@@ -49,13 +66,15 @@ public class GCSContentReader extends AbstractContentReader
      * @param path The simple path to the content inside the contentstore
      * @param contentUrl The full content URL
      * @param bucket The bucket where the content is stored
+     * @param store The store that created this reader
      */
-    protected GCSContentReader(String path, String contentUrl, Bucket bucket)
+    protected GCSContentReader(String path, String contentUrl, Bucket bucket, GCSContentStore store)
     {
         super(contentUrl);
         this.path = path;
         this.contentUrl = contentUrl;
         this.bucket = bucket;
+        this.store = store;
     }
 
     /**
@@ -64,8 +83,7 @@ public class GCSContentReader extends AbstractContentReader
     @Override
     public boolean exists()
     {
-        Blob metadata = getMetadata();
-        return metadata != null;
+        return getMetadata().exists();
     }
 
     /**
@@ -74,8 +92,7 @@ public class GCSContentReader extends AbstractContentReader
     @Override
     public long getLastModified()
     {
-        Blob metadata = getMetadata();
-        return metadata == null ? 0L : metadata.getUpdateTime();
+        return getMetadata().getLastModified();
     }
 
     /**
@@ -84,8 +101,7 @@ public class GCSContentReader extends AbstractContentReader
     @Override
     public long getSize()
     {
-        Blob metadata = getMetadata();
-        return metadata == null ? 0L : metadata.getSize();
+        return getMetadata().getSize();
     }
 
     /**
@@ -94,26 +110,84 @@ public class GCSContentReader extends AbstractContentReader
     @Override
     protected ContentReader createReader() throws ContentIOException
     {
-        return new GCSContentReader(path, contentUrl, bucket);
+        return new GCSContentReader(path, contentUrl, bucket, store);
     }
 
     /**
      * {@inheritDoc}
+     * <p>
+     * The object is opened straight from its {@link BlobId} without checking for its existence first, so a read costs a
+     * single round trip. If the metadata has already been fetched the read is pinned to that generation, so the bytes
+     * returned always match the size reported. A missing object is reported as a {@link ContentIOException} on the first read.
+     * <p>
+     * When parallel reads are enabled the size is needed up front, and objects above the threshold are downloaded as concurrent
+     * ranges instead of a single stream.
+     * <p>
+     * Small objects are served from the store's small object cache, which needs the metadata up front as well.
+     * <p>
+     * When the block cache is enabled the object is read through it block by block, which also needs the metadata up front.
+     * Otherwise, with coalesced reads, readers of an object already being downloaded share that download, which needs the metadata
+     * up front to share it by generation.
+     * <p>
+     * When the object may be a pointer to deduplicated content or be compressed, see {@link GCSContentStore#isEncodingLookup()},
+     * the metadata is always needed up front. Compressed content is decompressed as it is read from a single stream, as ranges
+     * of the content don't map to ranges of the object. Its file channels are therefore temporary file copies.
+     * <p>
+     * With read checksums reads of the whole object are checked against its CRC32C when they reach its end. Compressed content is
+     * checked once decompressed against the CRC32C of the content before compression, when it was uploaded with upload checksums,
+     * and by gzip otherwise. Seekable and block cache reads aren't checked.
      */
     @Override
     protected ReadableByteChannel getDirectReadableChannel() throws ContentIOException
     {
-        if (!exists())
-        {
-            throw new ContentIOException("File doesn't exist");
-        }
         try
         {
             if (LOG.isDebugEnabled())
             {
                 LOG.debug("Reading object using path: " + path);
             }
-            return bucket.get(path).reader();
+            GCSSmallObjectCache smallObjectCache = store.getSmallObjectCache();
+            if (store.isEncodingLookup() && exists() && metadata.getCompression() != null)
+            {
+                return getDecompressingChannel(smallObjectCache);
+            }
+            if (!seekable && smallObjectCache != null && exists() && getSize() <= store.getSmallObjectThreshold())
+            {
+                return Channels.newChannel(new ByteArrayInputStream(getSmallObjectContent(smallObjectCache)));
+            }
+            GCSBlockCache blockCache = store.getBlockCache();
+            if (seekable || blockCache != null)
+            {
+                if (!exists())
+                {
+                    throw new ContentIOException("File doesn't exist: " + contentUrl);
+                }
+                if (blockCache != null)
+                {
+                    GCSSeekableChannel channel = new GCSSeekableChannel(bucket.getStorage(), getBlobId(), getSize(), blockCache);
+                    return seekable ? channel : new MeteredReadChannel(channel, store.getMetrics().start(GCSMetrics.Operation.OPEN_READ));
+                }
+                return new GCSSeekableChannel(bucket.getStorage(), getBlobId(), getSize(), store.getSeekableReadBlockSize(), store.getSeekableReadCacheBlocks());
+            }
+            if (store.getParallelReadThreshold() > 0 && exists() && store.isParallelRead(getSize()))
+            {
+                return new MeteredReadChannel(verified(new GCSRangedReadChannel(bucket.getStorage(), getBlobId(), getSize(), store.getParallelReadRangeSize(),
+                        store.getParallelReadPrefetch(), store.getParallelReadExecutor())), store.getMetrics().start(GCSMetrics.Operation.OPEN_READ));
+            }
+            if (store.isCoalescedRead())
+            {
+                // Readers share the download of the same generation, so it has to be known
+                if (!exists())
+                {
+                    throw new ContentIOException("File doesn't exist: " + contentUrl);
+                }
+                return new MeteredReadChannel(verified(store.openSharedRead(getBlobId())), store.getMetrics().start(GCSMetrics.Operation.OPEN_READ));
+            }
+            return new MeteredReadChannel(verified(bucket.getStorage().reader(getBlobId())), store.getMetrics().start(GCSMetrics.Operation.OPEN_READ));
+        }
+        catch (ContentIOException e)
+        {
+            throw e;
         }
         catch (Exception e)
         {
@@ -122,16 +196,291 @@ public class GCSContentReader extends AbstractContentReader
     }
 
     /**
-     * Gets a blob with just the required metadata (size and last modified date)
+     * {@inheritDoc}
+     * <p>
+     * When seekable reads or the block cache are enabled the channel reads the object with range requests as it is accessed,
+     * instead of the default of copying the whole object to a temporary file first.
+     */
+    @Override
+    public synchronized FileChannel getFileChannel() throws ContentIOException
+    {
+        if (!store.isSeekableRead() && store.getBlockCache() == null)
+        {
+            return super.getFileChannel();
+        }
+        seekable = true;
+        try
+        {
+            return super.getFileChannel();
+        }
+        finally
+        {
+            seekable = false;
+        }
+    }
+
+    /**
+     * Opens a read of compressed content, decompressing it on the fly
+     *
+     * @param smallObjectCache The store's small object cache, or <code>null</code> if it is disabled
+     * @return A channel reading the decompressed content
+     * @throws IOException If the content can't be decompressed
+     */
+    private ReadableByteChannel getDecompressingChannel(GCSSmallObjectCache smallObjectCache) throws IOException
+    {
+        if (smallObjectCache != null && getSize() <= store.getSmallObjectThreshold())
+        {
+            return Channels.newChannel(new ByteArrayInputStream(getSmallObjectContent(smallObjectCache)));
+        }
+        ReadableByteChannel channel = store.isCoalescedRead() ? store.openSharedRead(getBlobId()) : bucket.getStorage().reader(getBlobId());
+        ReadableByteChannel metered = new MeteredReadChannel(channel, store.getMetrics().start(GCSMetrics.Operation.OPEN_READ));
+        ReadableByteChannel decompressed = Channels.newChannel(GCSCompressor.decompress(metadata.getCompression(), Channels.newInputStream(metered)));
+        if (!store.isReadChecksum() || metadata.getOriginalCrc32c() == null)
+        {
+            return decompressed;
+        }
+        return new VerifyingReadChannel(decompressed, metadata.getOriginalCrc32c());
+    }
+
+    /**
+     * Gets the whole content of a small object from the cache, or downloads and caches it
      *
-     * @return Blob containing only these fields
+     * @param smallObjectCache The store's small object cache
+     * @return The content
      */
-    private Blob getMetadata()
+    private byte[] getSmallObjectContent(GCSSmallObjectCache smallObjectCache)
+    {
+        byte[] content = smallObjectCache.get(path, metadata.getGeneration());
+        if (content == null)
+        {
+            GCSMetrics.Timer timer = store.getMetrics().start(GCSMetrics.Operation.OPEN_READ);
+            try
+            {
+                content = bucket.getStorage().readAllBytes(getBlobId());
+                timer.success(content.length);
+                if (store.isReadChecksum())
+                {
+                    check(content, metadata.getCrc32c());
+                }
+                if (metadata.getCompression() != null)
+                {
+                    content = decompress(content);
+                    if (store.isReadChecksum())
+                    {
+                        check(content, metadata.getOriginalCrc32c());
+                    }
+                }
+            }
+            catch (StorageException e)
+            {
+                timer.failure(e);
+                if (e.getCode() == NOT_FOUND)
+                {
+                    throw new ContentIOException("File doesn't exist: " + contentUrl, e);
+                }
+                throw e;
+            }
+            smallObjectCache.put(path, metadata.getGeneration(), content);
+        }
+        return content;
+    }
+
+    /**
+     * Checks whole content against a CRC32C
+     *
+     * @param content The content
+     * @param expected The CRC32C as GCS encodes it, or <code>null</code> if it isn't known
+     */
+    private void check(byte[] content, String expected)
+    {
+        if (expected == null)
+        {
+            return;
+        }
+        GCSCrc32c checksum = new GCSCrc32c();
+        checksum.update(content, 0, content.length);
+        String crc32c = checksum.getValue();
+        if (!crc32c.equals(expected))
+        {
+            throw new ContentIOException("The CRC32C of " + contentUrl + " is " + crc32c + " instead of " + expected);
+        }
+    }
+
+    /**
+     * Decompresses the whole content of a small object
+     */
+    private byte[] decompress(byte[] compressed)
+    {
+        try (InputStream is = GCSCompressor.decompress(metadata.getCompression(), new ByteArrayInputStream(compressed)))
+        {
+            return ByteStreams.toByteArray(is);
+        }
+        catch (IOException e)
+        {
+            throw new ContentIOException("Could not decompress " + contentUrl, e);
+        }
+    }
+
+    /**
+     * Gets the id of the object to read, including the generation if it is already known. When the object may be a pointer to
+     * deduplicated content the metadata is needed to find the object holding the bytes, and with read checksums to know the
+     * checksum of the generation read.
+     *
+     * @return The blob id
+     */
+    private BlobId getBlobId()
+    {
+        if (metadata == null && (store.isEncodingLookup() || store.isReadChecksum()))
+        {
+            getMetadata();
+        }
+        if (metadata != null)
+        {
+            // The shared objects of deduplicated content are in the primary bucket when content is spread across several
+            String contentPath = metadata.getContentPath();
+            return metadata.getContentBlobId(contentPath == null ? bucket.getName() : store.getShardBucket(contentPath).getName(), path);
+        }
+        return BlobId.of(bucket.getName(), path);
+    }
+
+    /**
+     * Checks a read of the whole object against its CRC32C if read checksums are enabled
+     *
+     * @param channel The channel reading the object, opened with {@link #getBlobId()} so the metadata is known with read checksums
+     * @return The channel to read from
+     */
+    private ReadableByteChannel verified(ReadableByteChannel channel)
+    {
+        if (!store.isReadChecksum() || metadata == null || metadata.getCrc32c() == null)
+        {
+            return channel;
+        }
+        return new VerifyingReadChannel(channel, metadata.getCrc32c());
+    }
+
+    /**
+     * Gets the metadata we need (size, last modified date and generation), from the store's cache if it is there
+     *
+     * @return The metadata of the content
+     */
+    private GCSMetadataCache.Metadata getMetadata()
     {
         if (metadata == null)
         {
-            metadata = bucket.get(path, METADATA_FIELDS);
+            metadata = store.getMetadata(path);
         }
         return metadata;
     }
+
+    /**
+     * Read channel that times the read up to its first bytes, counts the bytes read and turns the GCS "not found" error raised
+     * when the object is first read into a {@link ContentIOException}.
+     */
+    private class MeteredReadChannel implements ReadableByteChannel
+    {
+        private final ReadableByteChannel channel;
+        private final GCSMetrics.Timer timer;
+
+        MeteredReadChannel(ReadableByteChannel channel, GCSMetrics.Timer timer)
+        {
+            this.channel = channel;
+            this.timer = timer;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException
+        {
+            int read;
+            try
+            {
+                read = channel.read(dst);
+            }
+            catch (StorageException e)
+            {
+                timer.failure(e);
+                if (e.getCode() == NOT_FOUND)
+                {
+                    throw new ContentIOException("File doesn't exist: " + contentUrl, e);
+                }
+                throw e;
+            }
+            catch (IOException | RuntimeException e)
+            {
+                timer.failure(e);
+                throw e;
+            }
+            timer.success(0);
+            if (read > 0)
+            {
+                timer.addBytes(read);
+            }
+            return read;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            // Only recorded here if nothing was read
+            timer.success(0);
+            channel.close();
+        }
+    }
+
+    /**
+     * Read channel computing the CRC32C of the bytes as they go through, which fails the read at the end of the object if it
+     * doesn't match the checksum GCS keeps. Reads closed before the end aren't checked.
+     */
+    private class VerifyingReadChannel implements ReadableByteChannel
+    {
+        private final ReadableByteChannel channel;
+        private final String expected;
+        private final GCSCrc32c checksum = new GCSCrc32c();
+        private boolean verified = false;
+
+        VerifyingReadChannel(ReadableByteChannel channel, String expected)
+        {
+            this.channel = channel;
+            this.expected = expected;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException
+        {
+            ByteBuffer view = dst.duplicate();
+            int read = channel.read(dst);
+            if (read > 0)
+            {
+                view.limit(view.position() + read);
+                checksum.update(view);
+            }
+            else if (read < 0 && !verified)
+            {
+                verified = true;
+                String actual = checksum.getValue();
+                if (!expected.equals(actual))
+                {
+                    throw new IOException("The CRC32C of " + contentUrl + " is " + actual + " instead of " + expected);
+                }
+            }
+            return read;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            channel.close();
+        }
+    }
 }
@@ -1,19 +1,40 @@
 package com.mintel.gcs;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.alfresco.repo.content.AbstractContentStore;
 import org.alfresco.repo.content.ContentStore;
+import org.alfresco.repo.content.UnsupportedContentUrlException;
+import org.alfresco.repo.content.filestore.FileContentReader;
 import org.alfresco.repo.content.filestore.FileContentStore;
 import org.alfresco.service.cmr.repository.ContentIOException;
 import org.alfresco.service.cmr.repository.ContentReader;
 import org.alfresco.service.cmr.repository.ContentWriter;
 import org.alfresco.util.GUID;
 import org.alfresco.util.Pair;
+import org.alfresco.util.TempFileProvider;
+import org.alfresco.util.TraceableThreadFactory;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -22,10 +43,18 @@ import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 import com.google.auth.oauth2.GoogleCredentials;
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.Blob;
 import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
 import com.google.cloud.storage.Bucket;
 import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.Storage.BlobGetOption;
+import com.google.cloud.storage.Storage.BlobTargetOption;
+import com.google.cloud.storage.Storage.BlobWriteOption;
+import com.google.cloud.storage.StorageException;
 import com.google.cloud.storage.StorageOptions;
+import com.google.common.net.MediaType;
 
 /**
  * Google cloud storage content store implementation.
@@ -40,9 +69,39 @@ public class GCSContentStore extends AbstractContentStore
 {
     private static final Log LOG = LogFactory.getLog(GCSContentStore.class);
     /**
-     * The bucket where the content should be
+     * Default chunk size of a resumable upload, GCS requires it to be a multiple of 256KB
+     */
+    public static final int DEFAULT_UPLOAD_CHUNK_SIZE = 2 * 1024 * 1024;
+    /**
+     * The only metadata fields we need: size, last modified date, generation, checksum and the user metadata of deduplicated and
+     * compressed content
+     */
+    static final BlobGetOption METADATA_FIELDS = BlobGetOption.fields(Storage.BlobField.UPDATED, Storage.BlobField.SIZE, Storage.BlobField.GENERATION,
+            Storage.BlobField.METADATA, Storage.BlobField.CRC32C);
+    /**
+     * The bucket where the content should be, the primary bucket when content is spread across several buckets
      */
     private Bucket bucket;
+    /**
+     * Comma separated buckets new content is spread across along with the primary bucket, empty keeps all content in it
+     */
+    private String shardBucketNames = "";
+    /**
+     * Content URLs created before this time stay in the primary bucket, as <code>yyyy/MM/dd/HH/mm</code>
+     */
+    private String shardSince = "";
+    /**
+     * Buckets added later, as semicolon separated <code>yyyy/MM/dd/HH/mm=bucket,bucket</code> entries
+     */
+    private String shardAdditions = "";
+    /**
+     * The routing of content to the buckets, built by {@link #init()}. Null when all content is in the primary bucket.
+     */
+    private volatile GCSBucketShards shards;
+    /**
+     * The buckets content is spread across by name, resolved along with {@link #shards}
+     */
+    private volatile Map<String, Bucket> shardBuckets = Collections.emptyMap();
     /**
      * The GCS storage where the bucket is
      */
@@ -51,6 +110,242 @@ public class GCSContentStore extends AbstractContentStore
      * The root folder where the content is in the bucket
      */
     private String rootDir;
+    /**
+     * Whether writers upload straight to GCS instead of spooling the content to a temporary file first
+     */
+    private boolean streamingUpload = false;
+    /**
+     * The chunk size used by resumable uploads, in bytes
+     */
+    private int uploadChunkSize = DEFAULT_UPLOAD_CHUNK_SIZE;
+    /**
+     * The size of the direct buffers spooled content is read into when it is uploaded
+     */
+    private int uploadBufferSize = DEFAULT_UPLOAD_CHUNK_SIZE;
+    /**
+     * The maximum number of idle upload buffers kept
+     */
+    private int uploadBufferPoolSize = 16;
+    /**
+     * The upload buffers, created on first use
+     */
+    private volatile GCSBufferPool uploadBufferPool;
+    /**
+     * Whether spooled content is uploaded in the background once the writer is closed
+     */
+    private boolean writeBehind = false;
+    /**
+     * The number of concurrent background uploads
+     */
+    private int writeBehindThreads = 4;
+    /**
+     * The number of background uploads that can be waiting for a thread
+     */
+    private int writeBehindQueueSize = 100;
+    /**
+     * The number of times a background upload is tried before it is left for the next start
+     */
+    private int writeBehindMaxAttempts = 5;
+    /**
+     * How long in milliseconds to wait before trying a failed background upload again, doubled at each attempt
+     */
+    private long writeBehindRetryDelay = 1000;
+    /**
+     * The background upload queue, created on first use
+     */
+    private volatile GCSWriteBehindQueue writeBehindQueue;
+    /**
+     * Spooled content at least this big is uploaded as parallel composite parts, 0 disables composite uploads
+     */
+    private long compositeUploadThreshold = 0;
+    /**
+     * The number of parts a composite upload is split into
+     */
+    private int compositeUploadParts = 8;
+    /**
+     * The number of composite upload parts uploaded at the same time
+     */
+    private int compositeUploadThreads = 8;
+    /**
+     * The composite uploader, created on first use
+     */
+    private volatile GCSCompositeUploader compositeUploader;
+    /**
+     * Whether GCS checks uploads against the CRC32C of the content computed as it is written
+     */
+    private boolean uploadChecksum = true;
+    /**
+     * Whether whole reads are checked against the CRC32C of the object once they reach its end
+     */
+    private boolean readChecksum = false;
+    /**
+     * Whether identical content is stored once, addressed by its hash
+     */
+    private boolean deduplication = false;
+    /**
+     * Whether the bucket holds content written while deduplication or compression were enabled, which are disabled now
+     */
+    private boolean encodedContent = false;
+    /**
+     * The reference counting of deduplicated content, created on first use
+     */
+    private volatile GCSDeduplicator deduplicator;
+    /**
+     * Comma separated mimetypes compressed before they are uploaded, empty disables compression
+     */
+    private String compressMimetypes = "";
+    /**
+     * Content smaller than this is never compressed
+     */
+    private long compressMinSize = 1024;
+    /**
+     * Compressed content is only kept if it is at most this fraction of the original size
+     */
+    private double compressMaxRatio = 0.9;
+    /**
+     * The compression of uploaded content, created on first use
+     */
+    private volatile GCSCompressor compressor;
+    /**
+     * Objects at least this big are read as parallel ranges, 0 disables parallel reads
+     */
+    private long parallelReadThreshold = 0;
+    /**
+     * The size of each range of a parallel read
+     */
+    private int parallelReadRangeSize = 8 * 1024 * 1024;
+    /**
+     * The number of ranges a parallel read downloads ahead
+     */
+    private int parallelReadPrefetch = 4;
+    /**
+     * The number of ranges downloaded at the same time across all parallel reads
+     */
+    private int parallelReadThreads = 16;
+    /**
+     * The executor downloading the ranges, created on first use
+     */
+    private volatile ExecutorService parallelReadExecutor;
+    /**
+     * Whether file channels read the object with range requests instead of copying it to a temporary file
+     */
+    private boolean seekableRead = false;
+    /**
+     * The size of each range read by a seekable channel
+     */
+    private int seekableReadBlockSize = 1024 * 1024;
+    /**
+     * The number of blocks a seekable channel keeps
+     */
+    private int seekableReadCacheBlocks = 2;
+    /**
+     * Objects up to this size are written through memory and read through the small object cache, 0 disables it
+     */
+    private int smallObjectThreshold = 0;
+    /**
+     * The maximum total size of the small object cache, 0 disables the cache but not the in-memory writes
+     */
+    private long smallObjectCacheMaxSize = 64 * 1024 * 1024;
+    /**
+     * The content of small objects shared by all readers, created on first use
+     */
+    private volatile GCSSmallObjectCache smallObjectCache;
+    /**
+     * Whether concurrent reads of the same object share a single download
+     */
+    private boolean coalescedRead = false;
+    /**
+     * The number of shared downloads running at the same time
+     */
+    private int coalescedReadThreads = 16;
+    /**
+     * The executor running the shared downloads, created on first use
+     */
+    private volatile ExecutorService coalescedReadExecutor;
+    /**
+     * The shared downloads in progress, by object and generation
+     */
+    private final ConcurrentMap<BlobId, GCSSharedDownload> sharedDownloads = new ConcurrentHashMap<>();
+    /**
+     * The number of directory levels walked before listing everything under them, 4 lists each hour separately
+     */
+    private int listShardDepth = 4;
+    /**
+     * The number of directories listed ahead of the one being consumed
+     */
+    private int listPrefetch = 16;
+    /**
+     * The number of directories listed at the same time
+     */
+    private int listThreads = 8;
+    /**
+     * The executor listing the directories, created on first use
+     */
+    private volatile ExecutorService listExecutor;
+    /**
+     * The number of objects prefetched at the same time
+     */
+    private int prefetchThreads = 4;
+    /**
+     * The bandwidth of prefetching in bytes per second, 0 for unlimited
+     */
+    private long prefetchMaxBytesPerSecond = 0;
+    /**
+     * The executor prefetching content, created on first use
+     */
+    private volatile ExecutorService prefetchExecutor;
+    /**
+     * The directory of the local disk block cache
+     */
+    private String blockCacheDirectory;
+    /**
+     * The size of each block of the block cache
+     */
+    private int blockCacheBlockSize = 4 * 1024 * 1024;
+    /**
+     * The maximum size of the block cache, 0 disables it
+     */
+    private long blockCacheMaxSize = 0;
+    /**
+     * The local disk block cache, created on first use
+     */
+    private volatile GCSBlockCache blockCache;
+    /**
+     * The maximum number of paths the metadata cache keeps
+     */
+    private int metadataCacheMaxEntries = 10000;
+    /**
+     * How long cached metadata is valid for, 0 disables the cache
+     */
+    private long metadataCacheTtlSeconds = 60;
+    /**
+     * How long missing objects are cached for, 0 never caches them
+     */
+    private long metadataCacheNotFoundTtlSeconds = GCSMetadataCache.DEFAULT_NOT_FOUND_TTL_SECONDS;
+    /**
+     * The metadata shared by all readers, created on first use
+     */
+    private volatile GCSMetadataCache metadataCache;
+    /**
+     * The number of delete batches sent at the same time
+     */
+    private int deleteThreads = 4;
+    /**
+     * The executor sending delete batches, created on first use
+     */
+    private volatile ExecutorService deleteExecutor;
+    /**
+     * Whether deleted content is first copied to the deleted content store
+     */
+    private boolean archiveOnDelete = false;
+    /**
+     * The store deleted content is archived to
+     */
+    private GCSContentStore deletedContentStore;
+    /**
+     * The statistics of the GCS operations of this store, its readers and writers
+     */
+    private GCSMetrics metrics;
 
     /**
      * Initialises a GCS content store.
@@ -63,6 +358,22 @@ public class GCSContentStore extends AbstractContentStore
      * @throws Exception If the connection to GCS was unsuccessful.
      */
     public GCSContentStore(String keyPath, String keyFileName, String bucketName, String rootDir) throws Exception
+    {
+        this(keyPath, keyFileName, bucketName, rootDir, new GCSStorageSettings());
+    }
+
+    /**
+     * Initialises a GCS content store with custom client settings.
+     * 
+     * @param keyPath The path to the Google cloud storage key. Default is <code>alfresco/extension/google-cloud-storage/<code>
+     * @param keyFileName Google cloud storage key file name. Default is <code>key.json<code>
+     * @param bucketName Name of  Google cloud storage bucket to store content into. Default is <code>bucket<code>
+     * @param rootDir The root directory of the files in the bucket.
+     * @param settings The HTTP transport, timeouts and retries of the GCS client
+     * 
+     * @throws Exception If the connection to GCS was unsuccessful.
+     */
+    public GCSContentStore(String keyPath, String keyFileName, String bucketName, String rootDir, GCSStorageSettings settings) throws Exception
     {
         if (LOG.isDebugEnabled())
         {
@@ -95,169 +406,1646 @@ public class GCSContentStore extends AbstractContentStore
         }
         try
         {
-            GoogleCredentials credentials = GoogleCredentials.fromStream(this.getCredentials(keyPath, keyFileName));
-            this.storage = StorageOptions.newBuilder().setCredentials(credentials).setProjectId(projectId).build().getService();
-            this.bucket = storage.get(bucketName);
-            if (bucket == null)
-            {
-                throw new Exception("Couldn't get bucket with name " + bucketName);
-            }
+            GoogleCredentials credentials = GoogleCredentials.fromStream(this.getCredentials(keyPath, keyFileName), settings.getHttpTransportFactory());
+            this.storage = settings.apply(StorageOptions.newBuilder()).setCredentials(credentials).setProjectId(projectId).build().getService();
         }
         catch (IOException e)
         {
             throw new Exception("Error in reading credentials from the file", e);
         }
+        this.bucket = getBucket(bucketName);
+        this.metrics = new GCSMetrics(bucketName, rootDir);
+        metrics.register();
     }
 
     /**
-     * {@inheritDoc}
-     * Always returns true for the GCS connector.
+     * Initialises a GCS content store using an existing storage client, for example one using an emulator or a fake.
+     *
+     * @param storage The GCS storage where the bucket is
+     * @param bucketName Name of the Google cloud storage bucket to store content into
+     * @param rootDir The root directory of the files in the bucket.
+     *
+     * @throws Exception If the bucket couldn't be found.
      */
-    @Override
-    public boolean isWriteSupported()
+    public GCSContentStore(Storage storage, String bucketName, String rootDir) throws Exception
     {
-        return true;
+        this.rootDir = rootDir;
+        this.storage = storage;
+        this.bucket = getBucket(bucketName);
+        this.metrics = new GCSMetrics(bucketName, rootDir);
+        metrics.register();
     }
 
     /**
-     * {@inheritDoc}
+     * Gets a bucket from the storage
+     *
+     * @param bucketName The name of the bucket
+     * @return The bucket
+     * @throws Exception If the bucket doesn't exist
      */
-    @Override
-    public ContentReader getReader(String contentUrl)
+    private Bucket getBucket(String bucketName) throws Exception
     {
-        String path = getPath(contentUrl);
-        if (LOG.isDebugEnabled())
+        Bucket bucket = storage.get(bucketName);
+        if (bucket == null)
         {
-            LOG.debug("Creating reader with path: " + path + "; contentUrl: " + contentUrl);
+            throw new Exception("Couldn't get bucket with name " + bucketName);
         }
-        return new GCSContentReader(path, contentUrl, bucket);
+        return bucket;
     }
 
     /**
-     * Deletes the content from the GCS. 
+     * Gets the bucket an object is stored in, which is the primary bucket unless content is spread across several buckets.
+     * See {@link GCSBucketShards}.
+     *
+     * @param path The path of the object
+     * @return The bucket of the object
      */
-    @Override
-    public boolean delete(String contentUrl)
+    protected Bucket getShardBucket(String path)
     {
-        String path = getPath(contentUrl);
-        BlobId blobId = BlobId.of(this.bucket.getName(), path);
-        if (LOG.isDebugEnabled())
+        GCSBucketShards currentShards = shards;
+        if (currentShards == null)
         {
-            LOG.debug("Deleting blobId: " + blobId);
+            return bucket;
         }
-        this.storage.delete(blobId);
+        return shardBuckets.get(currentShards.getBucketName(path));
+    }
 
-        //Alfresco interface requires us to return true if the content is not found OR deleted,
-        // so we cannot use the Storage's one because it would be false in the first case.
-        return true;
+    /**
+     * Gets all the buckets content is stored in
+     *
+     * @return The buckets, the primary bucket first
+     */
+    protected List<Bucket> getBuckets()
+    {
+        if (shards == null)
+        {
+            return Collections.singletonList(bucket);
+        }
+        return new ArrayList<>(shardBuckets.values());
     }
 
     /**
-     * {@inheritDoc}
+     * Gets the routing of content to the buckets
+     *
+     * @return The shards, null when all content is in the primary bucket
      */
-    @Override
-    public ContentWriter getWriterInternal(ContentReader existingContentReader, String newContentUrl) throws ContentIOException
+    protected GCSBucketShards getShards()
     {
-        try
+        return shards;
+    }
+
+    /**
+     * Resolves the routing of content to the buckets and the buckets themselves once they are all configured, so that a missing
+     * bucket or an invalid time fails the startup rather than the first write
+     */
+    private void initShards()
+    {
+        Map<String, List<String>> bucketNamesSince = new LinkedHashMap<>();
+        List<String> bucketNames = new ArrayList<>();
+        bucketNames.add(bucket.getName());
+        if (StringUtils.isNotBlank(shardBucketNames))
         {
-            String contentUrl;
-            if (newContentUrl == null || StringUtils.isBlank(newContentUrl))
+            addBucketNames(bucketNames, shardBucketNames);
+            bucketNamesSince.put(shardSince, new ArrayList<>(bucketNames));
+        }
+        for (String addition : shardAdditions.split(";"))
+        {
+            if (StringUtils.isBlank(addition))
             {
-                contentUrl = createNewUrl();
+                continue;
             }
-            else
+            int separator = addition.indexOf('=');
+            if (separator < 0)
             {
-                contentUrl = newContentUrl;
+                throw new IllegalArgumentException("Buckets must be added as yyyy/MM/dd/HH/mm=bucket,bucket: " + addition);
             }
-            return new GCSContentWriter(getPath(contentUrl), contentUrl, existingContentReader, this.bucket);
+            // Each addition spreads the content created from then on across the buckets used before and the added ones
+            addBucketNames(bucketNames, addition.substring(separator + 1));
+            bucketNamesSince.put(addition.substring(0, separator).trim(), new ArrayList<>(bucketNames));
         }
-        catch (Throwable e)
+        if (bucketNamesSince.isEmpty())
         {
-            throw new ContentIOException("GCSContentStore.getWriterInternal(): Failed to get writer.");
+            return;
         }
+
+        GCSBucketShards newShards = new GCSBucketShards(bucketNamesSince, rootDir);
+        Map<String, Bucket> newShardBuckets = new LinkedHashMap<>();
+        for (String name : newShards.getBucketNames())
+        {
+            try
+            {
+                newShardBuckets.put(name, name.equals(bucket.getName()) ? bucket : getBucket(name));
+            }
+            catch (Exception e)
+            {
+                throw new ContentIOException("Could not get the shard bucket " + name, e);
+            }
+        }
+        shardBuckets = Collections.unmodifiableMap(newShardBuckets);
+        shards = newShards;
     }
 
     /**
-     * Searches for the credentials file and reads it.
-     * <ul>
-     *   <li>First based on the file directly on the classpath, most likely shipped within a java jar</li>
-     *   <li>If not found, searches in the path given</li>
-     * </ul>
-     * @param keyPath path where to search for the key
-     * @param keyFileName filename of the key
-     * @return json key file as inputstream
-     * @throws Exception
+     * Adds comma separated bucket names to a list, skipping the ones it already has
      */
-    private InputStream getCredentials(String keyPath, String keyFileName) throws Exception
+    private static void addBucketNames(List<String> bucketNames, String names)
     {
-        /*
-         * We first try to get the file directly. If it can't be found we search the extension folder
-         */
-        InputStream is = GCSContentStore.class.getClassLoader().getResourceAsStream(keyFileName);
-        if (is == null)
+        for (String bucketName : names.split(","))
         {
-            if (LOG.isDebugEnabled())
+            String name = bucketName.trim();
+            if (!name.isEmpty() && !bucketNames.contains(name))
             {
-                LOG.debug("The file couldn't be found in the classpath. Trying " + keyPath + keyFileName);
+                bucketNames.add(name);
             }
-            is = GCSContentStore.class.getClassLoader().getResourceAsStream(keyPath + keyFileName);
-        }
-        if (is == null)
-        {
-            throw new Exception("The file " + keyFileName + " was not found in the classpath.");
         }
-        return is;
     }
 
     /**
-     * Creates a new content URL path that will be used to save the content to.
-     * For example for something created on the 5th of October of 2019 at 13:02 the URL generated will be
-     * <code>
-     *    store://2019/10/05/13/02/[uuid].bin
-     * <code>
-     * @return Returns a new and unique content URL
+     * {@inheritDoc}
+     * Always returns true for the GCS connector.
      */
-    public static String createNewUrl()
+    @Override
+    public boolean isWriteSupported()
     {
-        Calendar calendar = new GregorianCalendar();
-        int year = calendar.get(Calendar.YEAR);
-        int month = calendar.get(Calendar.MONTH) + 1;
-        int day = calendar.get(Calendar.DAY_OF_MONTH);
-        int hour = calendar.get(Calendar.HOUR_OF_DAY);
-        int minute = calendar.get(Calendar.MINUTE);
-        /*
-         * Create the URL in the format
-         */
-        StringBuilder sb = new StringBuilder(20);
-        sb.append(FileContentStore.STORE_PROTOCOL).append(ContentStore.PROTOCOL_DELIMITER);
-        sb.append(String.format("%04d", year)).append('/');
-        sb.append(String.format("%02d", month)).append('/');
-        sb.append(String.format("%02d", day)).append('/');
-        sb.append(String.format("%02d", hour)).append('/');
-        sb.append(String.format("%02d", minute)).append('/');
-        sb.append(GUID.generate()).append(".bin");
-        if (LOG.isDebugEnabled())
-        {
-            LOG.debug("Generated new content URL: " + sb.toString());
-        }
-        return sb.toString();
+        return true;
     }
 
     /**
-     * Extracts the path from the provided contentURL
+     * {@inheritDoc}
      * <p>
-     * @param contentUrl The url of the file
-     * @return The path for the file
-     * @see org.alfresco.repo.content.AbstractContentStore#getContentUrlParts
+     * Only checks the shape of the URL (a protocol and a path), without parsing it or throwing an exception to reject it.
      */
-    public String getPath(String contentUrl)
+    @Override
+    public boolean isContentUrlSupported(String contentUrl)
     {
-        Pair<String, String> urlParts = super.getContentUrlParts(contentUrl);
-        String relativePath = urlParts.getSecond();
-        if (StringUtils.isBlank(this.rootDir))
+        if (contentUrl == null)
         {
-            return relativePath;
+            return false;
         }
-        return this.rootDir + "/" + relativePath;
+        int index = contentUrl.indexOf(ContentStore.PROTOCOL_DELIMITER);
+        return index > 0 && index + ContentStore.PROTOCOL_DELIMITER.length() < contentUrl.length();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Answers from the metadata cache, without creating a reader.
+     */
+    @Override
+    public boolean exists(String contentUrl)
+    {
+        if (!isContentUrlSupported(contentUrl))
+        {
+            throw new UnsupportedContentUrlException(this, contentUrl);
+        }
+        String path = getPath(contentUrl);
+        if (writeBehindQueue != null && writeBehindQueue.getPendingFile(path) != null)
+        {
+            return true;
+        }
+        return getMetadata(path).exists();
+    }
+
+    /**
+     * Gets the size, last modified date and generation of an object, from the metadata cache if it is there
+     *
+     * @param path The path of the object in the bucket
+     * @return The metadata of the object
+     */
+    protected GCSMetadataCache.Metadata getMetadata(String path)
+    {
+        return getMetadataCache().get(path, p -> GCSMetadataCache.Metadata.of(metrics.record(GCSMetrics.Operation.METADATA_GET, () -> getShardBucket(p).get(p, METADATA_FIELDS))));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ContentReader getReader(String contentUrl)
+    {
+        String path = getPath(contentUrl);
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("Creating reader with path: " + path + "; contentUrl: " + contentUrl);
+        }
+        File pendingFile = writeBehindQueue == null ? null : writeBehindQueue.getPendingFile(path);
+        if (pendingFile != null)
+        {
+            // Still waiting to be uploaded, serve it from the local copy
+            return new FileContentReader(pendingFile, contentUrl);
+        }
+        return new GCSContentReader(path, contentUrl, getShardBucket(path), this);
+    }
+
+    /**
+     * Opens a read of an object, joining the download of the same object already in progress if there is one, so that concurrent
+     * readers of a popular object cause a single GCS read. The download runs in the background into a spool file that every reader
+     * reads as it grows.
+     * <p>
+     * Downloads are shared by object and generation, so a reader never joins the download of another version of the object, and
+     * the readers of deduplicated content share the download of the object holding the bytes.
+     *
+     * @param blobId The object to read, including its generation
+     * @return A channel reading the object
+     * @throws IOException If the spool file can't be created or opened
+     */
+    protected ReadableByteChannel openSharedRead(BlobId blobId) throws IOException
+    {
+        while (true)
+        {
+            GCSSharedDownload download = sharedDownloads.get(blobId);
+            if (download == null)
+            {
+                File spoolFile = TempFileProvider.createTempFile("gcs-shared-", ".bin");
+                GCSSharedDownload created = new GCSSharedDownload(spoolFile, () -> storage.reader(blobId), d -> sharedDownloads.remove(blobId, d));
+                download = sharedDownloads.putIfAbsent(blobId, created);
+                if (download == null)
+                {
+                    ReadableByteChannel channel = created.join();
+                    getCoalescedReadExecutor().execute(created);
+                    return channel;
+                }
+                spoolFile.delete();
+            }
+            ReadableByteChannel channel = download.join();
+            if (channel != null)
+            {
+                if (LOG.isDebugEnabled())
+                {
+                    LOG.debug("Joined the download in progress of " + blobId);
+                }
+                return channel;
+            }
+            // Every reader of that download has closed, start a new one
+            sharedDownloads.remove(blobId, download);
+        }
+    }
+
+    /**
+     * Reads content ahead of demand so it is in the block cache and the small object cache when it is needed, for example
+     * before a reporting run or after a restart. The reads are concurrent and limited to the prefetch bandwidth. Content that
+     * none of the enabled caches would hold is skipped rather than downloaded, see {@link #isPrefetchable(GCSMetadataCache.Metadata)}.
+     *
+     * @param contentUrls The content URLs to prefetch
+     * @return The number of bytes read
+     */
+    public long prefetch(Collection<String> contentUrls)
+    {
+        if (getBlockCache() == null && getSmallObjectCache() == null)
+        {
+            LOG.warn("Neither the block cache nor the small object cache is enabled, there is nothing to prefetch into");
+            return 0;
+        }
+        return newPrefetcher().prefetch(contentUrls.iterator());
+    }
+
+    /**
+     * Prefetches all the content under a path of the store, for example <code>2024/05/</code> for the content written in
+     * May 2024. See {@link #prefetch(Collection)}. The content is listed with its metadata, so the content that is skipped
+     * isn't requested at all.
+     *
+     * @param prefix The beginning of the path of the content, relative to the root directory
+     * @return The number of bytes read
+     */
+    public long prefetchPrefix(String prefix)
+    {
+        if (getBlockCache() == null && getSmallObjectCache() == null)
+        {
+            LOG.warn("Neither the block cache nor the small object cache is enabled, there is nothing to prefetch into");
+            return 0;
+        }
+        try (GCSContentLister contentUrls = getContentUrls(prefix, true))
+        {
+            return newPrefetcher().prefetch(contentUrls);
+        }
+    }
+
+    /**
+     * Tells whether reading content leaves it in one of the enabled local caches. Content up to the small object threshold goes
+     * to the small object cache, and larger content to the block cache unless it is compressed, as compressed content is
+     * decompressed from a single stream without going through the block cache.
+     *
+     * @param metadata The metadata of the content
+     * @return <code>true</code> if prefetching the content is worth its download
+     */
+    protected boolean isPrefetchable(GCSMetadataCache.Metadata metadata)
+    {
+        if (!metadata.exists())
+        {
+            return false;
+        }
+        if (getSmallObjectCache() != null && metadata.getSize() <= smallObjectThreshold)
+        {
+            return true;
+        }
+        return metadata.getCompression() == null && getBlockCache() != null;
+    }
+
+    /**
+     * Creates a prefetcher reading on the store's prefetch executor
+     *
+     * @return The prefetcher
+     */
+    protected GCSPrefetcher newPrefetcher()
+    {
+        return new GCSPrefetcher(this, getPrefetchExecutor(), prefetchThreads, prefetchMaxBytesPerSecond);
+    }
+
+    /**
+     * Lists the content URLs of all the content in the store, in sorted order. The directories of the store are listed in parallel
+     * and the listing is consumed as it comes, so it works on buckets too large for a listing to fit in memory.
+     *
+     * @return The content URLs, the lister should be closed if it isn't consumed to the end
+     */
+    public GCSContentLister getContentUrls()
+    {
+        return getContentUrls("");
+    }
+
+    /**
+     * Lists the content URLs of the content under a path of the store, in sorted order. See {@link #getContentUrls()}.
+     *
+     * @param prefix The beginning of the path of the content relative to the root directory, for example <code>2024/05/</code>
+     * @return The content URLs, the lister should be closed if it isn't consumed to the end
+     */
+    public GCSContentLister getContentUrls(String prefix)
+    {
+        return getContentUrls(prefix, false);
+    }
+
+    /**
+     * Lists the content URLs of the content under a path of the store, in sorted order, optionally along with the metadata of
+     * their objects. See {@link #getContentUrls()}.
+     *
+     * @param prefix The beginning of the path of the content relative to the root directory, for example <code>2024/05/</code>
+     * @param metadata Whether to list the metadata of the objects too, see {@link GCSContentLister#getMetadata()}
+     * @return The content URLs, the lister should be closed if it isn't consumed to the end
+     */
+    public GCSContentLister getContentUrls(String prefix, boolean metadata)
+    {
+        return new GCSContentLister(this, getBuckets(), getListExecutor(), prefix, rootDir, listShardDepth, listPrefetch, metadata);
+    }
+
+    /**
+     * Deletes the content from the GCS. 
+     * <p>
+     * When archiving is enabled the content is first copied to the deleted content store inside GCS, without going through
+     * this node. If the copy fails the content is kept and <code>false</code> is returned so the deletion is tried again later.
+     * <p>
+     * Deleting a pointer to deduplicated content releases its reference, and the bytes are deleted with the last reference.
+     */
+    @Override
+    public boolean delete(String contentUrl)
+    {
+        String contentPath = getDeduplicatedPath(contentUrl);
+        BlobId blobId = prepareDelete(contentUrl);
+        if (!archive(contentUrl, contentPath == null ? blobId : BlobId.of(getShardBucket(contentPath).getName(), contentPath)))
+        {
+            return false;
+        }
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("Deleting blobId: " + blobId);
+        }
+        boolean deleted = metrics.record(GCSMetrics.Operation.DELETE, () -> this.storage.delete(blobId));
+        if (deleted && contentPath != null)
+        {
+            getDeduplicator().release(contentPath);
+        }
+
+        //Alfresco interface requires us to return true if the content is not found OR deleted,
+        // so we cannot use the Storage's one because it would be false in the first case.
+        return true;
+    }
+
+    /**
+     * Deletes content in batches, which is much faster than deleting the content URLs one by one.
+     * See {@link GCSBatchDeleter} to delete content URLs as they are found.
+     *
+     * @param contentUrls The content URLs to delete
+     * @return Whether each content URL was deleted or didn't exist, by content URL
+     */
+    public Map<String, Boolean> delete(Collection<String> contentUrls)
+    {
+        GCSBatchDeleter deleter = newBatchDeleter();
+        for (String contentUrl : contentUrls)
+        {
+            deleter.delete(contentUrl);
+        }
+        return deleter.finish();
+    }
+
+    /**
+     * Creates a deleter that accumulates content URLs and deletes them in concurrent batches
+     *
+     * @return A new batch deleter
+     */
+    public GCSBatchDeleter newBatchDeleter()
+    {
+        return new GCSBatchDeleter(this, storage, getDeleteExecutor());
+    }
+
+    /**
+     * Finds the object holding the bytes of content about to be deleted, if it is deduplicated
+     *
+     * @param contentUrl The content URL to delete
+     * @return The path of the shared object, or <code>null</code> if the content isn't deduplicated
+     */
+    protected String getDeduplicatedPath(String contentUrl)
+    {
+        if (!isPointerLookup())
+        {
+            return null;
+        }
+        return getMetadata(getPath(contentUrl)).getContentPath();
+    }
+
+    /**
+     * Checks if objects may be pointers to deduplicated content, which deletes have to look up to release their reference
+     *
+     * @return <code>true</code> if deduplication is enabled or content was deduplicated before it was disabled
+     */
+    protected boolean isPointerLookup()
+    {
+        return deduplication || encodedContent;
+    }
+
+    /**
+     * Checks if objects may be pointers to deduplicated content or compressed, which reads need the metadata up front to find out.
+     * Otherwise a read is opened straight from the path of the object.
+     *
+     * @return <code>true</code> if deduplication or compression is enabled, or content was written with them before they were disabled
+     */
+    protected boolean isEncodingLookup()
+    {
+        return isPointerLookup() || isCompression();
+    }
+
+    /**
+     * Forgets everything kept locally about content that is about to be deleted
+     *
+     * @param contentUrl The content URL to delete
+     * @return The object to delete
+     */
+    protected BlobId prepareDelete(String contentUrl)
+    {
+        String path = getPath(contentUrl);
+        if (writeBehindQueue != null)
+        {
+            writeBehindQueue.remove(path);
+        }
+        getMetadataCache().invalidate(path);
+        if (smallObjectCache != null)
+        {
+            smallObjectCache.invalidate(path);
+        }
+        // Shared downloads are keyed by generation, so the content written at this path later can't join them
+        return BlobId.of(getShardBucket(path).getName(), path);
+    }
+
+    /**
+     * Copies content that is about to be deleted to the deleted content store, if archiving is enabled.
+     * The copy is a server-side rewrite so the bytes never go through this node.
+     *
+     * @param contentUrl The content URL being deleted
+     * @param blobId The object being deleted
+     * @return <code>true</code> if the content can be deleted: it was archived, there was nothing to archive or archiving is disabled
+     */
+    protected boolean archive(String contentUrl, BlobId blobId)
+    {
+        if (!archiveOnDelete || deletedContentStore == null)
+        {
+            return true;
+        }
+        String targetPath = deletedContentStore.getPath(contentUrl);
+        BlobId target = BlobId.of(deletedContentStore.getShardBucket(targetPath).getName(), targetPath);
+        try
+        {
+            metrics.record(GCSMetrics.Operation.ARCHIVE, () -> storage.copy(Storage.CopyRequest.of(blobId, target)).getResult());
+            if (LOG.isDebugEnabled())
+            {
+                LOG.debug("Archived " + blobId + " to " + target);
+            }
+            return true;
+        }
+        catch (StorageException e)
+        {
+            if (e.getCode() == 404)
+            {
+                // Nothing to archive
+                return true;
+            }
+            LOG.error("Could not archive " + blobId + " to " + target + ", it won't be deleted", e);
+            return false;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ContentWriter getWriterInternal(ContentReader existingContentReader, String newContentUrl) throws ContentIOException
+    {
+        try
+        {
+            String contentUrl;
+            if (newContentUrl == null || StringUtils.isBlank(newContentUrl))
+            {
+                contentUrl = createNewUrl();
+            }
+            else
+            {
+                contentUrl = newContentUrl;
+            }
+            String path = getPath(contentUrl);
+            return new GCSContentWriter(path, contentUrl, existingContentReader, getShardBucket(path), this);
+        }
+        catch (Throwable e)
+        {
+            throw new ContentIOException("GCSContentStore.getWriterInternal(): Failed to get writer.");
+        }
+    }
+
+    /**
+     * Resolves the buckets content is spread across, then uploads the content that a previous run left waiting for its background
+     * upload, such as after a crash. Called when the application context is started, once all the properties are set.
+     */
+    public void init()
+    {
+        initShards();
+        if (!writeBehind)
+        {
+            return;
+        }
+        Set<String> bucketNames = new HashSet<>();
+        for (Bucket shard : getBuckets())
+        {
+            bucketNames.add(shard.getName());
+        }
+        int recovered = getWriteBehindQueue().recover(bucketNames, this::uploadSpooled, path -> storage.delete(BlobId.of(getShardBucket(path).getName(), path)));
+        if (recovered > 0)
+        {
+            LOG.info("Recovered " + recovered + " background uploads of " + rootDir);
+        }
+    }
+
+    /**
+     * Uploads content recovered from the write-behind spool directory. The writer is gone, so the content isn't compressed and
+     * its checksum, if uploads are checked, is computed from the file. Otherwise it is uploaded like the writer uploads it.
+     *
+     * @param path The path of the content in the bucket
+     * @param file The spooled content
+     */
+    protected void uploadSpooled(String path, File file)
+    {
+        try
+        {
+            String crc32c = uploadChecksum ? checksum(file) : null;
+            BlobInfo blobInfo = BlobInfo.newBuilder(BlobId.of(getShardBucket(path).getName(), path)).setContentType(MediaType.OCTET_STREAM.toString())
+                    .build();
+            uploadFile(file, blobInfo, crc32c, false);
+        }
+        finally
+        {
+            getMetadataCache().invalidate(path);
+        }
+    }
+
+    /**
+     * Computes the checksum of a spooled file, read into a pooled direct buffer
+     *
+     * @param file The spooled content
+     * @return The CRC32C of the file, as GCS encodes it
+     */
+    private String checksum(File file)
+    {
+        GCSCrc32c checksum = new GCSCrc32c();
+        GCSBufferPool bufferPool = getUploadBufferPool();
+        ByteBuffer buffer = bufferPool.acquire();
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            while (in.read(buffer) >= 0)
+            {
+                buffer.flip();
+                checksum.update(buffer);
+                buffer.clear();
+            }
+            return checksum.getValue();
+        }
+        catch (IOException e)
+        {
+            throw new ContentIOException("Could not read " + file, e);
+        }
+        finally
+        {
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Uploads spooled content as a single upload or as composite parts. Used by writers and by the write-behind recovery, so
+     * that content is uploaded the same way whether it is the first attempt or not.
+     *
+     * @param file The spooled content, already compressed if it is uploaded compressed
+     * @param blobInfo The object to upload the content as
+     * @param crc32c The checksum of the bytes of the file, checked by GCS, or <code>null</code> not to check the upload
+     * @param ifNotExists <code>true</code> to fail if the object already exists
+     * @return The object created, or <code>null</code> if it isn't known
+     */
+    protected Blob uploadFile(File file, BlobInfo blobInfo, String crc32c, boolean ifNotExists)
+    {
+        GCSMetrics.Timer timer = getMetrics().start(GCSMetrics.Operation.UPLOAD);
+        try
+        {
+            Blob blob = null;
+            if (isCompositeUpload(file.length()))
+            {
+                // GCS computes the checksum of the composed object from those of the parts
+                blob = ifNotExists ? getCompositeUploader().upload(file, blobInfo, BlobTargetOption.doesNotExist())
+                        : getCompositeUploader().upload(file, blobInfo);
+                if (crc32c != null)
+                {
+                    checkUpload(blob, crc32c);
+                }
+            }
+            else if (crc32c != null)
+            {
+                // GCS rejects the upload if the checksum of the bytes it received doesn't match
+                BlobInfo checked = blobInfo.toBuilder().setCrc32c(crc32c).build();
+                if (ifNotExists)
+                {
+                    copy(file, checked, BlobWriteOption.crc32cMatch(), BlobWriteOption.doesNotExist());
+                }
+                else
+                {
+                    copy(file, checked, BlobWriteOption.crc32cMatch());
+                }
+            }
+            else if (ifNotExists)
+            {
+                copy(file, blobInfo, BlobWriteOption.doesNotExist());
+            }
+            else
+            {
+                copy(file, blobInfo);
+            }
+            timer.success(file.length());
+            return blob;
+        }
+        catch (RuntimeException e)
+        {
+            timer.failure(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Deletes an object whose checksum isn't the one of the bytes sent
+     *
+     * @param blob The object uploaded, with its checksum and generation
+     * @param crc32c The checksum of the bytes sent
+     */
+    protected void checkUpload(Blob blob, String crc32c)
+    {
+        if (crc32c.equals(blob.getCrc32c()))
+        {
+            return;
+        }
+        String message = "The CRC32C of " + blob.getName() + " is " + blob.getCrc32c() + " instead of " + crc32c;
+        try
+        {
+            storage.delete(BlobId.of(blob.getBucket(), blob.getName(), blob.getGeneration()));
+        }
+        catch (RuntimeException e)
+        {
+            throw new ContentIOException(message + " and the upload couldn't be deleted", e);
+        }
+        throw new ContentIOException(message + ", the upload was deleted");
+    }
+
+    /**
+     * Copies spooled content into a single upload. The file is read into a pooled direct buffer that is written straight to the
+     * upload channel, without going through streams and heap buffers.
+     *
+     * @param file The spooled content
+     * @param blobInfo The object to upload the content as
+     * @param options The preconditions of the upload
+     */
+    private void copy(File file, BlobInfo blobInfo, BlobWriteOption... options)
+    {
+        GCSBufferPool bufferPool = getUploadBufferPool();
+        ByteBuffer buffer = bufferPool.acquire();
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ); WriteChannel out = storage.writer(blobInfo, options))
+        {
+            out.setChunkSize(uploadChunkSize);
+            while (in.read(buffer) >= 0 || buffer.position() > 0)
+            {
+                buffer.flip();
+                out.write(buffer);
+                buffer.compact();
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            throw new ContentIOException("Could not write", e);
+        }
+        finally
+        {
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Waits for the background uploads to finish and stops publishing metrics. Called when the application context is closed.
+     */
+    public void shutdown()
+    {
+        metrics.unregister();
+        if (writeBehindQueue != null)
+        {
+            writeBehindQueue.shutdown();
+        }
+        if (compositeUploader != null)
+        {
+            compositeUploader.shutdown();
+        }
+        if (parallelReadExecutor != null)
+        {
+            parallelReadExecutor.shutdownNow();
+        }
+        if (coalescedReadExecutor != null)
+        {
+            coalescedReadExecutor.shutdownNow();
+        }
+        if (prefetchExecutor != null)
+        {
+            prefetchExecutor.shutdownNow();
+        }
+        if (listExecutor != null)
+        {
+            listExecutor.shutdownNow();
+        }
+        if (deleteExecutor != null)
+        {
+            deleteExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Gets the metadata cache shared by all the readers of this store, creating it on first use
+     *
+     * @return The metadata cache
+     */
+    public GCSMetadataCache getMetadataCache()
+    {
+        if (metadataCache == null)
+        {
+            synchronized (this)
+            {
+                if (metadataCache == null)
+                {
+                    metadataCache = new GCSMetadataCache(metadataCacheMaxEntries, metadataCacheTtlSeconds, metadataCacheNotFoundTtlSeconds);
+                }
+            }
+        }
+        return metadataCache;
+    }
+
+    /**
+     * Gets the cache of small objects shared by all the readers of this store, creating it on first use
+     *
+     * @return The small object cache or <code>null</code> if it is disabled
+     */
+    public GCSSmallObjectCache getSmallObjectCache()
+    {
+        if (smallObjectThreshold <= 0 || smallObjectCacheMaxSize <= 0)
+        {
+            return null;
+        }
+        if (smallObjectCache == null)
+        {
+            synchronized (this)
+            {
+                if (smallObjectCache == null)
+                {
+                    smallObjectCache = new GCSSmallObjectCache(smallObjectCacheMaxSize);
+                }
+            }
+        }
+        return smallObjectCache;
+    }
+
+    /**
+     * Gets the local disk cache of blocks shared by all the readers of this store, creating it on first use
+     *
+     * @return The block cache or <code>null</code> if it is disabled
+     */
+    public GCSBlockCache getBlockCache()
+    {
+        if (blockCacheMaxSize <= 0 || StringUtils.isBlank(blockCacheDirectory))
+        {
+            return null;
+        }
+        if (blockCache == null)
+        {
+            synchronized (this)
+            {
+                if (blockCache == null)
+                {
+                    try
+                    {
+                        blockCache = new GCSBlockCache(new File(blockCacheDirectory), blockCacheBlockSize, blockCacheMaxSize);
+                    }
+                    catch (IOException e)
+                    {
+                        throw new ContentIOException("Could not create the block cache in " + blockCacheDirectory, e);
+                    }
+                }
+            }
+        }
+        return blockCache;
+    }
+
+    /**
+     * Gets the statistics of the GCS operations made by this store, its readers and writers
+     *
+     * @return The metrics of this store
+     */
+    public GCSMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * Gets the reference counting of deduplicated content, creating it on first use
+     *
+     * @return The deduplicator
+     */
+    protected GCSDeduplicator getDeduplicator()
+    {
+        if (deduplicator == null)
+        {
+            synchronized (this)
+            {
+                if (deduplicator == null)
+                {
+                    deduplicator = new GCSDeduplicator(storage, bucket.getName(), metrics);
+                }
+            }
+        }
+        return deduplicator;
+    }
+
+    /**
+     * Gets the pool of direct buffers spooled content is read into when it is uploaded, creating it on first use
+     *
+     * @return The buffer pool
+     */
+    protected GCSBufferPool getUploadBufferPool()
+    {
+        if (uploadBufferPool == null)
+        {
+            synchronized (this)
+            {
+                if (uploadBufferPool == null)
+                {
+                    uploadBufferPool = new GCSBufferPool(uploadBufferSize, uploadBufferPoolSize);
+                }
+            }
+        }
+        return uploadBufferPool;
+    }
+
+    /**
+     * Gets the compression of uploaded content, creating it on first use
+     *
+     * @return The compressor, which compresses nothing if no mimetype is compressed
+     */
+    protected GCSCompressor getCompressor()
+    {
+        if (compressor == null)
+        {
+            synchronized (this)
+            {
+                if (compressor == null)
+                {
+                    compressor = new GCSCompressor(compressMimetypes, compressMinSize, compressMaxRatio);
+                }
+            }
+        }
+        return compressor;
+    }
+
+    /**
+     * Checks if uploaded content may be compressed. Readers decompress content according to its metadata while it is enabled or
+     * {@link #isEncodedContent()} is set.
+     *
+     * @return <code>true</code> if some mimetypes are compressed
+     */
+    public boolean isCompression()
+    {
+        return getCompressor().isEnabled();
+    }
+
+    /**
+     * Checks if content of the given size should be uploaded as parallel composite parts
+     *
+     * @param size The size of the spooled content
+     * @return <code>true</code> if it should be uploaded with {@link #getCompositeUploader()}
+     */
+    protected boolean isCompositeUpload(long size)
+    {
+        return compositeUploadThreshold > 0 && compositeUploadParts > 1 && size >= compositeUploadThreshold;
+    }
+
+    /**
+     * Gets the composite uploader, creating it on first use
+     *
+     * @return The composite uploader
+     */
+    protected GCSCompositeUploader getCompositeUploader()
+    {
+        if (compositeUploader == null)
+        {
+            synchronized (this)
+            {
+                if (compositeUploader == null)
+                {
+                    compositeUploader = new GCSCompositeUploader(storage, compositeUploadParts, compositeUploadThreads);
+                }
+            }
+        }
+        return compositeUploader;
+    }
+
+    /**
+     * Gets the background upload queue, creating it on first use
+     *
+     * @return The write-behind queue
+     */
+    protected GCSWriteBehindQueue getWriteBehindQueue()
+    {
+        if (writeBehindQueue == null)
+        {
+            synchronized (this)
+            {
+                if (writeBehindQueue == null)
+                {
+                    writeBehindQueue = new GCSWriteBehindQueue(writeBehindThreads, writeBehindQueueSize, writeBehindMaxAttempts, writeBehindRetryDelay);
+                }
+            }
+        }
+        return writeBehindQueue;
+    }
+
+    /**
+     * Checks if an object of the given size should be read as parallel ranges
+     *
+     * @param size The size of the object
+     * @return <code>true</code> if it should be read with a {@link GCSRangedReadChannel}
+     */
+    protected boolean isParallelRead(long size)
+    {
+        return parallelReadThreshold > 0 && size >= parallelReadThreshold;
+    }
+
+    /**
+     * Gets the executor downloading the ranges of parallel reads, creating it on first use
+     *
+     * @return The executor
+     */
+    protected ExecutorService getParallelReadExecutor()
+    {
+        if (parallelReadExecutor == null)
+        {
+            synchronized (this)
+            {
+                if (parallelReadExecutor == null)
+                {
+                    TraceableThreadFactory threadFactory = new TraceableThreadFactory();
+                    threadFactory.setNamePrefix("GCSParallelRead");
+                    threadFactory.setThreadDaemon(true);
+                    parallelReadExecutor = Executors.newFixedThreadPool(parallelReadThreads, threadFactory);
+                }
+            }
+        }
+        return parallelReadExecutor;
+    }
+
+    /**
+     * Gets the executor running the shared downloads, creating it on first use
+     *
+     * @return The executor
+     */
+    protected ExecutorService getCoalescedReadExecutor()
+    {
+        if (coalescedReadExecutor == null)
+        {
+            synchronized (this)
+            {
+                if (coalescedReadExecutor == null)
+                {
+                    TraceableThreadFactory threadFactory = new TraceableThreadFactory();
+                    threadFactory.setNamePrefix("GCSSharedDownload");
+                    threadFactory.setThreadDaemon(true);
+                    coalescedReadExecutor = Executors.newFixedThreadPool(coalescedReadThreads, threadFactory);
+                }
+            }
+        }
+        return coalescedReadExecutor;
+    }
+
+    /**
+     * Gets the executor listing directories, creating it on first use
+     *
+     * @return The executor
+     */
+    protected ExecutorService getListExecutor()
+    {
+        if (listExecutor == null)
+        {
+            synchronized (this)
+            {
+                if (listExecutor == null)
+                {
+                    TraceableThreadFactory threadFactory = new TraceableThreadFactory();
+                    threadFactory.setNamePrefix("GCSList");
+                    threadFactory.setThreadDaemon(true);
+                    listExecutor = Executors.newFixedThreadPool(listThreads, threadFactory);
+                }
+            }
+        }
+        return listExecutor;
+    }
+
+    /**
+     * Gets the executor prefetching content, creating it on first use
+     *
+     * @return The executor
+     */
+    protected ExecutorService getPrefetchExecutor()
+    {
+        if (prefetchExecutor == null)
+        {
+            synchronized (this)
+            {
+                if (prefetchExecutor == null)
+                {
+                    TraceableThreadFactory threadFactory = new TraceableThreadFactory();
+                    threadFactory.setNamePrefix("GCSPrefetch");
+                    threadFactory.setThreadDaemon(true);
+                    prefetchExecutor = Executors.newFixedThreadPool(prefetchThreads, threadFactory);
+                }
+            }
+        }
+        return prefetchExecutor;
+    }
+
+    /**
+     * Gets the executor sending delete batches, creating it on first use
+     *
+     * @return The executor
+     */
+    protected ExecutorService getDeleteExecutor()
+    {
+        if (deleteExecutor == null)
+        {
+            synchronized (this)
+            {
+                if (deleteExecutor == null)
+                {
+                    TraceableThreadFactory threadFactory = new TraceableThreadFactory();
+                    threadFactory.setNamePrefix("GCSBatchDelete");
+                    threadFactory.setThreadDaemon(true);
+                    deleteExecutor = Executors.newFixedThreadPool(deleteThreads, threadFactory);
+                }
+            }
+        }
+        return deleteExecutor;
+    }
+
+    /**
+     * Searches for the credentials file and reads it.
+     * <ul>
+     *   <li>First based on the file directly on the classpath, most likely shipped within a java jar</li>
+     *   <li>If not found, searches in the path given</li>
+     * </ul>
+     * @param keyPath path where to search for the key
+     * @param keyFileName filename of the key
+     * @return json key file as inputstream
+     * @throws Exception
+     */
+    private InputStream getCredentials(String keyPath, String keyFileName) throws Exception
+    {
+        /*
+         * We first try to get the file directly. If it can't be found we search the extension folder
+         */
+        InputStream is = GCSContentStore.class.getClassLoader().getResourceAsStream(keyFileName);
+        if (is == null)
+        {
+            if (LOG.isDebugEnabled())
+            {
+                LOG.debug("The file couldn't be found in the classpath. Trying " + keyPath + keyFileName);
+            }
+            is = GCSContentStore.class.getClassLoader().getResourceAsStream(keyPath + keyFileName);
+        }
+        if (is == null)
+        {
+            throw new Exception("The file " + keyFileName + " was not found in the classpath.");
+        }
+        return is;
+    }
+
+    /**
+     * Creates a new content URL path that will be used to save the content to.
+     * For example for something created on the 5th of October of 2019 at 13:02 the URL generated will be
+     * <code>
+     *    store://2019/10/05/13/02/[uuid].bin
+     * <code>
+     * @return Returns a new and unique content URL
+     */
+    public static String createNewUrl()
+    {
+        Calendar calendar = new GregorianCalendar();
+        int year = calendar.get(Calendar.YEAR);
+        int month = calendar.get(Calendar.MONTH) + 1;
+        int day = calendar.get(Calendar.DAY_OF_MONTH);
+        int hour = calendar.get(Calendar.HOUR_OF_DAY);
+        int minute = calendar.get(Calendar.MINUTE);
+        /*
+         * Create the URL in the format
+         */
+        StringBuilder sb = new StringBuilder(20);
+        sb.append(FileContentStore.STORE_PROTOCOL).append(ContentStore.PROTOCOL_DELIMITER);
+        sb.append(String.format("%04d", year)).append('/');
+        sb.append(String.format("%02d", month)).append('/');
+        sb.append(String.format("%02d", day)).append('/');
+        sb.append(String.format("%02d", hour)).append('/');
+        sb.append(String.format("%02d", minute)).append('/');
+        sb.append(GUID.generate()).append(".bin");
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("Generated new content URL: " + sb.toString());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Extracts the path from the provided contentURL
+     * <p>
+     * @param contentUrl The url of the file
+     * @return The path for the file
+     * @see org.alfresco.repo.content.AbstractContentStore#getContentUrlParts
+     */
+    public String getPath(String contentUrl)
+    {
+        Pair<String, String> urlParts = super.getContentUrlParts(contentUrl);
+        String relativePath = urlParts.getSecond();
+        if (StringUtils.isBlank(this.rootDir))
+        {
+            return relativePath;
+        }
+        return this.rootDir + "/" + relativePath;
+    }
+
+    /**
+     * Builds the content URL of an object, the reverse of {@link #getPath(String)}
+     *
+     * @param path The path of the object in the bucket
+     * @return The content URL
+     */
+    public String getContentUrl(String path)
+    {
+        String relativePath = path;
+        if (StringUtils.isNotBlank(this.rootDir) && path.startsWith(this.rootDir + "/"))
+        {
+            relativePath = path.substring(this.rootDir.length() + 1);
+        }
+        return FileContentStore.STORE_PROTOCOL + ContentStore.PROTOCOL_DELIMITER + relativePath;
+    }
+
+    /*
+     * Getters and setters
+     */
+
+    public boolean isStreamingUpload()
+    {
+        return streamingUpload;
+    }
+
+    /**
+     * @param streamingUpload <code>true</code> to write content straight to a resumable upload instead of spooling it to a temporary file
+     */
+    public void setStreamingUpload(boolean streamingUpload)
+    {
+        this.streamingUpload = streamingUpload;
+    }
+
+    public int getUploadChunkSize()
+    {
+        return uploadChunkSize;
+    }
+
+    /**
+     * @param uploadChunkSize The chunk size of resumable uploads in bytes, rounded up by the client to a multiple of 256KB
+     */
+    public void setUploadChunkSize(int uploadChunkSize)
+    {
+        this.uploadChunkSize = uploadChunkSize;
+    }
+
+    /**
+     * @param uploadBufferSize The size in bytes of the direct buffers spooled content is read into when it is uploaded, best matched to
+     *            the upload chunk size
+     */
+    public void setUploadBufferSize(int uploadBufferSize)
+    {
+        this.uploadBufferSize = uploadBufferSize;
+    }
+
+    /**
+     * @param uploadBufferPoolSize The maximum number of idle upload buffers kept, each taking the buffer size of direct memory
+     */
+    public void setUploadBufferPoolSize(int uploadBufferPoolSize)
+    {
+        this.uploadBufferPoolSize = uploadBufferPoolSize;
+    }
+
+    public boolean isWriteBehind()
+    {
+        return writeBehind;
+    }
+
+    /**
+     * @param writeBehind <code>true</code> to upload spooled content in the background once the writer is closed
+     */
+    public void setWriteBehind(boolean writeBehind)
+    {
+        this.writeBehind = writeBehind;
+    }
+
+    public void setWriteBehindThreads(int writeBehindThreads)
+    {
+        this.writeBehindThreads = writeBehindThreads;
+    }
+
+    public void setWriteBehindQueueSize(int writeBehindQueueSize)
+    {
+        this.writeBehindQueueSize = writeBehindQueueSize;
+    }
+
+    public void setWriteBehindMaxAttempts(int writeBehindMaxAttempts)
+    {
+        this.writeBehindMaxAttempts = writeBehindMaxAttempts;
+    }
+
+    /**
+     * @param writeBehindRetryDelay How long in milliseconds to wait before trying a failed background upload again, doubled at
+     *            each attempt
+     */
+    public void setWriteBehindRetryDelay(long writeBehindRetryDelay)
+    {
+        this.writeBehindRetryDelay = writeBehindRetryDelay;
+    }
+
+    public boolean isUploadChecksum()
+    {
+        return uploadChecksum;
+    }
+
+    /**
+     * @param uploadChecksum <code>true</code> to compute the CRC32C of content as it is written and have GCS check the upload against it
+     */
+    public void setUploadChecksum(boolean uploadChecksum)
+    {
+        this.uploadChecksum = uploadChecksum;
+    }
+
+    public boolean isReadChecksum()
+    {
+        return readChecksum;
+    }
+
+    /**
+     * @param readChecksum <code>true</code> to check whole reads against the CRC32C of the object, which needs its metadata up front
+     */
+    public void setReadChecksum(boolean readChecksum)
+    {
+        this.readChecksum = readChecksum;
+    }
+
+    public boolean isDeduplication()
+    {
+        return deduplication;
+    }
+
+    /**
+     * @param deduplication <code>true</code> to store identical content once, addressed by its hash. To disable it once content has been
+     *            written, set {@link #setEncodedContent(boolean)} so that content is still read and deleted through its pointer.
+     */
+    public void setDeduplication(boolean deduplication)
+    {
+        this.deduplication = deduplication;
+    }
+
+    public boolean isEncodedContent()
+    {
+        return encodedContent;
+    }
+
+    /**
+     * @param encodedContent <code>true</code> if the bucket holds content written while deduplication or compression were enabled and they
+     *            are disabled now. Reads and deletes then look the metadata up first, to follow pointers and decompress content as if
+     *            they were still enabled.
+     */
+    public void setEncodedContent(boolean encodedContent)
+    {
+        this.encodedContent = encodedContent;
+    }
+
+    /**
+     * @param shardBucketNames Comma separated buckets new content is spread across along with the primary bucket, to write faster
+     *            than a single bucket allows. Empty keeps all content in the primary bucket. It mustn't change once content has been
+     *            written, as the bucket of existing content would change too: add buckets with {@link #setShardAdditions(String)}.
+     *            The buckets are resolved by {@link #init()}.
+     */
+    public void setShardBucketNames(String shardBucketNames)
+    {
+        this.shardBucketNames = StringUtils.defaultString(shardBucketNames);
+    }
+
+    /**
+     * @param shardSince Content URLs created before this time, as <code>yyyy/MM/dd/HH/mm</code> in the local time zone, stay in the
+     *            primary bucket. Set it to when sharding is enabled on a store that already holds content. Empty spreads all content.
+     */
+    public void setShardSince(String shardSince)
+    {
+        this.shardSince = StringUtils.trimToEmpty(shardSince);
+    }
+
+    /**
+     * @param shardAdditions Buckets added to the ones content is spread across, as semicolon separated
+     *            <code>yyyy/MM/dd/HH/mm=bucket,bucket</code> entries in chronological order. Content URLs created from that time on, in
+     *            the local time zone, are spread across the added buckets too, while existing content stays where it is. The time must
+     *            be later than when every node runs with the entry, or content written in between couldn't be found.
+     */
+    public void setShardAdditions(String shardAdditions)
+    {
+        this.shardAdditions = StringUtils.defaultString(shardAdditions);
+    }
+
+    /**
+     * @param compressMimetypes Comma separated mimetypes compressed before they are uploaded, such as <code>text/*,application/json</code>.
+     *            Empty disables it. Content compressed before it is disabled is still decompressed when it is read with
+     *            {@link #setEncodedContent(boolean)}.
+     */
+    public void setCompressMimetypes(String compressMimetypes)
+    {
+        this.compressMimetypes = compressMimetypes;
+    }
+
+    public void setCompressMinSize(long compressMinSize)
+    {
+        this.compressMinSize = compressMinSize;
+    }
+
+    /**
+     * @param compressMaxRatio Compressed content is only kept if it is at most this fraction of the original size
+     */
+    public void setCompressMaxRatio(double compressMaxRatio)
+    {
+        this.compressMaxRatio = compressMaxRatio;
+    }
+
+    /**
+     * @param compositeUploadThreshold The size in bytes from which spooled content is uploaded as parallel composite parts, 0 to disable
+     */
+    public void setCompositeUploadThreshold(long compositeUploadThreshold)
+    {
+        this.compositeUploadThreshold = compositeUploadThreshold;
+    }
+
+    /**
+     * @param compositeUploadParts The number of parts a composite upload is split into, at most 32
+     */
+    public void setCompositeUploadParts(int compositeUploadParts)
+    {
+        this.compositeUploadParts = compositeUploadParts;
+    }
+
+    public void setCompositeUploadThreads(int compositeUploadThreads)
+    {
+        this.compositeUploadThreads = compositeUploadThreads;
+    }
+
+    public long getParallelReadThreshold()
+    {
+        return parallelReadThreshold;
+    }
+
+    /**
+     * @param parallelReadThreshold The size in bytes from which objects are read as parallel ranges, 0 to disable
+     */
+    public void setParallelReadThreshold(long parallelReadThreshold)
+    {
+        this.parallelReadThreshold = parallelReadThreshold;
+    }
+
+    public int getParallelReadRangeSize()
+    {
+        return parallelReadRangeSize;
+    }
+
+    public void setParallelReadRangeSize(int parallelReadRangeSize)
+    {
+        this.parallelReadRangeSize = parallelReadRangeSize;
+    }
+
+    public int getParallelReadPrefetch()
+    {
+        return parallelReadPrefetch;
+    }
+
+    /**
+     * @param parallelReadPrefetch The number of ranges a parallel read downloads ahead, which bounds the memory it uses
+     */
+    public void setParallelReadPrefetch(int parallelReadPrefetch)
+    {
+        this.parallelReadPrefetch = parallelReadPrefetch;
+    }
+
+    public void setParallelReadThreads(int parallelReadThreads)
+    {
+        this.parallelReadThreads = parallelReadThreads;
+    }
+
+    public boolean isSeekableRead()
+    {
+        return seekableRead;
+    }
+
+    /**
+     * @param seekableRead <code>true</code> for file channels to read the object with range requests as it is accessed
+     */
+    public void setSeekableRead(boolean seekableRead)
+    {
+        this.seekableRead = seekableRead;
+    }
+
+    public int getSeekableReadBlockSize()
+    {
+        return seekableReadBlockSize;
+    }
+
+    public void setSeekableReadBlockSize(int seekableReadBlockSize)
+    {
+        this.seekableReadBlockSize = seekableReadBlockSize;
+    }
+
+    public int getSeekableReadCacheBlocks()
+    {
+        return seekableReadCacheBlocks;
+    }
+
+    public void setSeekableReadCacheBlocks(int seekableReadCacheBlocks)
+    {
+        this.seekableReadCacheBlocks = seekableReadCacheBlocks;
+    }
+
+    public int getSmallObjectThreshold()
+    {
+        return smallObjectThreshold;
+    }
+
+    /**
+     * @param smallObjectThreshold The size up to which objects are written through memory and cached in memory when read, 0 disables it
+     */
+    public void setSmallObjectThreshold(int smallObjectThreshold)
+    {
+        this.smallObjectThreshold = smallObjectThreshold;
+    }
+
+    /**
+     * @param smallObjectCacheMaxSize The maximum total size in bytes of the cached small objects, 0 disables the cache
+     */
+    public void setSmallObjectCacheMaxSize(long smallObjectCacheMaxSize)
+    {
+        this.smallObjectCacheMaxSize = smallObjectCacheMaxSize;
+    }
+
+    /**
+     * @param listShardDepth The number of directory levels walked before listing everything under them, from 1 (years) to 5 (minutes)
+     */
+    public void setListShardDepth(int listShardDepth)
+    {
+        this.listShardDepth = listShardDepth;
+    }
+
+    public void setListPrefetch(int listPrefetch)
+    {
+        this.listPrefetch = listPrefetch;
+    }
+
+    public void setListThreads(int listThreads)
+    {
+        this.listThreads = listThreads;
+    }
+
+    public void setPrefetchThreads(int prefetchThreads)
+    {
+        this.prefetchThreads = prefetchThreads;
+    }
+
+    /**
+     * @param prefetchMaxBytesPerSecond The bandwidth shared by all the prefetch reads, 0 for unlimited
+     */
+    public void setPrefetchMaxBytesPerSecond(long prefetchMaxBytesPerSecond)
+    {
+        this.prefetchMaxBytesPerSecond = prefetchMaxBytesPerSecond;
+    }
+
+    public boolean isCoalescedRead()
+    {
+        return coalescedRead;
+    }
+
+    /**
+     * @param coalescedRead <code>true</code> for concurrent reads of the same object to share a single download
+     */
+    public void setCoalescedRead(boolean coalescedRead)
+    {
+        this.coalescedRead = coalescedRead;
+    }
+
+    public void setCoalescedReadThreads(int coalescedReadThreads)
+    {
+        this.coalescedReadThreads = coalescedReadThreads;
+    }
+
+    /**
+     * @param blockCacheDirectory The directory of the block cache, on a local disk and not shared with anything else
+     */
+    public void setBlockCacheDirectory(String blockCacheDirectory)
+    {
+        this.blockCacheDirectory = blockCacheDirectory;
+    }
+
+    public void setBlockCacheBlockSize(int blockCacheBlockSize)
+    {
+        this.blockCacheBlockSize = blockCacheBlockSize;
+    }
+
+    /**
+     * @param blockCacheMaxSize The maximum size of the block cache in bytes, 0 disables it
+     */
+    public void setBlockCacheMaxSize(long blockCacheMaxSize)
+    {
+        this.blockCacheMaxSize = blockCacheMaxSize;
+    }
+
+    public void setMetadataCacheMaxEntries(int metadataCacheMaxEntries)
+    {
+        this.metadataCacheMaxEntries = metadataCacheMaxEntries;
+    }
+
+    /**
+     * @param metadataCacheTtlSeconds How long cached size, last modified date and generation are valid for, 0 to disable the cache
+     */
+    public void setMetadataCacheTtlSeconds(long metadataCacheTtlSeconds)
+    {
+        this.metadataCacheTtlSeconds = metadataCacheTtlSeconds;
+    }
+
+    /**
+     * @param metadataCacheNotFoundTtlSeconds How long missing objects are cached for, 0 to never cache them. Kept short so content
+     *            written by another node is found soon after it was looked up.
+     */
+    public void setMetadataCacheNotFoundTtlSeconds(long metadataCacheNotFoundTtlSeconds)
+    {
+        this.metadataCacheNotFoundTtlSeconds = metadataCacheNotFoundTtlSeconds;
+    }
+
+    /**
+     * @param deleteThreads The number of delete batches sent at the same time
+     */
+    public void setDeleteThreads(int deleteThreads)
+    {
+        this.deleteThreads = deleteThreads;
+    }
+
+    /**
+     * @param archiveOnDelete <code>true</code> to copy content to the deleted content store before deleting it
+     */
+    public void setArchiveOnDelete(boolean archiveOnDelete)
+    {
+        this.archiveOnDelete = archiveOnDelete;
+    }
+
+    /**
+     * @param deletedContentStore The store deleted content is archived to. Its bucket must be writable with this store's credentials.
+     */
+    public void setDeletedContentStore(GCSContentStore deletedContentStore)
+    {
+        this.deletedContentStore = deletedContentStore;
     }
 }
@@ -1,20 +1,18 @@
 package com.mintel.gcs;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.nio.channels.Channels;
 
 import org.alfresco.service.cmr.repository.ContentIOException;
 import org.alfresco.service.cmr.repository.ContentStreamListener;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
-import com.google.api.client.util.ByteStreams;
-import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Blob;
 import com.google.cloud.storage.BlobInfo;
 import com.google.cloud.storage.Bucket;
-import com.google.common.net.MediaType;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.Storage.BlobGetOption;
+import com.google.cloud.storage.Storage.BlobTargetOption;
 
 /**
  * Listens for notifications. This includes receiving notifications of the opening and closing of the content streams.
@@ -26,6 +24,7 @@ import com.google.common.net.MediaType;
  */
 public class GCSContentStreamListener implements ContentStreamListener
 {
+    private static final Log LOG = LogFactory.getLog(GCSContentStreamListener.class);
     /**
      * The bucket where the content should be
      */
@@ -52,45 +51,222 @@ public class GCSContentStreamListener implements ContentStreamListener
     @Override
     public void contentStreamClosed() throws ContentIOException
     {
+        byte[] content = writer.getContent();
+        if (writer.getContentHash() != null)
+        {
+            deduplicate(content, writer.getTempFile(), writer.getContentHash());
+            return;
+        }
+        if (content != null)
+        {
+            writer.setSize(content.length);
+            upload(content, writer.getBlobInfo());
+            return;
+        }
         File file = writer.getTempFile();
+        if (file == null)
+        {
+            // Streaming upload: the content was uploaded as it was written and the size counted on the way
+            try
+            {
+                if (writer.getCrc32c() != null)
+                {
+                    verify(writer.getBlobInfo(), writer.getCrc32c());
+                }
+            }
+            catch (ContentIOException e)
+            {
+                // There is no local copy to upload again, so unless the transaction is rolled back the content is lost
+                LOG.error("Data loss: the streaming upload of " + writer.getContentUrl() + " doesn't match the content written", e);
+                throw e;
+            }
+            finally
+            {
+                writer.getStore().getMetadataCache().invalidate(writer.getPath());
+            }
+            return;
+        }
 
         long size = file.length();
 
         writer.setSize(size);
 
-        BlobId blobId = BlobId.of(bucket.getName(), writer.getPath());
-        BlobInfo blobInfo = BlobInfo.newBuilder(blobId).setContentType(MediaType.OCTET_STREAM.toString()).build();
+        BlobInfo blobInfo = writer.getBlobInfo();
 
-        OutputStream writer = null;
-        InputStream reader = null;
+        GCSContentStore store = writer.getStore();
+        if (store.isWriteBehind())
+        {
+            store.getWriteBehindQueue().submit(blobInfo.getBucket(), blobInfo.getName(), file, () -> upload(file, blobInfo), () -> bucket.getStorage().delete(blobInfo.getBlobId()));
+            return;
+        }
+        upload(file, blobInfo);
+    }
+
+    /**
+     * Uploads the spooled content to GCS
+     *
+     * @param file The spooled content
+     * @param blobInfo The object to upload the content as
+     */
+    private void upload(File file, BlobInfo blobInfo)
+    {
         try
         {
-            writer = Channels.newOutputStream(bucket.getStorage().writer(blobInfo));
-            reader = new FileInputStream(file);
+            transfer(file, blobInfo, false);
+        }
+        finally
+        {
+            writer.getStore().getMetadataCache().invalidate(blobInfo.getName());
+        }
+    }
 
-            ByteStreams.copy(reader, writer);
+    /**
+     * Uploads the spooled content as a single upload or as composite parts, compressed if its mimetype is compressible
+     *
+     * @param file The spooled content
+     * @param blobInfo The object to upload the content as
+     * @param ifNotExists <code>true</code> to fail if the object already exists
+     * @return The object created, or <code>null</code> if it isn't known
+     */
+    private Blob transfer(File file, BlobInfo blobInfo, boolean ifNotExists)
+    {
+        GCSContentStore store = this.writer.getStore();
+        File source = file;
+        BlobInfo target = blobInfo;
+        String crc32c = writer.getCrc32c();
+        GCSCompressor compressor = store.getCompressor();
+        if (compressor.isCompressible(writer.getMimetype(), file.length()))
+        {
+            GCSCrc32c checksum = crc32c == null ? null : new GCSCrc32c();
+            File compressed = compressor.compress(file, checksum);
+            if (compressed != null)
+            {
+                source = compressed;
+                // GCS only checks the compressed bytes, the content is checked against its own checksum once decompressed
+                target = GCSCompressor.withCompression(blobInfo, file.length(), crc32c);
+                crc32c = checksum == null ? null : checksum.getValue();
+            }
         }
-        catch (Exception e)
+        try
         {
-            throw new ContentIOException("Could not write", e);
+            return store.uploadFile(source, target, crc32c, ifNotExists);
         }
         finally
         {
-            try
+            if (source != file)
             {
-                if (writer != null)
-                {
-                    writer.close();
-                }
-                if (reader != null)
-                {
-                    reader.close();
-                }
+                source.delete();
             }
-            catch (IOException e)
+        }
+    }
+
+    /**
+     * Uploads content held in memory with a single request, and keeps it in the small object cache as it is likely to be read soon
+     *
+     * @param content The content
+     * @param blobInfo The object to upload the content as
+     */
+    private void upload(byte[] content, BlobInfo blobInfo)
+    {
+        GCSContentStore store = this.writer.getStore();
+        try
+        {
+            Blob blob = create(content, blobInfo);
+            GCSSmallObjectCache smallObjectCache = store.getSmallObjectCache();
+            if (smallObjectCache != null)
             {
-                throw new ContentIOException("Could not close stream", e);
+                smallObjectCache.put(blobInfo.getName(), blob.getGeneration(), content);
             }
         }
+        finally
+        {
+            store.getMetadataCache().invalidate(blobInfo.getName());
+        }
+    }
+
+    /**
+     * Checks the checksum of an object that was uploaded without GCS checking it, such as streaming uploads whose checksum is only
+     * known once all the bytes are sent. Only the metadata is read.
+     *
+     * @param blobInfo The object uploaded
+     * @param crc32c The checksum of the bytes sent
+     */
+    private void verify(BlobInfo blobInfo, String crc32c)
+    {
+        GCSContentStore store = this.writer.getStore();
+        Blob blob = store.getMetrics().record(GCSMetrics.Operation.METADATA_GET,
+                () -> bucket.getStorage().get(blobInfo.getBlobId(), BlobGetOption.fields(Storage.BlobField.CRC32C, Storage.BlobField.GENERATION)));
+        if (blob == null)
+        {
+            throw new ContentIOException("The upload of " + blobInfo.getName() + " is missing");
+        }
+        store.checkUpload(blob, crc32c);
+    }
+
+    /**
+     * Uploads content held in memory with a single request, compressed if its mimetype is compressible
+     *
+     * @param content The content
+     * @param blobInfo The object to upload the content as
+     * @param options The preconditions of the upload
+     * @return The object created, which GCS checks against the checksum the client computes from the bytes
+     */
+    private Blob create(byte[] content, BlobInfo blobInfo, BlobTargetOption... options)
+    {
+        GCSContentStore store = this.writer.getStore();
+        byte[] bytes = content;
+        BlobInfo target = blobInfo;
+        GCSCompressor compressor = store.getCompressor();
+        if (compressor.isCompressible(writer.getMimetype(), content.length))
+        {
+            byte[] compressed = compressor.compress(content);
+            if (compressed != null)
+            {
+                bytes = compressed;
+                target = GCSCompressor.withCompression(blobInfo, content.length, writer.getCrc32c());
+            }
+        }
+        GCSMetrics.Timer timer = store.getMetrics().start(GCSMetrics.Operation.UPLOAD);
+        try
+        {
+            Blob blob = bucket.getStorage().create(target, bytes, options);
+            timer.success(bytes.length);
+            return blob;
+        }
+        catch (RuntimeException e)
+        {
+            timer.failure(e);
+            throw new ContentIOException("Could not write", e);
+        }
+    }
+
+    /**
+     * Stores deduplicated content: uploads it under its hash unless the same bytes are already there, and writes the pointer
+     * from the path of the content URL to them
+     *
+     * @param content The content if it was kept in memory, otherwise <code>null</code>
+     * @param file The spooled content if it wasn't kept in memory
+     * @param contentHash The hex encoded SHA-256 hash of the content
+     */
+    private void deduplicate(byte[] content, File file, String contentHash)
+    {
+        GCSContentStore store = this.writer.getStore();
+        long size = content != null ? content.length : file.length();
+        writer.setSize(size);
+        BlobInfo pointer = writer.getBlobInfo();
+        try
+        {
+            Blob blob = store.getDeduplicator().write(pointer, contentHash, size,
+                    target -> content != null ? create(content, target, BlobTargetOption.doesNotExist()) : transfer(file, target, true));
+            GCSSmallObjectCache smallObjectCache = store.getSmallObjectCache();
+            if (content != null && smallObjectCache != null)
+            {
+                smallObjectCache.put(pointer.getName(), blob.getGeneration(), content);
+            }
+        }
+        finally
+        {
+            store.getMetadataCache().invalidate(pointer.getName());
+        }
     }
 }
@@ -1,10 +1,15 @@
 package com.mintel.gcs;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 import org.alfresco.repo.content.AbstractContentWriter;
 import org.alfresco.repo.content.filestore.FileContentReader;
@@ -13,7 +18,12 @@ import org.alfresco.service.cmr.repository.ContentReader;
 import org.alfresco.util.GUID;
 import org.alfresco.util.TempFileProvider;
 
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
 import com.google.cloud.storage.Bucket;
+import com.google.common.io.BaseEncoding;
+import com.google.common.net.MediaType;
 
 /**
  * Google cloud storage contend writer implementation.
@@ -37,6 +47,10 @@ public class GCSContentWriter extends AbstractContentWriter
      * The bucket where the content should be
      */
     private Bucket bucket;
+    /**
+     * The store that created this writer
+     */
+    private GCSContentStore store;
     /**
      * Temporary uuid for caching the content before writing it to storage 
      */
@@ -49,6 +63,18 @@ public class GCSContentWriter extends AbstractContentWriter
      * The temporary file written locally before writing it to storage 
      */
     private File tempFile;
+    /**
+     * The content of small objects, buffered in memory instead of a temporary file
+     */
+    private byte[] content;
+    /**
+     * The hex encoded SHA-256 hash of the content, computed as it is written when deduplication is enabled
+     */
+    private String contentHash;
+    /**
+     * The CRC32C of the content as GCS encodes it, computed as it is written when checksums are verified
+     */
+    private String crc32c;
 
     /**
      * Initialises a GCS content writer
@@ -57,13 +83,15 @@ public class GCSContentWriter extends AbstractContentWriter
      * @param contentUrl The full content URL
      * @param existingContentReader A reader of a previous version of this content
      * @param bucket The bucket where the content should be
+     * @param store The store that created this writer
      */
-    protected GCSContentWriter(String path, String contentUrl, ContentReader existingContentReader, Bucket bucket)
+    protected GCSContentWriter(String path, String contentUrl, ContentReader existingContentReader, Bucket bucket, GCSContentStore store)
     {
         super(contentUrl, existingContentReader);
         this.path = path;
         this.contentUrl = contentUrl;
         this.bucket = bucket;
+        this.store = store;
         this.uuid = GUID.generate();
         addListener(new GCSContentStreamListener(this));
     }
@@ -81,21 +109,55 @@ public class GCSContentWriter extends AbstractContentWriter
             reader.setEncoding(this.getEncoding());
             return reader;
         }
-        return new GCSContentReader(path, contentUrl, bucket);
+        return new GCSContentReader(path, contentUrl, bucket, store);
     }
 
     /**
      * {@inheritDoc}
+     * <p>
+     * When the store uses streaming uploads the content goes straight to a resumable upload, otherwise it is written to a
+     * temporary file that is uploaded once the channel is closed. Content below the small object threshold is kept in memory
+     * and only written to a temporary file if it grows past it, except with write-behind uploads which need the file.
+     * <p>
+     * With deduplication the content is hashed on its way to memory or to the temporary file, so it can be looked up by hash
+     * once the channel is closed. Streaming and write-behind uploads are never deduplicated. When upload checksums are verified
+     * the CRC32C of the content is computed on the way as well, for GCS to check the upload against.
      */
     @Override
     protected WritableByteChannel getDirectWritableChannel() throws ContentIOException
     {
+        if (store.isStreamingUpload())
+        {
+            try
+            {
+                GCSMetrics.Timer timer = store.getMetrics().start(GCSMetrics.Operation.UPLOAD);
+                WriteChannel channel = bucket.getStorage().writer(getBlobInfo());
+                channel.setChunkSize(store.getUploadChunkSize());
+                return hash(new CountingWritableChannel(channel, timer));
+            }
+            catch (Throwable e)
+            {
+                throw new ContentIOException("Could not open upload channel", e);
+            }
+        }
+        if (store.getSmallObjectThreshold() > 0 && !store.isWriteBehind())
+        {
+            return hash(new BufferingWritableChannel(store.getSmallObjectThreshold()));
+        }
         try
         {
             // create temporary file to store data before writing to storage
-            tempFile = TempFileProvider.createTempFile(uuid, ".bin");
+            if (store.isWriteBehind())
+            {
+                // the file is the only copy until the background upload finishes
+                tempFile = store.getWriteBehindQueue().createSpoolFile(uuid);
+            }
+            else
+            {
+                tempFile = TempFileProvider.createTempFile(uuid, ".bin");
+            }
             OutputStream os = new FileOutputStream(tempFile);
-            return Channels.newChannel(os);
+            return hash(Channels.newChannel(os));
         }
         catch (Throwable e)
         {
@@ -103,6 +165,41 @@ public class GCSContentWriter extends AbstractContentWriter
         }
     }
 
+    /**
+     * Hashes the content written to a channel if deduplication is enabled, and computes its CRC32C if upload checksums are verified
+     *
+     * @param channel The channel the content is written to
+     * @return The channel to write to
+     */
+    private WritableByteChannel hash(WritableByteChannel channel)
+    {
+        boolean deduplicate = store.isDeduplication() && !store.isWriteBehind() && !store.isStreamingUpload();
+        if (!deduplicate && !store.isUploadChecksum())
+        {
+            return channel;
+        }
+        try
+        {
+            return new HashingWritableChannel(channel, deduplicate ? MessageDigest.getInstance("SHA-256") : null,
+                    store.isUploadChecksum() ? new GCSCrc32c() : null);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new ContentIOException("Could not hash the content", e);
+        }
+    }
+
+    /**
+     * Builds the object definition the content is uploaded as
+     *
+     * @return The blob info of the content
+     */
+    protected BlobInfo getBlobInfo()
+    {
+        BlobId blobId = BlobId.of(bucket.getName(), path);
+        return BlobInfo.newBuilder(blobId).setContentType(MediaType.OCTET_STREAM.toString()).build();
+    }
+
     /*
      * Getters and setters
      */
@@ -122,11 +219,40 @@ public class GCSContentWriter extends AbstractContentWriter
         return bucket;
     }
 
+    public GCSContentStore getStore()
+    {
+        return store;
+    }
+
     public File getTempFile()
     {
         return tempFile;
     }
 
+    /**
+     * @return The content if it was small enough to be kept in memory, otherwise <code>null</code>
+     */
+    public byte[] getContent()
+    {
+        return content;
+    }
+
+    /**
+     * @return The hex encoded SHA-256 hash of the content once it is written if it is to be deduplicated, otherwise <code>null</code>
+     */
+    public String getContentHash()
+    {
+        return contentHash;
+    }
+
+    /**
+     * @return The CRC32C of the content once it is written as GCS encodes it, or <code>null</code> if it wasn't computed
+     */
+    public String getCrc32c()
+    {
+        return crc32c;
+    }
+
     @Override
     public long getSize()
     {
@@ -137,4 +263,200 @@ public class GCSContentWriter extends AbstractContentWriter
     {
         this.size = size;
     }
+
+    /**
+     * Write channel that keeps the content size up to date as the bytes go through, as there is no local file to measure
+     */
+    private class CountingWritableChannel implements WritableByteChannel
+    {
+        private final WritableByteChannel channel;
+        /**
+         * Times the upload from the channel being opened to it being closed
+         */
+        private final GCSMetrics.Timer timer;
+
+        CountingWritableChannel(WritableByteChannel channel, GCSMetrics.Timer timer)
+        {
+            this.channel = channel;
+            this.timer = timer;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException
+        {
+            try
+            {
+                int written = channel.write(src);
+                size += written;
+                return written;
+            }
+            catch (IOException | RuntimeException e)
+            {
+                timer.failure(e);
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                channel.close();
+                timer.success(size);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                timer.failure(e);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Write channel keeping the content in memory, which moves it to a temporary file if it grows past the threshold
+     */
+    private class BufferingWritableChannel implements WritableByteChannel
+    {
+        private final int threshold;
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        /**
+         * The temporary file channel once the content is too big for memory
+         */
+        private WritableByteChannel spill;
+        private boolean open = true;
+
+        BufferingWritableChannel(int threshold)
+        {
+            this.threshold = threshold;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException
+        {
+            if (spill == null && buffer.size() + src.remaining() > threshold)
+            {
+                tempFile = TempFileProvider.createTempFile(uuid, ".bin");
+                spill = Channels.newChannel(new FileOutputStream(tempFile));
+                ByteBuffer buffered = ByteBuffer.wrap(buffer.toByteArray());
+                while (buffered.hasRemaining())
+                {
+                    spill.write(buffered);
+                }
+                buffer = null;
+            }
+            if (spill != null)
+            {
+                return spill.write(src);
+            }
+            int count = src.remaining();
+            if (src.hasArray())
+            {
+                buffer.write(src.array(), src.arrayOffset() + src.position(), count);
+                src.position(src.limit());
+            }
+            else
+            {
+                byte[] bytes = new byte[count];
+                src.get(bytes);
+                buffer.write(bytes);
+            }
+            return count;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (!open)
+            {
+                return;
+            }
+            open = false;
+            if (spill != null)
+            {
+                spill.close();
+            }
+            else
+            {
+                content = buffer.toByteArray();
+                buffer = null;
+            }
+        }
+    }
+
+    /**
+     * Write channel hashing the bytes and computing their CRC32C as they go through
+     */
+    private class HashingWritableChannel implements WritableByteChannel
+    {
+        private final WritableByteChannel channel;
+        /**
+         * The SHA-256 digest of deduplicated content, otherwise <code>null</code>
+         */
+        private final MessageDigest digest;
+        /**
+         * The CRC32C when upload checksums are verified, otherwise <code>null</code>
+         */
+        private final GCSCrc32c checksum;
+
+        HashingWritableChannel(WritableByteChannel channel, MessageDigest digest, GCSCrc32c checksum)
+        {
+            this.channel = channel;
+            this.digest = digest;
+            this.checksum = checksum;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException
+        {
+            ByteBuffer written = src.duplicate();
+            int count = channel.write(src);
+            written.limit(written.position() + count);
+            if (digest != null)
+            {
+                digest.update(written.duplicate());
+            }
+            if (checksum != null)
+            {
+                checksum.update(written);
+            }
+            return count;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (!channel.isOpen())
+            {
+                return;
+            }
+            channel.close();
+            if (digest != null)
+            {
+                contentHash = BaseEncoding.base16().lowerCase().encode(digest.digest());
+            }
+            if (checksum != null)
+            {
+                crc32c = checksum.getValue();
+            }
+        }
+    }
 }
@@ -0,0 +1,118 @@
+package com.mintel.gcs;
+
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.primitives.Ints;
+
+/**
+ * Computes the CRC32C checksum GCS keeps for every object, incrementally as the bytes go through.
+ * <p>
+ * On Java 9 and later the JDK's <code>java.util.zip.CRC32C</code> is used, which is hardware accelerated. The connector is
+ * built for Java 8, so it is found by reflection, and Guava's software implementation is used on Java 8. Instances are not
+ * thread safe.
+ */
+public class GCSCrc32c
+{
+    /**
+     * The JDK implementation, or <code>null</code> on Java 8
+     */
+    private static final Constructor<? extends Checksum> JDK_CRC32C = findJdkCrc32c();
+
+    private final Checksum checksum;
+    private Hasher hasher;
+    private byte[] copyBuffer;
+
+    public GCSCrc32c()
+    {
+        Checksum jdkChecksum = null;
+        if (JDK_CRC32C != null)
+        {
+            try
+            {
+                jdkChecksum = JDK_CRC32C.newInstance();
+            }
+            catch (ReflectiveOperationException e)
+            {
+                // Guava's implementation is used instead
+            }
+        }
+        this.checksum = jdkChecksum;
+        this.hasher = jdkChecksum == null ? Hashing.crc32c().newHasher() : null;
+    }
+
+    /**
+     * Adds bytes to the checksum
+     */
+    public void update(byte[] bytes, int offset, int length)
+    {
+        if (checksum != null)
+        {
+            checksum.update(bytes, offset, length);
+        }
+        else
+        {
+            hasher.putBytes(bytes, offset, length);
+        }
+    }
+
+    /**
+     * Adds the remaining bytes of a buffer to the checksum, moving its position to its limit
+     */
+    public void update(ByteBuffer buffer)
+    {
+        if (buffer.hasArray())
+        {
+            update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+        if (copyBuffer == null)
+        {
+            copyBuffer = new byte[8192];
+        }
+        while (buffer.hasRemaining())
+        {
+            int length = Math.min(copyBuffer.length, buffer.remaining());
+            buffer.get(copyBuffer, 0, length);
+            update(copyBuffer, 0, length);
+        }
+    }
+
+    /**
+     * Gets the checksum of the bytes added so far. With Guava's implementation no bytes can be added afterwards.
+     *
+     * @return The checksum, as GCS encodes it: base64 of its big-endian bytes
+     */
+    public String getValue()
+    {
+        int value;
+        if (checksum != null)
+        {
+            value = (int) checksum.getValue();
+        }
+        else
+        {
+            value = hasher.hash().asInt();
+            hasher = null;
+        }
+        return BaseEncoding.base64().encode(Ints.toByteArray(value));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Constructor<? extends Checksum> findJdkCrc32c()
+    {
+        try
+        {
+            return (Constructor<? extends Checksum>) Class.forName("java.util.zip.CRC32C").getConstructor();
+        }
+        catch (ReflectiveOperationException | LinkageError e)
+        {
+            return null;
+        }
+    }
+}
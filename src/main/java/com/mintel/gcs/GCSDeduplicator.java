@@ -0,0 +1,277 @@
+package com.mintel.gcs;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.Storage.BlobGetOption;
+import com.google.cloud.storage.Storage.BlobSourceOption;
+import com.google.cloud.storage.Storage.BlobTargetOption;
+import com.google.cloud.storage.StorageException;
+import com.google.common.net.MediaType;
+
+/**
+ * Stores identical content once, addressed by its SHA-256 hash.
+ * <p>
+ * The content URL of a writer is chosen before its bytes are known, so the object at the path of the content URL becomes an
+ * empty pointer whose metadata names the shared object holding the bytes, under {@link #CONTENT_PREFIX}. The shared object
+ * counts the pointers referring to it in its own metadata. The count is updated with metageneration preconditions so concurrent
+ * writers and deleters on any node never lose an update, and the shared object is created with a "does not exist" precondition
+ * so only one of several concurrent writers of the same bytes uploads them. The shared object is deleted with its last pointer.
+ * <p>
+ * A failure between counting a reference and writing its pointer can leave a count too high, which only keeps bytes that are no
+ * longer referenced. A count is never too low.
+ */
+public class GCSDeduplicator
+{
+    private static final Log LOG = LogFactory.getLog(GCSDeduplicator.class);
+    /**
+     * Prefix of the shared content objects in the bucket
+     */
+    public static final String CONTENT_PREFIX = "content-hashes/";
+    /**
+     * Metadata of a shared content object: the number of pointers referring to it
+     */
+    public static final String REFERENCES = "references";
+    /**
+     * HTTP status returned by GCS when the object doesn't exist
+     */
+    private static final int NOT_FOUND = 404;
+    /**
+     * HTTP status returned by GCS when a precondition doesn't hold
+     */
+    private static final int PRECONDITION_FAILED = 412;
+    /**
+     * How many times a reference count update is tried when other nodes keep updating it
+     */
+    private static final int MAX_ATTEMPTS = 20;
+    private static final BlobGetOption REFERENCE_FIELDS = BlobGetOption.fields(Storage.BlobField.METADATA, Storage.BlobField.METAGENERATION,
+            Storage.BlobField.GENERATION, Storage.BlobField.CRC32C);
+
+    private final Storage storage;
+    private final String bucketName;
+    private final GCSMetrics metrics;
+
+    /**
+     * Initialises the deduplicator
+     *
+     * @param storage The storage of the store
+     * @param bucketName The bucket of the store
+     * @param metrics The metrics of the store
+     */
+    public GCSDeduplicator(Storage storage, String bucketName, GCSMetrics metrics)
+    {
+        this.storage = storage;
+        this.bucketName = bucketName;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Gets the path of the shared object holding content
+     *
+     * @param contentHash The hex encoded SHA-256 hash of the content
+     * @return The path in the bucket
+     */
+    public static String getContentPath(String contentHash)
+    {
+        return CONTENT_PREFIX + contentHash;
+    }
+
+    /**
+     * Stores content: refers to the shared object if it already exists, or uploads it, then writes the pointer
+     *
+     * @param pointer The object to write the pointer as, at the path of the content URL
+     * @param contentHash The hex encoded SHA-256 hash of the content
+     * @param size The size of the content
+     * @param uploader Uploads the content as the given object with a "does not exist" precondition, possibly compressed, and returns
+     *            the object created or <code>null</code> if it isn't known
+     * @return The pointer
+     */
+    public Blob write(BlobInfo pointer, String contentHash, long size, Function<BlobInfo, Blob> uploader)
+    {
+        String contentPath = getContentPath(contentHash);
+        Blob contentBlob = addReference(contentPath);
+        if (contentBlob == null)
+        {
+            Map<String, String> metadata = new HashMap<>();
+            metadata.put(REFERENCES, "1");
+            BlobInfo content = BlobInfo.newBuilder(BlobId.of(bucketName, contentPath)).setContentType(MediaType.OCTET_STREAM.toString())
+                    .setMetadata(metadata).build();
+            try
+            {
+                contentBlob = uploader.apply(content);
+                if (LOG.isDebugEnabled())
+                {
+                    LOG.debug("Uploaded new content " + contentPath + " for " + pointer.getName());
+                }
+            }
+            catch (RuntimeException e)
+            {
+                // Another writer uploaded the same content first
+                if (GCSMetrics.getStatus(e) != PRECONDITION_FAILED || (contentBlob = addReference(contentPath)) == null)
+                {
+                    throw e;
+                }
+            }
+            if (contentBlob == null)
+            {
+                contentBlob = metrics.record(GCSMetrics.Operation.METADATA_GET, () -> storage.get(BlobId.of(bucketName, contentPath), REFERENCE_FIELDS));
+            }
+        }
+
+        Map<String, String> metadata = new HashMap<>();
+        metadata.put(GCSMetadataCache.Metadata.CONTENT_PATH, contentPath);
+        if (contentBlob != null && contentBlob.getGeneration() != null)
+        {
+            metadata.put(GCSMetadataCache.Metadata.CONTENT_GENERATION, contentBlob.getGeneration().toString());
+        }
+        if (contentBlob != null && contentBlob.getCrc32c() != null)
+        {
+            metadata.put(GCSMetadataCache.Metadata.CONTENT_CRC32C, contentBlob.getCrc32c());
+        }
+        String compression = contentBlob == null || contentBlob.getMetadata() == null ? null
+                : contentBlob.getMetadata().get(GCSMetadataCache.Metadata.CONTENT_COMPRESSION);
+        if (compression != null)
+        {
+            // Readers only look at the pointer
+            metadata.put(GCSMetadataCache.Metadata.CONTENT_COMPRESSION, compression);
+            String originalCrc32c = contentBlob.getMetadata().get(GCSMetadataCache.Metadata.CONTENT_ORIGINAL_CRC32C);
+            if (originalCrc32c != null)
+            {
+                metadata.put(GCSMetadataCache.Metadata.CONTENT_ORIGINAL_CRC32C, originalCrc32c);
+            }
+        }
+        metadata.put(GCSMetadataCache.Metadata.CONTENT_SIZE, Long.toString(size));
+        try
+        {
+            return metrics.record(GCSMetrics.Operation.UPLOAD, () -> storage.create(pointer.toBuilder().setMetadata(metadata).build(), new byte[0]));
+        }
+        catch (RuntimeException e)
+        {
+            release(contentPath);
+            throw new ContentIOException("Could not write the pointer to " + contentPath, e);
+        }
+    }
+
+    /**
+     * Counts one more reference to a shared object
+     *
+     * @param contentPath The path of the shared object
+     * @return The shared object with its generation and metadata, or <code>null</code> if it doesn't exist
+     */
+    private Blob addReference(String contentPath)
+    {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++)
+        {
+            Blob blob = metrics.record(GCSMetrics.Operation.REFERENCE, () -> storage.get(BlobId.of(bucketName, contentPath), REFERENCE_FIELDS));
+            if (blob == null)
+            {
+                return null;
+            }
+            try
+            {
+                updateReferences(blob, getReferences(blob) + 1);
+                if (LOG.isDebugEnabled())
+                {
+                    LOG.debug("Referred to existing content " + contentPath);
+                }
+                return blob;
+            }
+            catch (StorageException e)
+            {
+                if (e.getCode() == NOT_FOUND)
+                {
+                    return null;
+                }
+                if (e.getCode() != PRECONDITION_FAILED)
+                {
+                    throw e;
+                }
+            }
+        }
+        throw new ContentIOException("Could not count a reference to " + contentPath + " after " + MAX_ATTEMPTS + " attempts");
+    }
+
+    /**
+     * Counts one less reference to a shared object, and deletes it if that was the last one
+     *
+     * @param contentPath The path of the shared object
+     */
+    public void release(String contentPath)
+    {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++)
+        {
+            Blob blob = metrics.record(GCSMetrics.Operation.REFERENCE, () -> storage.get(BlobId.of(bucketName, contentPath), REFERENCE_FIELDS));
+            if (blob == null)
+            {
+                return;
+            }
+            long references = getReferences(blob) - 1;
+            try
+            {
+                if (references > 0)
+                {
+                    updateReferences(blob, references);
+                }
+                else
+                {
+                    metrics.record(GCSMetrics.Operation.DELETE,
+                            () -> storage.delete(BlobId.of(bucketName, contentPath), BlobSourceOption.metagenerationMatch(blob.getMetageneration())));
+                    if (LOG.isDebugEnabled())
+                    {
+                        LOG.debug("Deleted content " + contentPath + " with its last reference");
+                    }
+                }
+                return;
+            }
+            catch (StorageException e)
+            {
+                if (e.getCode() == NOT_FOUND)
+                {
+                    return;
+                }
+                if (e.getCode() != PRECONDITION_FAILED)
+                {
+                    throw e;
+                }
+            }
+        }
+        throw new ContentIOException("Could not release a reference to " + contentPath + " after " + MAX_ATTEMPTS + " attempts");
+    }
+
+    /**
+     * Sets the reference count of a shared object, if nobody else changed it since it was read
+     */
+    private void updateReferences(Blob blob, long references)
+    {
+        Map<String, String> metadata = new HashMap<>();
+        if (blob.getMetadata() != null)
+        {
+            metadata.putAll(blob.getMetadata());
+        }
+        metadata.put(REFERENCES, Long.toString(references));
+        metrics.record(GCSMetrics.Operation.REFERENCE, () -> storage.update(blob.toBuilder().setMetadata(metadata).build(), BlobTargetOption.metagenerationMatch()));
+    }
+
+    private static long getReferences(Blob blob)
+    {
+        Map<String, String> metadata = blob.getMetadata();
+        String references = metadata == null ? null : metadata.get(REFERENCES);
+        try
+        {
+            return references == null ? 1 : Long.parseLong(references);
+        }
+        catch (NumberFormatException e)
+        {
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,439 @@
+package com.mintel.gcs;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+
+/**
+ * Size-bounded cache of object metadata shared by all the readers of a store, keyed by path.
+ * <p>
+ * Entries expire after a fixed time to live and the least recently used ones are evicted when the cache is full. Missing objects
+ * are cached as well, as content living in a secondary store is looked up in GCS first on every read, but for a much shorter
+ * time so content another node has just written is found. Entries have to be invalidated whenever the object is written or
+ * deleted through this store.
+ */
+public class GCSMetadataCache
+{
+    /**
+     * How long missing objects are cached for by default, in seconds
+     */
+    public static final long DEFAULT_NOT_FOUND_TTL_SECONDS = 5;
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final long notFoundTtlMillis;
+    private final Map<String, Entry> entries;
+    /**
+     * The loads in flight by path. Invalidating a path replaces its loads, so metadata loaded while the object was being written or
+     * deleted isn't cached, without affecting the loads of other paths.
+     */
+    private final Map<String, Load> loads = new HashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Initialises the metadata cache, caching missing objects for {@link #DEFAULT_NOT_FOUND_TTL_SECONDS} at most
+     *
+     * @param maxEntries The maximum number of paths to keep
+     * @param ttlSeconds How long an entry is valid for, 0 disables the cache
+     */
+    public GCSMetadataCache(int maxEntries, long ttlSeconds)
+    {
+        this(maxEntries, ttlSeconds, Math.min(ttlSeconds, DEFAULT_NOT_FOUND_TTL_SECONDS));
+    }
+
+    /**
+     * Initialises the metadata cache
+     *
+     * @param maxEntries The maximum number of paths to keep
+     * @param ttlSeconds How long an entry is valid for, 0 disables the cache
+     * @param notFoundTtlSeconds How long the entry of a missing object is valid for, 0 to never cache them
+     */
+    public GCSMetadataCache(int maxEntries, long ttlSeconds, long notFoundTtlSeconds)
+    {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlSeconds * 1000L;
+        this.notFoundTtlMillis = notFoundTtlSeconds * 1000L;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+            {
+                if (size() > GCSMetadataCache.this.maxEntries)
+                {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Gets the metadata of an object, loading it if it isn't cached or has expired
+     *
+     * @param path The path of the object in the bucket
+     * @param loader Loads the metadata from GCS
+     * @return The metadata, never <code>null</code>
+     */
+    public Metadata get(String path, Function<String, Metadata> loader)
+    {
+        if (ttlMillis <= 0)
+        {
+            misses.incrementAndGet();
+            return loader.apply(path);
+        }
+        long now = System.currentTimeMillis();
+        synchronized (entries)
+        {
+            Entry entry = entries.get(path);
+            if (entry != null && entry.expires > now)
+            {
+                hits.incrementAndGet();
+                return entry.metadata;
+            }
+        }
+        misses.incrementAndGet();
+        Load load;
+        synchronized (entries)
+        {
+            load = loads.computeIfAbsent(path, p -> new Load());
+            load.count++;
+        }
+        Metadata metadata = null;
+        try
+        {
+            metadata = loader.apply(path);
+        }
+        finally
+        {
+            synchronized (entries)
+            {
+                // Only cached if the path wasn't invalidated while it was loading
+                boolean current = loads.get(path) == load;
+                if (--load.count == 0 && current)
+                {
+                    loads.remove(path);
+                }
+                long ttl = metadata == null || metadata.exists() ? ttlMillis : notFoundTtlMillis;
+                if (current && metadata != null && ttl > 0)
+                {
+                    entries.put(path, new Entry(metadata, now + ttl));
+                }
+            }
+        }
+        return metadata;
+    }
+
+    /**
+     * Gets the cached metadata of an object without loading it. It counts as a hit or a miss like {@link #get(String, Function)}.
+     *
+     * @param path The path of the object in the bucket
+     * @return The metadata or <code>null</code> if it isn't cached
+     */
+    public Metadata getIfPresent(String path)
+    {
+        if (ttlMillis > 0)
+        {
+            synchronized (entries)
+            {
+                Entry entry = entries.get(path);
+                if (entry != null && entry.expires > System.currentTimeMillis())
+                {
+                    hits.incrementAndGet();
+                    return entry.metadata;
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Forgets the metadata of an object that was written or deleted
+     *
+     * @param path The path of the object in the bucket
+     */
+    public void invalidate(String path)
+    {
+        synchronized (entries)
+        {
+            loads.remove(path);
+            entries.remove(path);
+        }
+    }
+
+    /**
+     * Forgets all the cached metadata
+     */
+    public void clear()
+    {
+        synchronized (entries)
+        {
+            entries.clear();
+        }
+    }
+
+    public int size()
+    {
+        synchronized (entries)
+        {
+            return entries.size();
+        }
+    }
+
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+
+    public long getEvictionCount()
+    {
+        return evictions.get();
+    }
+
+    /**
+     * @return The share of lookups served from the cache, between 0 and 1
+     */
+    public double getHitRatio()
+    {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * The metadata kept for an object
+     */
+    public static class Metadata
+    {
+        /**
+         * Metadata of an object that doesn't exist
+         */
+        public static final Metadata NOT_FOUND = new Metadata(false, 0L, 0L, null);
+        /**
+         * User metadata of a pointer to deduplicated content: the path of the object holding the bytes
+         */
+        public static final String CONTENT_PATH = "content-path";
+        /**
+         * User metadata of a pointer to deduplicated content: the generation of the object holding the bytes
+         */
+        public static final String CONTENT_GENERATION = "content-generation";
+        /**
+         * User metadata: the size of the content, when it differs from the size of the object
+         */
+        public static final String CONTENT_SIZE = "content-size";
+        /**
+         * User metadata: how the bytes of the object are compressed, see {@link GCSCompressor}
+         */
+        public static final String CONTENT_COMPRESSION = "content-compression";
+        /**
+         * User metadata of a pointer to deduplicated content: the CRC32C of the object holding the bytes
+         */
+        public static final String CONTENT_CRC32C = "content-crc32c";
+        /**
+         * User metadata of compressed content: the CRC32C of the content before it was compressed
+         */
+        public static final String CONTENT_ORIGINAL_CRC32C = "content-original-crc32c";
+
+        private final boolean exists;
+        private final long size;
+        private final long lastModified;
+        private final Long generation;
+        private final String contentPath;
+        private final Long contentGeneration;
+        private final String compression;
+        private final String crc32c;
+        private final String originalCrc32c;
+
+        public Metadata(boolean exists, long size, long lastModified, Long generation)
+        {
+            this(exists, size, lastModified, generation, null, null, null, null);
+        }
+
+        public Metadata(boolean exists, long size, long lastModified, Long generation, String contentPath, Long contentGeneration, String compression,
+                String crc32c)
+        {
+            this(exists, size, lastModified, generation, contentPath, contentGeneration, compression, crc32c, null);
+        }
+
+        /**
+         * @param contentPath The path of the object holding the bytes if the object is a pointer to deduplicated content
+         * @param contentGeneration The generation of the object holding the bytes, if it is known
+         * @param compression How the bytes are compressed, or <code>null</code> if they aren't
+         * @param crc32c The CRC32C of the bytes as GCS encodes it, or <code>null</code> if it isn't known
+         * @param originalCrc32c The CRC32C of compressed content before it was compressed, or <code>null</code> if it isn't known
+         */
+        public Metadata(boolean exists, long size, long lastModified, Long generation, String contentPath, Long contentGeneration, String compression,
+                String crc32c, String originalCrc32c)
+        {
+            this.exists = exists;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.generation = generation;
+            this.contentPath = contentPath;
+            this.contentGeneration = contentGeneration;
+            this.compression = compression;
+            this.crc32c = crc32c;
+            this.originalCrc32c = originalCrc32c;
+        }
+
+        /**
+         * Builds the metadata from a blob fetched with at least its size, update time, generation, CRC32C and user metadata
+         *
+         * @param blob The blob or <code>null</code> if it doesn't exist
+         * @return The metadata
+         */
+        public static Metadata of(Blob blob)
+        {
+            if (blob == null)
+            {
+                return NOT_FOUND;
+            }
+            long size = blob.getSize() == null ? 0L : blob.getSize();
+            Map<String, String> userMetadata = blob.getMetadata();
+            String contentPath = null;
+            Long contentGeneration = null;
+            String compression = null;
+            String crc32c = blob.getCrc32c();
+            String originalCrc32c = null;
+            if (userMetadata != null)
+            {
+                contentPath = userMetadata.get(CONTENT_PATH);
+                compression = userMetadata.get(CONTENT_COMPRESSION);
+                originalCrc32c = userMetadata.get(CONTENT_ORIGINAL_CRC32C);
+                if (contentPath != null)
+                {
+                    crc32c = userMetadata.get(CONTENT_CRC32C);
+                }
+                contentGeneration = parseLong(userMetadata.get(CONTENT_GENERATION));
+                Long contentSize = parseLong(userMetadata.get(CONTENT_SIZE));
+                if (contentSize != null)
+                {
+                    size = contentSize;
+                }
+            }
+            return new Metadata(true, size, blob.getUpdateTime() == null ? 0L : blob.getUpdateTime(), blob.getGeneration(), contentPath,
+                    contentGeneration, compression, crc32c, originalCrc32c);
+        }
+
+        private static Long parseLong(String value)
+        {
+            try
+            {
+                return value == null ? null : Long.valueOf(value);
+            }
+            catch (NumberFormatException e)
+            {
+                return null;
+            }
+        }
+
+        /**
+         * Gets the object holding the bytes of the content, pinned to its generation if it is known
+         *
+         * @param bucketName The bucket of the object
+         * @param path The path of the object
+         * @return The shared object if the object is a pointer to deduplicated content, otherwise the object itself
+         */
+        public BlobId getContentBlobId(String bucketName, String path)
+        {
+            if (contentPath != null)
+            {
+                return BlobId.of(bucketName, contentPath, contentGeneration);
+            }
+            return BlobId.of(bucketName, path, generation);
+        }
+
+        public boolean exists()
+        {
+            return exists;
+        }
+
+        /**
+         * @return The size of the content, which isn't the size of the object for pointers to deduplicated content and compressed content
+         */
+        public long getSize()
+        {
+            return size;
+        }
+
+        public long getLastModified()
+        {
+            return lastModified;
+        }
+
+        public Long getGeneration()
+        {
+            return generation;
+        }
+
+        /**
+         * @return The path of the object holding the bytes if the object is a pointer to deduplicated content, otherwise <code>null</code>
+         */
+        public String getContentPath()
+        {
+            return contentPath;
+        }
+
+        /**
+         * @return How the bytes of the object are compressed, or <code>null</code> if they aren't
+         */
+        public String getCompression()
+        {
+            return compression;
+        }
+
+        /**
+         * @return The CRC32C of the bytes of the object, or of the object holding them for pointers to deduplicated content, as GCS
+         *         encodes it. <code>null</code> if it isn't known.
+         */
+        public String getCrc32c()
+        {
+            return crc32c;
+        }
+
+        /**
+         * @return The CRC32C of compressed content before it was compressed, as GCS encodes it. <code>null</code> if the content isn't
+         *         compressed or was uploaded without upload checksums.
+         */
+        public String getOriginalCrc32c()
+        {
+            return originalCrc32c;
+        }
+    }
+
+    /**
+     * The loads of a path in flight
+     */
+    private static class Load
+    {
+        private int count;
+    }
+
+    private static class Entry
+    {
+        private final Metadata metadata;
+        private final long expires;
+
+        Entry(Metadata metadata, long expires)
+        {
+            this.metadata = metadata;
+            this.expires = expires;
+        }
+    }
+}
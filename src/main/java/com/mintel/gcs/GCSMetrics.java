@@ -0,0 +1,250 @@
+package com.mintel.gcs;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.cloud.storage.StorageException;
+
+/**
+ * Collects the statistics of every GCS operation made by a store, its readers and its writers, and publishes them over JMX.
+ * <p>
+ * Each operation type is registered as a {@link GCSOperationStatsMXBean} named
+ * <code>com.mintel.gcs:type=GCSOperation,bucket=&lt;bucket&gt;,rootDir=&lt;rootDir&gt;,operation=&lt;operation&gt;</code>, so JMX
+ * exporters such as the Prometheus JMX exporter or Micrometer's JMX bridge can turn the key properties into tags.
+ */
+public class GCSMetrics
+{
+    private static final Log LOG = LogFactory.getLog(GCSMetrics.class);
+    private static final String DOMAIN = "com.mintel.gcs";
+
+    /**
+     * The types of GCS operation measured
+     */
+    public enum Operation
+    {
+        /** Getting the size, last modified date and generation of an object */
+        METADATA_GET("metadataGet"),
+        /** Opening an object for reading, up to the first bytes received; the bytes are those of the whole read */
+        OPEN_READ("openRead"),
+        /** Uploading content, from the start of the upload to the object being created */
+        UPLOAD("upload"),
+        /** Deleting an object or a batch of objects */
+        DELETE("delete"),
+        /** Copying an object to the deleted content store */
+        ARCHIVE("archive"),
+        /** Reading or updating the reference count of deduplicated content */
+        REFERENCE("reference");
+
+        private final String tag;
+
+        Operation(String tag)
+        {
+            this.tag = tag;
+        }
+
+        public String getTag()
+        {
+            return tag;
+        }
+    }
+
+    private final String bucketName;
+    private final String rootDir;
+    private final Map<Operation, GCSOperationStats> stats = new EnumMap<>(Operation.class);
+    private final List<ObjectName> registered = new ArrayList<>();
+
+    /**
+     * Initialises the metrics of a store
+     *
+     * @param bucketName The bucket of the store
+     * @param rootDir The root directory of the store in the bucket
+     */
+    public GCSMetrics(String bucketName, String rootDir)
+    {
+        this.bucketName = bucketName;
+        this.rootDir = rootDir == null ? "" : rootDir;
+        for (Operation operation : Operation.values())
+        {
+            stats.put(operation, new GCSOperationStats());
+        }
+    }
+
+    /**
+     * Gets the statistics of an operation type
+     *
+     * @param operation The operation type
+     * @return The statistics
+     */
+    public GCSOperationStats get(Operation operation)
+    {
+        return stats.get(operation);
+    }
+
+    /**
+     * Starts timing an operation
+     *
+     * @param operation The operation type
+     * @return The timer to stop once the operation is over
+     */
+    public Timer start(Operation operation)
+    {
+        return new Timer(stats.get(operation));
+    }
+
+    /**
+     * Times a call that doesn't transfer content
+     *
+     * @param operation The operation type
+     * @param call The call to GCS
+     * @return The result of the call
+     */
+    public <T> T record(Operation operation, Supplier<T> call)
+    {
+        Timer timer = start(operation);
+        try
+        {
+            T result = call.get();
+            timer.success(0);
+            return result;
+        }
+        catch (RuntimeException e)
+        {
+            timer.failure(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Registers the statistics in the platform MBean server. Failures are logged, for example when two stores share the same
+     * bucket and root directory.
+     */
+    public synchronized void register()
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        JMException failure = null;
+        for (Map.Entry<Operation, GCSOperationStats> entry : stats.entrySet())
+        {
+            try
+            {
+                ObjectName name = new ObjectName(DOMAIN + ":type=GCSOperation,bucket=" + bucketName + ",rootDir="
+                        + ObjectName.quote(rootDir) + ",operation=" + entry.getKey().getTag());
+                server.registerMBean(entry.getValue(), name);
+                registered.add(name);
+            }
+            catch (JMException e)
+            {
+                failure = e;
+            }
+        }
+        if (failure != null)
+        {
+            LOG.warn("Could not register the statistics of bucket " + bucketName + " in JMX: " + failure.getMessage());
+        }
+    }
+
+    /**
+     * Removes the statistics from the platform MBean server
+     */
+    public synchronized void unregister()
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registered)
+        {
+            try
+            {
+                server.unregisterMBean(name);
+            }
+            catch (JMException e)
+            {
+                LOG.debug("Could not unregister " + name, e);
+            }
+        }
+        registered.clear();
+    }
+
+    /**
+     * Gets the HTTP status of a GCS error
+     *
+     * @param e The error
+     * @return The status code, or <code>0</code> if the error didn't come from GCS
+     */
+    static int getStatus(Throwable e)
+    {
+        for (Throwable cause = e; cause != null; cause = cause.getCause())
+        {
+            if (cause instanceof StorageException)
+            {
+                return ((StorageException) cause).getCode();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Times a single operation. Only the first call to {@link #success(long)} or {@link #failure(Throwable)} is recorded.
+     */
+    public static class Timer
+    {
+        private final GCSOperationStats stats;
+        private final long start = System.nanoTime();
+        private boolean finished = false;
+
+        Timer(GCSOperationStats stats)
+        {
+            this.stats = stats;
+            stats.started();
+        }
+
+        /**
+         * @param bytes The number of bytes transferred
+         */
+        public void success(long bytes)
+        {
+            finish(bytes, -1);
+        }
+
+        /**
+         * @param e The error the operation failed with
+         */
+        public void failure(Throwable e)
+        {
+            finish(0, getStatus(e));
+        }
+
+        /**
+         * Adds bytes transferred after the operation was recorded, as for reads timed up to their first bytes
+         *
+         * @param bytes The number of bytes transferred
+         */
+        public void addBytes(long bytes)
+        {
+            stats.addBytes(bytes);
+        }
+
+        public boolean isFinished()
+        {
+            return finished;
+        }
+
+        private synchronized void finish(long bytes, int status)
+        {
+            if (finished)
+            {
+                return;
+            }
+            finished = true;
+            stats.finished(System.nanoTime() - start, bytes, status);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.mintel.gcs;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics of one type of GCS operation: latency histogram, bytes transferred, errors by status code and calls in progress.
+ */
+public class GCSOperationStats implements GCSOperationStatsMXBean
+{
+    /**
+     * Upper bounds of the latency histogram buckets, in milliseconds
+     */
+    private static final long[] BUCKETS = { 1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000 };
+
+    private final LongAdder count = new LongAdder();
+    private final AtomicLong inFlight = new AtomicLong();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final LongAdder[] buckets = new LongAdder[BUCKETS.length + 1];
+    private final Map<Integer, LongAdder> errors = new ConcurrentHashMap<>();
+
+    public GCSOperationStats()
+    {
+        for (int i = 0; i < buckets.length; i++)
+        {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records the start of a call
+     */
+    void started()
+    {
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * Records the end of a call
+     *
+     * @param nanos How long it took
+     * @param transferred The number of bytes transferred
+     * @param status The HTTP status of the error, <code>0</code> for an error without status or <code>-1</code> if it succeeded
+     */
+    void finished(long nanos, long transferred, int status)
+    {
+        inFlight.decrementAndGet();
+        count.increment();
+        bytes.add(transferred);
+        totalNanos.add(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int bucket = 0;
+        while (bucket < BUCKETS.length && millis > BUCKETS[bucket])
+        {
+            bucket++;
+        }
+        buckets[bucket].increment();
+        if (status >= 0)
+        {
+            errors.computeIfAbsent(status, s -> new LongAdder()).increment();
+        }
+    }
+
+    /**
+     * Records bytes transferred outside of a timed call
+     *
+     * @param transferred The number of bytes
+     */
+    void addBytes(long transferred)
+    {
+        bytes.add(transferred);
+    }
+
+    @Override
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+    @Override
+    public long getInFlight()
+    {
+        return inFlight.get();
+    }
+
+    @Override
+    public long getErrorCount()
+    {
+        long total = 0;
+        for (LongAdder error : errors.values())
+        {
+            total += error.sum();
+        }
+        return total;
+    }
+
+    @Override
+    public Map<String, Long> getErrorCountsByStatus()
+    {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (Map.Entry<Integer, LongAdder> error : errors.entrySet())
+        {
+            counts.put(String.valueOf(error.getKey()), error.getValue().sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public long getBytes()
+    {
+        return bytes.sum();
+    }
+
+    @Override
+    public double getTotalTimeMillis()
+    {
+        return totalNanos.sum() / 1e6;
+    }
+
+    @Override
+    public double getMaxTimeMillis()
+    {
+        return maxNanos.get() / 1e6;
+    }
+
+    @Override
+    public Map<String, Long> getLatencyHistogram()
+    {
+        Map<String, Long> histogram = new LinkedHashMap<>();
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS.length; i++)
+        {
+            cumulative += buckets[i].sum();
+            histogram.put(String.valueOf(BUCKETS[i]), cumulative);
+        }
+        histogram.put("+Inf", cumulative + buckets[BUCKETS.length].sum());
+        return histogram;
+    }
+}
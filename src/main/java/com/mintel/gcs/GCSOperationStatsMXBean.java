@@ -0,0 +1,52 @@
+package com.mintel.gcs;
+
+import java.util.Map;
+
+/**
+ * JMX view of the statistics of one type of GCS operation.
+ * <p>
+ * The latency histogram is cumulative, like Prometheus and Micrometer histograms: each bucket counts the calls that took at most
+ * its upper bound in milliseconds, and the <code>+Inf</code> bucket counts them all.
+ */
+public interface GCSOperationStatsMXBean
+{
+    /**
+     * @return The number of calls that finished, successfully or not
+     */
+    long getCount();
+
+    /**
+     * @return The number of calls in progress
+     */
+    long getInFlight();
+
+    /**
+     * @return The number of calls that failed
+     */
+    long getErrorCount();
+
+    /**
+     * @return The number of failed calls by HTTP status code, <code>0</code> being errors without a status
+     */
+    Map<String, Long> getErrorCountsByStatus();
+
+    /**
+     * @return The number of bytes transferred
+     */
+    long getBytes();
+
+    /**
+     * @return The total time spent in calls, in milliseconds
+     */
+    double getTotalTimeMillis();
+
+    /**
+     * @return The longest call, in milliseconds
+     */
+    double getMaxTimeMillis();
+
+    /**
+     * @return The number of calls by upper bound of their latency in milliseconds
+     */
+    Map<String, Long> getLatencyHistogram();
+}
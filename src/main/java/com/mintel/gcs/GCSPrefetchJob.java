@@ -0,0 +1,74 @@
+package com.mintel.gcs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.quartz.Job;
+import org.quartz.JobDataMap;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+
+/**
+ * Scheduled job prefetching content into the local caches of a {@link GCSContentStore}.
+ * <p>
+ * The job data holds the store under <code>gcsContentStore</code>, and comma separated lists of content URLs under
+ * <code>contentUrls</code> and of path prefixes, such as <code>2024/05/</code>, under <code>prefixes</code>. The caches are
+ * local to each node, so the job runs on every node of a cluster.
+ */
+public class GCSPrefetchJob implements Job
+{
+    private static final Log LOG = LogFactory.getLog(GCSPrefetchJob.class);
+
+    public static final String KEY_CONTENT_STORE = "gcsContentStore";
+    public static final String KEY_CONTENT_URLS = "contentUrls";
+    public static final String KEY_PREFIXES = "prefixes";
+
+    @Override
+    public void execute(JobExecutionContext context) throws JobExecutionException
+    {
+        JobDataMap jobData = context.getJobDetail().getJobDataMap();
+        Object store = jobData.get(KEY_CONTENT_STORE);
+        if (!(store instanceof GCSContentStore))
+        {
+            throw new JobExecutionException("Missing job data: " + KEY_CONTENT_STORE);
+        }
+        GCSContentStore contentStore = (GCSContentStore) store;
+        List<String> contentUrls = split(jobData.getString(KEY_CONTENT_URLS));
+        List<String> prefixes = split(jobData.getString(KEY_PREFIXES));
+        if (contentUrls.isEmpty() && prefixes.isEmpty())
+        {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        long bytes = 0;
+        if (!contentUrls.isEmpty())
+        {
+            bytes += contentStore.prefetch(contentUrls);
+        }
+        for (String prefix : prefixes)
+        {
+            bytes += contentStore.prefetchPrefix(prefix);
+        }
+        LOG.info("Prefetched " + bytes + " bytes in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private static List<String> split(String value)
+    {
+        List<String> values = new ArrayList<>();
+        if (StringUtils.isNotBlank(value))
+        {
+            for (String part : value.split(","))
+            {
+                if (StringUtils.isNotBlank(part))
+                {
+                    values.add(part.trim());
+                }
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,158 @@
+package com.mintel.gcs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Reads content ahead of demand so it lands in the local caches of the store: the block cache and the small object cache.
+ * <p>
+ * Content is read concurrently on the store's prefetch executor, with at most as many reads queued as there are threads so
+ * prefetching a large listing doesn't hold it in memory, and the bytes read by all the threads are limited to a bandwidth.
+ * Content that can't be read is logged and skipped.
+ * <p>
+ * Content that none of the enabled caches would hold, such as large content when only the small object cache is enabled or
+ * compressed content above the small object threshold, is skipped without being downloaded. Its metadata is taken from the
+ * listing when the content URLs come from a {@link GCSContentLister} created with metadata, otherwise it is requested first.
+ */
+public class GCSPrefetcher
+{
+    private static final Log LOG = LogFactory.getLog(GCSPrefetcher.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final GCSContentStore store;
+    private final ExecutorService executor;
+    private final int threads;
+    /**
+     * Limits the bytes read per second, <code>null</code> for unlimited
+     */
+    private final RateLimiter rateLimiter;
+
+    /**
+     * Initialises the prefetcher
+     *
+     * @param store The store to read the content from
+     * @param executor The executor the content is read on
+     * @param threads The number of threads of the executor
+     * @param maxBytesPerSecond The bandwidth shared by all the reads, 0 for unlimited
+     */
+    protected GCSPrefetcher(GCSContentStore store, ExecutorService executor, int threads, long maxBytesPerSecond)
+    {
+        this.store = store;
+        this.executor = executor;
+        this.threads = Math.max(1, threads);
+        this.rateLimiter = maxBytesPerSecond > 0 ? RateLimiter.create(maxBytesPerSecond) : null;
+    }
+
+    /**
+     * Reads all the content and waits for it
+     *
+     * @param contentUrls The content URLs to read, which can be lazily loaded
+     * @return The number of bytes read
+     */
+    public long prefetch(Iterator<String> contentUrls)
+    {
+        return prefetch(contentUrls, contentUrl -> null);
+    }
+
+    /**
+     * Reads all the content listed and waits for it, using the metadata of the listing if it has any
+     *
+     * @param contentUrls The content URLs to read
+     * @return The number of bytes read
+     */
+    public long prefetch(GCSContentLister contentUrls)
+    {
+        return prefetch(contentUrls, contentUrl -> contentUrls.getMetadata());
+    }
+
+    /**
+     * @param listedMetadata Gives the metadata of the content URL just returned by the iterator, <code>null</code> if it isn't known
+     */
+    private long prefetch(Iterator<String> contentUrls, Function<String, GCSMetadataCache.Metadata> listedMetadata)
+    {
+        AtomicLong bytes = new AtomicLong();
+        AtomicLong count = new AtomicLong();
+        AtomicLong skipped = new AtomicLong();
+        Semaphore slots = new Semaphore(threads * 2);
+        try
+        {
+            while (contentUrls.hasNext())
+            {
+                String contentUrl = contentUrls.next();
+                GCSMetadataCache.Metadata listed = listedMetadata.apply(contentUrl);
+                if (listed != null && !store.isPrefetchable(listed))
+                {
+                    skipped.incrementAndGet();
+                    continue;
+                }
+                slots.acquire();
+                executor.execute(() ->
+                {
+                    try
+                    {
+                        if (listed == null && !store.isPrefetchable(store.getMetadata(store.getPath(contentUrl))))
+                        {
+                            skipped.incrementAndGet();
+                            return;
+                        }
+                        bytes.addAndGet(read(contentUrl));
+                        count.incrementAndGet();
+                    }
+                    catch (IOException | RuntimeException e)
+                    {
+                        LOG.warn("Could not prefetch " + contentUrl + ": " + e.getMessage());
+                    }
+                    finally
+                    {
+                        slots.release();
+                    }
+                });
+            }
+            // Wait for the reads still running
+            slots.acquire(threads * 2);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new ContentIOException("Interrupted while prefetching content", e);
+        }
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("Prefetched " + count.get() + " content URLs, " + bytes.get() + " bytes, skipped " + skipped.get() + " no enabled cache would hold");
+        }
+        return bytes.get();
+    }
+
+    /**
+     * Reads the whole content through the store, and discards it
+     */
+    private long read(String contentUrl) throws IOException
+    {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        try (InputStream is = store.getReader(contentUrl).getContentInputStream())
+        {
+            int read;
+            while ((read = is.read(buffer)) != -1)
+            {
+                if (rateLimiter != null && read > 0)
+                {
+                    rateLimiter.acquire(read);
+                }
+                total += read;
+            }
+        }
+        return total;
+    }
+}
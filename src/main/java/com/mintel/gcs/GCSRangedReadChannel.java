@@ -0,0 +1,170 @@
+package com.mintel.gcs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.google.cloud.ReadChannel;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Storage;
+
+/**
+ * Reads an object as several ranges downloaded concurrently and hands them back in order.
+ * <p>
+ * At most <code>prefetch</code> ranges are downloaded or waiting to be consumed at any time, so the memory used is bounded by
+ * <code>prefetch * rangeSize</code> whatever the size of the object.
+ */
+public class GCSRangedReadChannel implements ReadableByteChannel
+{
+    private final Storage storage;
+    private final BlobId blobId;
+    private final long size;
+    private final int rangeSize;
+    private final int prefetch;
+    private final ExecutorService executor;
+    /**
+     * Ranges being downloaded, in the order they must be returned
+     */
+    private final Deque<Future<ByteBuffer>> ranges = new ArrayDeque<>();
+    /**
+     * Start of the next range to request
+     */
+    private long nextRange = 0;
+    /**
+     * The range being consumed
+     */
+    private ByteBuffer current;
+    private boolean open = true;
+
+    /**
+     * Initialises the ranged read channel
+     *
+     * @param storage The storage to read from
+     * @param blobId The object to read, it should include the generation so all ranges come from the same version
+     * @param size The size of the object
+     * @param rangeSize The size of each ranged read
+     * @param prefetch The number of ranges to download ahead
+     * @param executor The executor the ranges are downloaded on
+     */
+    public GCSRangedReadChannel(Storage storage, BlobId blobId, long size, int rangeSize, int prefetch, ExecutorService executor)
+    {
+        this.storage = storage;
+        this.blobId = blobId;
+        this.size = size;
+        this.rangeSize = rangeSize;
+        this.prefetch = Math.max(1, prefetch);
+        this.executor = executor;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+        if (!open)
+        {
+            throw new ClosedChannelException();
+        }
+        if (current == null || !current.hasRemaining())
+        {
+            current = nextRange();
+            if (current == null)
+            {
+                return -1;
+            }
+        }
+        int count = Math.min(dst.remaining(), current.remaining());
+        ByteBuffer slice = current.duplicate();
+        slice.limit(slice.position() + count);
+        dst.put(slice);
+        current.position(current.position() + count);
+        return count;
+    }
+
+    /**
+     * Waits for the next range, topping up the ranges being downloaded
+     *
+     * @return The next range or <code>null</code> at the end of the object
+     */
+    private ByteBuffer nextRange() throws IOException
+    {
+        while (ranges.size() < prefetch && nextRange < size)
+        {
+            long start = nextRange;
+            int length = (int) Math.min(rangeSize, size - start);
+            ranges.add(executor.submit(() -> readRange(storage, blobId, start, length)));
+            nextRange += length;
+        }
+        Future<ByteBuffer> range = ranges.poll();
+        if (range == null)
+        {
+            return null;
+        }
+        try
+        {
+            return range.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading " + blobId);
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException("Could not read range of " + blobId, e.getCause());
+        }
+    }
+
+    /**
+     * Downloads a single range of an object. The chunk size is set to the range length so it is fetched in a single request and
+     * nothing past it.
+     *
+     * @param storage The storage to read from
+     * @param blobId The object to read
+     * @param start The offset of the range
+     * @param length The length of the range, which must not go past the end of the object
+     * @return A buffer ready to be read holding the range
+     * @throws IOException If the range couldn't be read in full
+     */
+    static ByteBuffer readRange(Storage storage, BlobId blobId, long start, int length) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        try (ReadChannel channel = storage.reader(blobId))
+        {
+            channel.setChunkSize(length);
+            channel.seek(start);
+            while (buffer.hasRemaining())
+            {
+                if (channel.read(buffer) < 0)
+                {
+                    throw new IOException("Unexpected end of " + blobId + " at " + (start + buffer.position()));
+                }
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return open;
+    }
+
+    @Override
+    public void close()
+    {
+        open = false;
+        current = null;
+        for (Future<ByteBuffer> range : ranges)
+        {
+            range.cancel(true);
+        }
+        ranges.clear();
+    }
+}
@@ -0,0 +1,36 @@
+package com.mintel.gcs;
+
+import java.io.IOException;
+
+import org.quartz.Job;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+
+/**
+ * Scheduled job running a {@link GCSReconciler}, found in the job data under <code>gcsReconciler</code>.
+ * <p>
+ * The reconciliation compares the whole bucket with the whole database, so the job only needs to be enabled on one node of a
+ * cluster.
+ */
+public class GCSReconcileJob implements Job
+{
+    public static final String KEY_RECONCILER = "gcsReconciler";
+
+    @Override
+    public void execute(JobExecutionContext context) throws JobExecutionException
+    {
+        Object reconciler = context.getJobDetail().getJobDataMap().get(KEY_RECONCILER);
+        if (!(reconciler instanceof GCSReconciler))
+        {
+            throw new JobExecutionException("Missing job data: " + KEY_RECONCILER);
+        }
+        try
+        {
+            ((GCSReconciler) reconciler).reconcile();
+        }
+        catch (IOException e)
+        {
+            throw new JobExecutionException("Could not write the reconciliation reports", e);
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package com.mintel.gcs;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import org.alfresco.repo.content.ContentStore;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+/**
+ * Finds the content URLs of the database that are missing from the bucket, and the objects of the bucket that no content URL
+ * of the database refers to.
+ * <p>
+ * Neither side is loaded in memory. The content URL table is read in pages of its primary key, as sorting it by content URL
+ * would need a full sort in the database, so the sorted listing of the bucket can't be merged with it. Each side is summarised
+ * by a Bloom filter instead, sized from the number of rows of the content URL table. When a side turns out to hold more content
+ * URLs than that, its filter grows by chaining filters twice as large with half the false positive rate, so the false positive
+ * rate stays below the one configured whatever the size of the bucket. The bucket is listed once, checking each object against
+ * the database filter while building the bucket filter. The table is then read a second time to check each content URL against the bucket
+ * filter. A Bloom filter never misses an entry, so every object it reports as unreferenced is unreferenced. A false positive
+ * only hides a candidate.
+ * <p>
+ * The reconciliation is safe to run on a live node. Objects created within the grace period before the start are not reported,
+ * as their database transaction may not have committed yet. Content URLs missing from the bucket are confirmed with an
+ * existence check against the store and the other stores, such as the local file store of the aggregating store. The results
+ * are written to text files, one content URL per line.
+ */
+public class GCSReconciler
+{
+    private static final Log LOG = LogFactory.getLog(GCSReconciler.class);
+    private static final String SELECT_CONTENT_URLS = "SELECT id, content_url FROM alf_content_url WHERE id > ? ORDER BY id";
+    private static final String COUNT_CONTENT_URLS = "SELECT COUNT(*) FROM alf_content_url";
+    /**
+     * The date and time part of the content URLs created by {@link GCSContentStore#createNewUrl()}
+     */
+    private static final Pattern URL_DATE = Pattern.compile("://(\\d{4}/\\d{2}/\\d{2}/\\d{2}/\\d{2})/");
+
+    private GCSContentStore contentStore;
+    private List<ContentStore> otherStores = Collections.emptyList();
+    private DataSource dataSource;
+    private String reportDirectory;
+    private double falsePositiveRate = 0.01;
+    private int pageSize = 10000;
+    private long gracePeriodMinutes = 60;
+
+    /**
+     * Compares the bucket with the database and writes the content URLs found on one side only to the report directory
+     *
+     * @return The numbers of content URLs compared and found on one side only
+     * @throws IOException If the reports can't be written
+     */
+    public Result reconcile() throws IOException
+    {
+        long start = System.currentTimeMillis();
+        File directory = new File(reportDirectory);
+        Files.createDirectories(directory.toPath());
+        String suffix = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date(start)) + ".txt";
+        File orphanedReport = new File(directory, "orphaned-" + suffix);
+        File missingReport = new File(directory, "missing-" + suffix);
+        Result result = new Result(orphanedReport, missingReport);
+
+        // Counts the content URLs of the other stores too, which only makes the filter larger than needed
+        Long rows = new JdbcTemplate(dataSource).queryForObject(COUNT_CONTENT_URLS, Long.class);
+        ContentUrlFilter databaseUrls = new ContentUrlFilter(rows == null ? 0 : rows, falsePositiveRate);
+        result.databaseContentUrls = forEachDatabaseUrl(databaseUrls::put);
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("Read " + result.databaseContentUrls + " content URLs from the database");
+        }
+        checkFalsePositiveRate(databaseUrls, "database");
+
+        ContentUrlFilter bucketUrls = new ContentUrlFilter(result.databaseContentUrls, falsePositiveRate);
+        long createdBefore = start - TimeUnit.MINUTES.toMillis(gracePeriodMinutes);
+        try (GCSContentLister contentUrls = contentStore.getContentUrls(); BufferedWriter orphaned = Files.newBufferedWriter(orphanedReport.toPath()))
+        {
+            while (contentUrls.hasNext())
+            {
+                String contentUrl = contentUrls.next();
+                bucketUrls.put(contentUrl);
+                result.bucketContentUrls++;
+                if (!databaseUrls.mightContain(contentUrl) && getCreated(contentUrl) < createdBefore)
+                {
+                    orphaned.write(contentUrl);
+                    orphaned.newLine();
+                    result.orphaned++;
+                }
+            }
+        }
+        databaseUrls = null;
+        checkFalsePositiveRate(bucketUrls, "bucket");
+
+        try (BufferedWriter missing = Files.newBufferedWriter(missingReport.toPath()))
+        {
+            forEachDatabaseUrl(contentUrl ->
+            {
+                if (!bucketUrls.mightContain(contentUrl) && !exists(contentUrl))
+                {
+                    try
+                    {
+                        missing.write(contentUrl);
+                        missing.newLine();
+                    }
+                    catch (IOException e)
+                    {
+                        throw new UncheckedIOException(e);
+                    }
+                    result.missing++;
+                }
+            });
+        }
+        catch (UncheckedIOException e)
+        {
+            throw e.getCause();
+        }
+
+        LOG.info("Reconciled " + result + " in " + (System.currentTimeMillis() - start) + " ms");
+        return result;
+    }
+
+    /**
+     * Warns when a filter is less accurate than configured, so fewer differences than there are may be reported
+     */
+    private void checkFalsePositiveRate(ContentUrlFilter filter, String side)
+    {
+        double expectedFpp = filter.expectedFpp();
+        if (expectedFpp > falsePositiveRate)
+        {
+            LOG.warn("The " + side + " content URLs are summarised with a false positive rate of " + expectedFpp + " instead of " + falsePositiveRate
+                    + ", some differences may not be reported");
+        }
+    }
+
+    /**
+     * Reads the content URLs of the store from the database, a page at a time
+     *
+     * @param consumer Called with each content URL
+     * @return The number of content URLs
+     */
+    private long forEachDatabaseUrl(Consumer<String> consumer)
+    {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.setMaxRows(pageSize);
+        jdbcTemplate.setFetchSize(pageSize);
+        long[] lastId = { -1 };
+        long[] count = { 0 };
+        int[] rows = { 0 };
+        do
+        {
+            rows[0] = 0;
+            jdbcTemplate.query(SELECT_CONTENT_URLS, new Object[] { lastId[0] }, (RowCallbackHandler) rs ->
+            {
+                rows[0]++;
+                lastId[0] = rs.getLong(1);
+                String contentUrl = rs.getString(2);
+                if (contentStore.isContentUrlSupported(contentUrl))
+                {
+                    count[0]++;
+                    consumer.accept(contentUrl);
+                }
+            });
+        }
+        while (rows[0] >= pageSize);
+        return count[0];
+    }
+
+    /**
+     * Checks that content missing from the bucket listing is really missing: it may have been written since the listing, or live
+     * in another store
+     */
+    private boolean exists(String contentUrl)
+    {
+        try
+        {
+            if (contentStore.exists(contentUrl))
+            {
+                return true;
+            }
+            for (ContentStore store : otherStores)
+            {
+                if (store.isContentUrlSupported(contentUrl) && store.exists(contentUrl))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        catch (RuntimeException e)
+        {
+            LOG.warn("Could not check whether " + contentUrl + " exists: " + e.getMessage());
+            return true;
+        }
+    }
+
+    /**
+     * Gets the creation time from the layout of a content URL
+     *
+     * @return The creation time, or 0 if the content URL doesn't follow the layout
+     */
+    private static long getCreated(String contentUrl)
+    {
+        Matcher matcher = URL_DATE.matcher(contentUrl);
+        if (!matcher.find())
+        {
+            return 0;
+        }
+        try
+        {
+            // createNewUrl uses the local time zone
+            return new SimpleDateFormat("yyyy/MM/dd/HH/mm").parse(matcher.group(1)).getTime();
+        }
+        catch (ParseException e)
+        {
+            return 0;
+        }
+    }
+
+    /*
+     * Getters and setters
+     */
+
+    public void setContentStore(GCSContentStore contentStore)
+    {
+        this.contentStore = contentStore;
+    }
+
+    /**
+     * @param otherStores Stores that may hold content URLs of the database missing from the bucket, such as the local file store
+     */
+    public void setOtherStores(List<ContentStore> otherStores)
+    {
+        this.otherStores = otherStores;
+    }
+
+    public void setDataSource(DataSource dataSource)
+    {
+        this.dataSource = dataSource;
+    }
+
+    public void setReportDirectory(String reportDirectory)
+    {
+        this.reportDirectory = reportDirectory;
+    }
+
+    public void setFalsePositiveRate(double falsePositiveRate)
+    {
+        this.falsePositiveRate = falsePositiveRate;
+    }
+
+    public void setPageSize(int pageSize)
+    {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @param gracePeriodMinutes Objects created this recently are not reported as orphaned
+     */
+    public void setGracePeriodMinutes(long gracePeriodMinutes)
+    {
+        this.gracePeriodMinutes = gracePeriodMinutes;
+    }
+
+    /**
+     * Bloom filter of content URLs that grows with the content URLs put in it. Once a filter holds the number of content URLs it
+     * was sized for, the next ones go to a new filter twice as large with half the false positive rate, so the false positive
+     * rate of the chain stays below the one given.
+     */
+    static class ContentUrlFilter
+    {
+        /**
+         * Below this the filters are so small that growing them isn't worth it
+         */
+        private static final long MIN_CONTENT_URLS = 100000;
+
+        private final List<BloomFilter<CharSequence>> filters = new ArrayList<>();
+        private long capacity;
+        private double falsePositiveRate;
+        private long count;
+
+        /**
+         * @param expectedContentUrls The number of content URLs expected
+         * @param falsePositiveRate The false positive rate of the whole filter
+         */
+        ContentUrlFilter(long expectedContentUrls, double falsePositiveRate)
+        {
+            this.capacity = Math.max(MIN_CONTENT_URLS, expectedContentUrls);
+            this.falsePositiveRate = falsePositiveRate / 2;
+            filters.add(BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), capacity, this.falsePositiveRate));
+        }
+
+        void put(String contentUrl)
+        {
+            if (count >= capacity)
+            {
+                capacity *= 2;
+                falsePositiveRate /= 2;
+                count = 0;
+                filters.add(BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), capacity, falsePositiveRate));
+                if (LOG.isDebugEnabled())
+                {
+                    LOG.debug("Grew the content URL filter to " + capacity + " more content URLs");
+                }
+            }
+            filters.get(filters.size() - 1).put(contentUrl);
+            count++;
+        }
+
+        boolean mightContain(String contentUrl)
+        {
+            for (BloomFilter<CharSequence> filter : filters)
+            {
+                if (filter.mightContain(contentUrl))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return The probability that a content URL never put is reported as put, estimated from the filters as they are
+         */
+        double expectedFpp()
+        {
+            double none = 1;
+            for (BloomFilter<CharSequence> filter : filters)
+            {
+                none *= 1 - filter.expectedFpp();
+            }
+            return 1 - none;
+        }
+    }
+
+    /**
+     * The outcome of a reconciliation
+     */
+    public static class Result
+    {
+        private final File orphanedReport;
+        private final File missingReport;
+        private long databaseContentUrls;
+        private long bucketContentUrls;
+        private long orphaned;
+        private long missing;
+
+        Result(File orphanedReport, File missingReport)
+        {
+            this.orphanedReport = orphanedReport;
+            this.missingReport = missingReport;
+        }
+
+        /**
+         * @return The file listing the objects no content URL of the database refers to
+         */
+        public File getOrphanedReport()
+        {
+            return orphanedReport;
+        }
+
+        /**
+         * @return The file listing the content URLs of the database missing from the bucket
+         */
+        public File getMissingReport()
+        {
+            return missingReport;
+        }
+
+        public long getDatabaseContentUrls()
+        {
+            return databaseContentUrls;
+        }
+
+        public long getBucketContentUrls()
+        {
+            return bucketContentUrls;
+        }
+
+        public long getOrphaned()
+        {
+            return orphaned;
+        }
+
+        public long getMissing()
+        {
+            return missing;
+        }
+
+        @Override
+        public String toString()
+        {
+            return databaseContentUrls + " content URLs in the database and " + bucketContentUrls + " in the bucket: " + orphaned
+                    + " orphaned written to " + orphanedReport + ", " + missing + " missing written to " + missingReport;
+        }
+    }
+}
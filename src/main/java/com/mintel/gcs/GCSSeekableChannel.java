@@ -0,0 +1,294 @@
+package com.mintel.gcs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Storage;
+
+/**
+ * Read-only random access to a GCS object using range reads.
+ * <p>
+ * The object is fetched in fixed-size blocks as they are needed and the most recently used blocks are kept, so reading the header
+ * or trailer of a large file only downloads the blocks around it. It extends {@link FileChannel} so that
+ * {@link org.alfresco.repo.content.AbstractContentReader#getFileChannel()} can hand it out without spooling the whole object to a
+ * temporary file first.
+ * <p>
+ * With a {@link GCSBlockCache} the blocks are kept on local disk instead, shared with all the other readers of the object, and read
+ * straight from their files into the caller's buffers, so the channel keeps no block in memory.
+ */
+public class GCSSeekableChannel extends FileChannel
+{
+    private final Storage storage;
+    private final BlobId blobId;
+    private final long size;
+    private final int blockSize;
+    /**
+     * The local disk cache the blocks are read through, or <code>null</code>
+     */
+    private final GCSBlockCache blockCache;
+    /**
+     * The most recently used blocks by block index, when there is no disk cache
+     */
+    private final Map<Long, ByteBuffer> blocks;
+    private long position = 0;
+
+    /**
+     * Initialises the seekable channel
+     *
+     * @param storage The storage to read from
+     * @param blobId The object to read, it should include the generation so all blocks come from the same version
+     * @param size The size of the object
+     * @param blockSize The size of each range read
+     * @param cacheBlocks The number of blocks to keep
+     */
+    public GCSSeekableChannel(Storage storage, BlobId blobId, long size, int blockSize, int cacheBlocks)
+    {
+        this(storage, blobId, size, blockSize, cacheBlocks, null);
+    }
+
+    /**
+     * Initialises a seekable channel reading its blocks through a local disk cache
+     *
+     * @param storage The storage to read from
+     * @param blobId The object to read, it must include the generation for the blocks to be cached
+     * @param size The size of the object
+     * @param blockCache The local disk cache, which sets the block size
+     */
+    public GCSSeekableChannel(Storage storage, BlobId blobId, long size, GCSBlockCache blockCache)
+    {
+        this(storage, blobId, size, blockCache.getBlockSize(), 0, blockCache);
+    }
+
+    private GCSSeekableChannel(Storage storage, BlobId blobId, long size, int blockSize, int cacheBlocks, GCSBlockCache blockCache)
+    {
+        this.storage = storage;
+        this.blobId = blobId;
+        this.size = size;
+        this.blockSize = blockSize;
+        this.blockCache = blockCache;
+        this.blocks = new LinkedHashMap<Long, ByteBuffer>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, ByteBuffer> eldest)
+            {
+                return size() > cacheBlocks;
+            }
+        };
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException
+    {
+        int read = read(dst, position);
+        if (read > 0)
+        {
+            position += read;
+        }
+        return read;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst, long position) throws IOException
+    {
+        ensureOpen();
+        if (position >= size)
+        {
+            return -1;
+        }
+        int read = 0;
+        long offset = position;
+        while (dst.hasRemaining() && offset < size)
+        {
+            long index = offset / blockSize;
+            int blockOffset = (int) (offset % blockSize);
+            int count;
+            if (blockCache != null)
+            {
+                count = blockCache.read(blobId, index, blockOffset, dst, () -> loadBlock(index));
+                if (count < 0)
+                {
+                    throw new IOException("Block " + index + " of " + blobId + " is shorter than expected");
+                }
+            }
+            else
+            {
+                ByteBuffer block = getBlock(index).duplicate();
+                block.position(blockOffset);
+                count = Math.min(dst.remaining(), block.remaining());
+                block.limit(block.position() + count);
+                dst.put(block);
+            }
+            offset += count;
+            read += count;
+        }
+        return read;
+    }
+
+    @Override
+    public synchronized long read(ByteBuffer[] dsts, int offset, int length) throws IOException
+    {
+        long read = 0;
+        for (int i = offset; i < offset + length; i++)
+        {
+            int count = read(dsts[i]);
+            if (count < 0)
+            {
+                return read == 0 ? -1 : read;
+            }
+            read += count;
+        }
+        return read;
+    }
+
+    /**
+     * Gets a block from memory or GCS
+     */
+    private ByteBuffer getBlock(long index) throws IOException
+    {
+        ByteBuffer block = blocks.get(index);
+        if (block == null)
+        {
+            block = loadBlock(index);
+            blocks.put(index, block);
+        }
+        return block;
+    }
+
+    /**
+     * Downloads a block from GCS
+     */
+    private ByteBuffer loadBlock(long index) throws IOException
+    {
+        long start = index * blockSize;
+        return GCSRangedReadChannel.readRange(storage, blobId, start, (int) Math.min(blockSize, size - start));
+    }
+
+    @Override
+    public synchronized long position() throws IOException
+    {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized FileChannel position(long newPosition) throws IOException
+    {
+        ensureOpen();
+        if (newPosition < 0)
+        {
+            throw new IllegalArgumentException("Negative position " + newPosition);
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException
+    {
+        ensureOpen();
+        return size;
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(blockSize, count));
+        long transferred = 0;
+        while (transferred < count)
+        {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count - transferred));
+            int read = read(buffer, position + transferred);
+            if (read <= 0)
+            {
+                break;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining())
+            {
+                transferred += target.write(buffer);
+            }
+        }
+        return transferred;
+    }
+
+    @Override
+    public int write(ByteBuffer src)
+    {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length)
+    {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position)
+    {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public FileChannel truncate(long size)
+    {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count)
+    {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public void force(boolean metaData)
+    {
+        // Nothing is ever written
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size)
+    {
+        throw new UnsupportedOperationException("GCS content can't be memory mapped");
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared)
+    {
+        throw new UnsupportedOperationException("GCS content can't be locked");
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared)
+    {
+        throw new UnsupportedOperationException("GCS content can't be locked");
+    }
+
+    @Override
+    protected synchronized void implCloseChannel()
+    {
+        blocks.clear();
+    }
+
+    private void ensureOpen() throws ClosedChannelException
+    {
+        if (!isOpen())
+        {
+            throw new ClosedChannelException();
+        }
+    }
+}
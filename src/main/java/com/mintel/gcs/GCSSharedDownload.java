@@ -0,0 +1,249 @@
+package com.mintel.gcs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A single download of an object shared by all the readers that asked for it while it was running.
+ * <p>
+ * The object is streamed from GCS to a spool file, and each reader reads that file as it grows, waiting for more bytes when it has
+ * caught up with the download. The download stops early if every reader closes before it completes, and the spool file is deleted
+ * once the download is over and the last reader has closed.
+ */
+public class GCSSharedDownload implements Runnable
+{
+    private static final Log LOG = LogFactory.getLog(GCSSharedDownload.class);
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final File file;
+    private final Supplier<ReadableByteChannel> source;
+    private final Consumer<GCSSharedDownload> onComplete;
+
+    /**
+     * The number of bytes written to the spool file so far
+     */
+    private long downloaded = 0;
+    private boolean complete = false;
+    private Throwable failure;
+    /**
+     * The number of readers that haven't been closed yet
+     */
+    private int readers = 0;
+    /**
+     * Set when the last reader closed or the spool file was deleted, no reader can join after that
+     */
+    private boolean abandoned = false;
+
+    /**
+     * Initialises the shared download
+     *
+     * @param file The spool file, which must exist and be empty
+     * @param source Opens the stream of the object in GCS
+     * @param onComplete Called once the download is over, successful or not
+     */
+    public GCSSharedDownload(File file, Supplier<ReadableByteChannel> source, Consumer<GCSSharedDownload> onComplete)
+    {
+        this.file = file;
+        this.source = source;
+        this.onComplete = onComplete;
+    }
+
+    /**
+     * Adds a reader to the download
+     *
+     * @return The channel of the reader, or <code>null</code> if every reader has already closed and the download can't be joined
+     * @throws IOException If the spool file can't be opened
+     */
+    public synchronized ReadableByteChannel join() throws IOException
+    {
+        if (abandoned)
+        {
+            return null;
+        }
+        ReadableByteChannel channel = new SpoolReader(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+        readers++;
+        return channel;
+    }
+
+    /**
+     * Downloads the object to the spool file
+     */
+    @Override
+    public void run()
+    {
+        try (ReadableByteChannel in = source.get(); FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.WRITE))
+        {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while (!isAbandoned() && in.read(buffer) >= 0)
+            {
+                buffer.flip();
+                int count = buffer.remaining();
+                while (buffer.hasRemaining())
+                {
+                    out.write(buffer);
+                }
+                buffer.clear();
+                synchronized (this)
+                {
+                    downloaded += count;
+                    notifyAll();
+                }
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            if (LOG.isDebugEnabled())
+            {
+                LOG.debug("Shared download to " + file + " failed", e);
+            }
+            synchronized (this)
+            {
+                failure = e;
+            }
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                complete = true;
+                notifyAll();
+                deleteIfDone();
+            }
+            onComplete.accept(this);
+        }
+    }
+
+    private synchronized boolean isAbandoned()
+    {
+        return abandoned;
+    }
+
+    /**
+     * Deletes the spool file once nothing needs it anymore
+     */
+    private void deleteIfDone()
+    {
+        if (complete && readers == 0)
+        {
+            abandoned = true;
+            if (!file.delete() && file.exists())
+            {
+                LOG.warn("Could not delete the spool file " + file);
+            }
+        }
+    }
+
+    /**
+     * Waits until there are bytes to read after a position or the download is over
+     *
+     * @return The number of bytes available after the position, or -1 at the end of the object
+     */
+    private synchronized long awaitAvailable(long position) throws IOException
+    {
+        while (position >= downloaded && !complete)
+        {
+            try
+            {
+                wait();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a shared download");
+            }
+        }
+        if (position < downloaded)
+        {
+            return downloaded - position;
+        }
+        if (failure instanceof IOException)
+        {
+            throw (IOException) failure;
+        }
+        if (failure instanceof RuntimeException)
+        {
+            throw (RuntimeException) failure;
+        }
+        return -1;
+    }
+
+    private synchronized void leave()
+    {
+        readers--;
+        if (readers == 0)
+        {
+            abandoned = true;
+            deleteIfDone();
+        }
+    }
+
+    /**
+     * A reader of the spool file
+     */
+    private class SpoolReader implements ReadableByteChannel
+    {
+        private final FileChannel channel;
+        private long position = 0;
+        private boolean open = true;
+
+        SpoolReader(FileChannel channel)
+        {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException
+        {
+            if (!open)
+            {
+                throw new ClosedChannelException();
+            }
+            if (!dst.hasRemaining())
+            {
+                return 0;
+            }
+            long available = awaitAvailable(position);
+            if (available < 0)
+            {
+                return -1;
+            }
+            ByteBuffer window = dst.duplicate();
+            window.limit(window.position() + (int) Math.min(window.remaining(), available));
+            int read = channel.read(window, position);
+            if (read > 0)
+            {
+                dst.position(window.position());
+                position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (open)
+            {
+                open = false;
+                channel.close();
+                leave();
+            }
+        }
+    }
+}
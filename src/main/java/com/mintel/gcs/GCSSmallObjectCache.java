@@ -0,0 +1,160 @@
+package com.mintel.gcs;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Heap cache of the content of small objects shared by all the readers of a store, keyed by path and bounded by the total size of
+ * the content it holds.
+ * <p>
+ * Entries remember the generation of the object so content overwritten outside this store is never served once its new metadata
+ * is known. The least recently used entries are evicted when the cache is full. The cached arrays are shared and must not be
+ * modified.
+ */
+public class GCSSmallObjectCache
+{
+    private final long maxSize;
+    /**
+     * The cached content by path, in access order
+     */
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * The total size of the cached content
+     */
+    private long size = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Initialises the small object cache
+     *
+     * @param maxSize The maximum total size of the cached content
+     */
+    public GCSSmallObjectCache(long maxSize)
+    {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Gets the cached content of an object
+     *
+     * @param path The path of the object in the bucket
+     * @param generation The generation of the object, <code>null</code> if it isn't known
+     * @return The content or <code>null</code> if it isn't cached or is another generation
+     */
+    public byte[] get(String path, Long generation)
+    {
+        synchronized (entries)
+        {
+            Entry entry = entries.get(path);
+            if (entry != null && (generation == null || Objects.equals(generation, entry.generation)))
+            {
+                hits.incrementAndGet();
+                return entry.content;
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Caches the content of an object, evicting the least recently used objects to make room for it
+     *
+     * @param path The path of the object in the bucket
+     * @param generation The generation of the object
+     * @param content The whole content of the object
+     */
+    public void put(String path, Long generation, byte[] content)
+    {
+        if (content.length > maxSize)
+        {
+            return;
+        }
+        synchronized (entries)
+        {
+            Entry previous = entries.put(path, new Entry(generation, content));
+            size += content.length - (previous == null ? 0 : previous.content.length);
+            Iterator<Entry> it = entries.values().iterator();
+            while (size > maxSize && it.hasNext())
+            {
+                size -= it.next().content.length;
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Forgets the content of an object that was written or deleted
+     *
+     * @param path The path of the object in the bucket
+     */
+    public void invalidate(String path)
+    {
+        synchronized (entries)
+        {
+            Entry entry = entries.remove(path);
+            if (entry != null)
+            {
+                size -= entry.content.length;
+            }
+        }
+    }
+
+    /**
+     * @return The total size of the cached content
+     */
+    public long getSize()
+    {
+        synchronized (entries)
+        {
+            return size;
+        }
+    }
+
+    /**
+     * @return The number of cached objects
+     */
+    public int getEntryCount()
+    {
+        synchronized (entries)
+        {
+            return entries.size();
+        }
+    }
+
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+
+    public long getEvictionCount()
+    {
+        return evictions.get();
+    }
+
+    /**
+     * The content of an object and the generation it belongs to
+     */
+    private static class Entry
+    {
+        private final Long generation;
+        private final byte[] content;
+
+        Entry(Long generation, byte[] content)
+        {
+            this.generation = generation;
+            this.content = content;
+        }
+    }
+}
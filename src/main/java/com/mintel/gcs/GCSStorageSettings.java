@@ -0,0 +1,135 @@
+package com.mintel.gcs;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.threeten.bp.Duration;
+
+import com.google.api.client.http.apache.v2.ApacheHttpTransport;
+import com.google.api.gax.retrying.RetrySettings;
+import com.google.auth.http.HttpTransportFactory;
+import com.google.cloud.http.HttpTransportOptions;
+import com.google.cloud.storage.StorageOptions;
+
+/**
+ * Settings of the GCS client: HTTP connection pool, timeouts and retries.
+ * <p>
+ * The defaults are those of the Google client, except for the transport: a pooled Apache HTTP client is used instead of
+ * <code>HttpURLConnection</code>, whose JVM-wide keep-alive pool only holds 5 connections per host by default. GCS is reached
+ * through its JSON API, the only one of the google-cloud-storage version used: the gRPC API needs google-cloud-storage 2.x.
+ */
+public class GCSStorageSettings
+{
+    private int connectTimeoutMillis = 20000;
+    private int readTimeoutMillis = 20000;
+    private int maxConnectionsPerRoute = 20;
+    private int maxConnectionsTotal = 200;
+    /**
+     * Class name of a custom {@link HttpTransportFactory}, which replaces the pooled transport
+     */
+    private String httpTransportFactory;
+
+    private int maxAttempts = 6;
+    private long initialRetryDelayMillis = 1000;
+    private double retryDelayMultiplier = 2.0;
+    private long maxRetryDelayMillis = 32000;
+    private long totalTimeoutMillis = 50000;
+
+    /**
+     * Applies the settings to the builder of the storage options
+     *
+     * @param builder The storage options builder
+     * @return The builder
+     * @throws Exception If the custom transport factory can't be created
+     */
+    public StorageOptions.Builder apply(StorageOptions.Builder builder) throws Exception
+    {
+        HttpTransportOptions transportOptions = HttpTransportOptions.newBuilder().setConnectTimeout(connectTimeoutMillis).setReadTimeout(readTimeoutMillis)
+                .setHttpTransportFactory(getHttpTransportFactory()).build();
+        RetrySettings retrySettings = RetrySettings.newBuilder().setMaxAttempts(maxAttempts).setInitialRetryDelay(Duration.ofMillis(initialRetryDelayMillis))
+                .setRetryDelayMultiplier(retryDelayMultiplier).setMaxRetryDelay(Duration.ofMillis(maxRetryDelayMillis))
+                .setTotalTimeout(Duration.ofMillis(totalTimeoutMillis)).setInitialRpcTimeout(Duration.ofMillis(totalTimeoutMillis))
+                .setRpcTimeoutMultiplier(1.0).setMaxRpcTimeout(Duration.ofMillis(totalTimeoutMillis)).setJittered(true).build();
+        return builder.setTransportOptions(transportOptions).setRetrySettings(retrySettings);
+    }
+
+    /**
+     * Gets the factory of the HTTP transport, also used to authenticate
+     *
+     * @return The custom factory if one is configured, otherwise a factory of pooled Apache HTTP transports
+     * @throws Exception If the custom factory can't be created
+     */
+    public HttpTransportFactory getHttpTransportFactory() throws Exception
+    {
+        if (StringUtils.isNotBlank(httpTransportFactory))
+        {
+            return (HttpTransportFactory) Class.forName(httpTransportFactory.trim()).getDeclaredConstructor().newInstance();
+        }
+        int perRoute = maxConnectionsPerRoute;
+        int total = maxConnectionsTotal;
+        return () ->
+        {
+            HttpClientBuilder clientBuilder = ApacheHttpTransport.newDefaultHttpClientBuilder().setMaxConnPerRoute(perRoute).setMaxConnTotal(total);
+            return new ApacheHttpTransport(clientBuilder.build());
+        };
+    }
+
+    /*
+     * Getters and setters
+     */
+
+    public void setConnectTimeoutMillis(int connectTimeoutMillis)
+    {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    public void setReadTimeoutMillis(int readTimeoutMillis)
+    {
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute)
+    {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    public void setMaxConnectionsTotal(int maxConnectionsTotal)
+    {
+        this.maxConnectionsTotal = maxConnectionsTotal;
+    }
+
+    /**
+     * @param httpTransportFactory Class name of a {@link HttpTransportFactory} with a no-argument constructor, blank for the pooled default
+     */
+    public void setHttpTransportFactory(String httpTransportFactory)
+    {
+        this.httpTransportFactory = httpTransportFactory;
+    }
+
+    public void setMaxAttempts(int maxAttempts)
+    {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public void setInitialRetryDelayMillis(long initialRetryDelayMillis)
+    {
+        this.initialRetryDelayMillis = initialRetryDelayMillis;
+    }
+
+    public void setRetryDelayMultiplier(double retryDelayMultiplier)
+    {
+        this.retryDelayMultiplier = retryDelayMultiplier;
+    }
+
+    public void setMaxRetryDelayMillis(long maxRetryDelayMillis)
+    {
+        this.maxRetryDelayMillis = maxRetryDelayMillis;
+    }
+
+    /**
+     * @param totalTimeoutMillis The deadline of a call including all its retries
+     */
+    public void setTotalTimeoutMillis(long totalTimeoutMillis)
+    {
+        this.totalTimeoutMillis = totalTimeoutMillis;
+    }
+}
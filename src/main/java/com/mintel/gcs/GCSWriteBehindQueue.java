@@ -0,0 +1,324 @@
+package com.mintel.gcs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import org.alfresco.util.TempFileProvider;
+import org.alfresco.util.TraceableThreadFactory;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Uploads spooled content to GCS in the background so the writer's transaction doesn't wait for the transfer.
+ * <p>
+ * The spooled file is kept as the local copy of the content until its upload has finished, so readers can be served from it in
+ * the meantime. The uploads run on a bounded thread pool with a bounded queue. When the queue is full the upload runs on the
+ * writer's thread instead, which slows writers down rather than letting the backlog grow without limit.
+ * <p>
+ * A failed upload is tried again with an exponential backoff. Once it has failed <code>maxAttempts</code> times it is marked as
+ * failed: its local copy keeps being served, and it is tried again on the next start. Each spooled file has a small companion
+ * file naming its bucket and path, so the uploads interrupted by a crash or a restart can be recovered from the spool directory
+ * with {@link #recover(Set, BiConsumer, Consumer)}.
+ * <p>
+ * The pending uploads are only known to this node. Other nodes of a cluster don't find the content until it is uploaded.
+ */
+public class GCSWriteBehindQueue
+{
+    private static final Log LOG = LogFactory.getLog(GCSWriteBehindQueue.class);
+    /**
+     * Long-life temporary directory holding the content waiting to be uploaded
+     */
+    private static final String SPOOL_DIR = "gcs-write-behind";
+    /**
+     * Suffix of the companion files holding the bucket and the path of the spooled files
+     */
+    private static final String TARGET_SUFFIX = ".target";
+    /**
+     * How long to wait for the queued uploads to finish on shutdown
+     */
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 300;
+
+    private final ThreadPoolExecutor executor;
+    /**
+     * Runs the uploads again once their backoff is over
+     */
+    private final ScheduledExecutorService retryExecutor;
+    private final int maxAttempts;
+    private final long retryDelayMillis;
+    /**
+     * The local copies of content that hasn't been uploaded yet, by path
+     */
+    private final Map<String, File> pending = new ConcurrentHashMap<>();
+    /**
+     * The paths of the content whose upload failed <code>maxAttempts</code> times
+     */
+    private final Set<String> failed = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Initialises the write-behind queue
+     *
+     * @param threads The number of concurrent uploads
+     * @param queueSize The number of uploads that can wait for a thread before writers upload themselves
+     * @param maxAttempts The number of times an upload is tried before it is marked as failed
+     * @param retryDelayMillis How long to wait before trying a failed upload again the first time, doubled at each attempt
+     */
+    public GCSWriteBehindQueue(int threads, int queueSize, int maxAttempts, long retryDelayMillis)
+    {
+        TraceableThreadFactory threadFactory = new TraceableThreadFactory();
+        threadFactory.setNamePrefix("GCSWriteBehind");
+        threadFactory.setThreadDaemon(true);
+        this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize), threadFactory,
+                (task, executor) -> task.run());
+        TraceableThreadFactory retryThreadFactory = new TraceableThreadFactory();
+        retryThreadFactory.setNamePrefix("GCSWriteBehindRetry");
+        retryThreadFactory.setThreadDaemon(true);
+        this.retryExecutor = Executors.newSingleThreadScheduledExecutor(retryThreadFactory);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryDelayMillis = retryDelayMillis;
+    }
+
+    /**
+     * Creates the file to spool content into. It lives in a long-life temporary directory so that it isn't cleaned up while it
+     * is still waiting to be uploaded.
+     *
+     * @param prefix The prefix of the file name
+     * @return The new file
+     */
+    public File createSpoolFile(String prefix)
+    {
+        return TempFileProvider.createTempFile(prefix, ".bin", TempFileProvider.getLongLifeTempDir(SPOOL_DIR));
+    }
+
+    /**
+     * Queues the upload of a spooled file
+     *
+     * @param bucketName The bucket the content is uploaded to
+     * @param path The path of the content in the bucket
+     * @param file The local copy of the content
+     * @param upload Uploads the file
+     * @param undo Removes the uploaded object, used if the content was deleted while it was being uploaded
+     */
+    public void submit(String bucketName, String path, File file, Runnable upload, Runnable undo)
+    {
+        try
+        {
+            Files.write(getTargetFile(file).toPath(), Arrays.asList(bucketName, path), StandardCharsets.UTF_8);
+        }
+        catch (IOException e)
+        {
+            LOG.warn("Could not record the target of " + file + ", its upload can't be recovered after a restart", e);
+        }
+        pending.put(path, file);
+        executor.execute(new Upload(path, file, upload, undo));
+    }
+
+    /**
+     * Queues the uploads that a previous run left in the spool directory, such as the ones interrupted by a crash or that had
+     * failed. Only the content of the given buckets is recovered, as stores share the spool directory.
+     *
+     * @param bucketNames The buckets of the store
+     * @param upload Uploads a spooled file to a path
+     * @param undo Removes the object of a path, used if the content was deleted while it was being uploaded
+     * @return The number of uploads queued
+     */
+    public int recover(Set<String> bucketNames, BiConsumer<String, File> upload, Consumer<String> undo)
+    {
+        File[] targetFiles = TempFileProvider.getLongLifeTempDir(SPOOL_DIR).listFiles((dir, name) -> name.endsWith(TARGET_SUFFIX));
+        if (targetFiles == null)
+        {
+            return 0;
+        }
+        int recovered = 0;
+        for (File targetFile : targetFiles)
+        {
+            List<String> target;
+            try
+            {
+                target = Files.readAllLines(targetFile.toPath(), StandardCharsets.UTF_8);
+            }
+            catch (IOException e)
+            {
+                LOG.warn("Could not read " + targetFile + ", skipping it", e);
+                continue;
+            }
+            if (target.size() < 2 || !bucketNames.contains(target.get(0)))
+            {
+                continue;
+            }
+            String path = target.get(1);
+            String name = targetFile.getName();
+            File file = new File(targetFile.getParentFile(), name.substring(0, name.length() - TARGET_SUFFIX.length()));
+            if (!file.exists())
+            {
+                targetFile.delete();
+                continue;
+            }
+            if (pending.putIfAbsent(path, file) == null)
+            {
+                LOG.info("Recovering the background upload of " + path + " from " + file);
+                executor.execute(new Upload(path, file, () -> upload.accept(path, file), () -> undo.accept(path)));
+                recovered++;
+            }
+        }
+        return recovered;
+    }
+
+    /**
+     * Gets the local copy of content that is waiting to be uploaded
+     *
+     * @param path The path of the content in the bucket
+     * @return The local file or <code>null</code> if the content isn't waiting to be uploaded
+     */
+    public File getPendingFile(String path)
+    {
+        return pending.get(path);
+    }
+
+    /**
+     * Checks if the upload of content has failed <code>maxAttempts</code> times. Its local copy is still served and it is
+     * tried again on the next start.
+     *
+     * @param path The path of the content in the bucket
+     * @return <code>true</code> if the upload has failed
+     */
+    public boolean isFailed(String path)
+    {
+        return failed.contains(path);
+    }
+
+    /**
+     * Forgets content that was deleted, so its upload is skipped or undone
+     *
+     * @param path The path of the content in the bucket
+     */
+    public void remove(String path)
+    {
+        File file = pending.remove(path);
+        if (file != null && failed.remove(path))
+        {
+            // No upload is left to clean it up
+            delete(file);
+        }
+    }
+
+    /**
+     * Stops accepting uploads and waits for the queued ones to finish. Uploads waiting for a retry are left for the next start.
+     */
+    public void shutdown()
+    {
+        retryExecutor.shutdownNow();
+        executor.shutdown();
+        try
+        {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+            {
+                LOG.warn(pending.size() + " uploads didn't finish before shutdown, their content is kept in " + TempFileProvider.getLongLifeTempDir(SPOOL_DIR));
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Deletes a spooled file and its companion file
+     */
+    private static void delete(File file)
+    {
+        file.delete();
+        getTargetFile(file).delete();
+    }
+
+    private static File getTargetFile(File file)
+    {
+        return new File(file.getPath() + TARGET_SUFFIX);
+    }
+
+    /**
+     * The upload of a spooled file, tried again after a backoff when it fails
+     */
+    private class Upload implements Runnable
+    {
+        private final String path;
+        private final File file;
+        private final Runnable upload;
+        private final Runnable undo;
+        private int attempts = 0;
+
+        Upload(String path, File file, Runnable upload, Runnable undo)
+        {
+            this.path = path;
+            this.file = file;
+            this.upload = upload;
+            this.undo = undo;
+        }
+
+        @Override
+        public void run()
+        {
+            if (pending.get(path) != file)
+            {
+                // Deleted before we got to it
+                delete(file);
+                return;
+            }
+            try
+            {
+                upload.run();
+            }
+            catch (Throwable e)
+            {
+                retry(e);
+                return;
+            }
+            if (!pending.remove(path, file))
+            {
+                undo.run();
+            }
+            delete(file);
+            if (LOG.isDebugEnabled())
+            {
+                LOG.debug("Background upload of " + path + " finished");
+            }
+        }
+
+        private void retry(Throwable e)
+        {
+            attempts++;
+            if (attempts >= maxAttempts || retryExecutor.isShutdown())
+            {
+                failed.add(path);
+                LOG.error("Background upload of " + path + " failed " + attempts + " times, the content is served from " + file
+                        + " and its upload will be tried again on the next start", e);
+                return;
+            }
+            long delay = retryDelayMillis << Math.min(attempts - 1, 20);
+            LOG.warn("Background upload of " + path + " failed, trying again in " + delay + "ms", e);
+            try
+            {
+                retryExecutor.schedule(() -> executor.execute(this), delay, TimeUnit.MILLISECONDS);
+            }
+            catch (RejectedExecutionException rejected)
+            {
+                // Shutting down
+                failed.add(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,634 @@
+package com.mintel.gcs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.storage.model.Bucket;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.cloud.NoCredentials;
+import com.google.cloud.ServiceRpc;
+import com.google.cloud.Tuple;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageException;
+import com.google.cloud.storage.StorageOptions;
+import com.google.cloud.storage.contrib.nio.testing.FakeStorageRpc;
+import com.google.cloud.storage.spi.StorageRpcFactory;
+import com.google.cloud.storage.spi.v1.RpcBatch;
+import com.google.cloud.storage.spi.v1.StorageRpc;
+import com.google.common.io.ByteStreams;
+
+/**
+ * In-memory GCS for the tests, built on the fake of google-cloud-nio like the benchmarks.
+ * <p>
+ * On top of that fake every bucket is reported as existing unless it is marked missing, listings come out in name order like
+ * they do from GCS, and objects get generations, metagenerations and CRC32Cs. Generation and metageneration preconditions are
+ * honoured, and updates, compositions and batches are supported. Calls can be made to fail or to be slow, and uploads to be
+ * corrupted on the way.
+ */
+public class FakeStorage implements InvocationHandler
+{
+    private static final int NOT_FOUND = 404;
+    private static final int PRECONDITION_FAILED = 412;
+
+    private final StorageRpc delegate = new FakeStorageRpc(false);
+    private final StorageRpc rpc = (StorageRpc) Proxy.newProxyInstance(StorageRpc.class.getClassLoader(), new Class<?>[] { StorageRpc.class }, this);
+    private final Storage storage = StorageOptions.newBuilder().setProjectId("test").setCredentials(NoCredentials.getInstance())
+            .setServiceRpcFactory(new Factory(rpc)).build().getService();
+    private final AtomicLong generations = new AtomicLong(1000);
+    private final Set<String> missingBuckets = ConcurrentHashMap.newKeySet();
+    private final List<Interceptor> interceptors = new CopyOnWriteArrayList<>();
+    private final Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+    /**
+     * The objects being uploaded by upload id
+     */
+    private final Map<String, StorageObject> uploads = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> uploadContents = new ConcurrentHashMap<>();
+    private volatile boolean corruptWrites = false;
+
+    /**
+     * @return The storage client talking to this fake
+     */
+    public Storage getStorage()
+    {
+        return storage;
+    }
+
+    /**
+     * Makes a bucket unknown
+     */
+    public void setMissing(String bucketName)
+    {
+        missingBuckets.add(bucketName);
+    }
+
+    /**
+     * Fails the calls of an RPC method on the objects whose name starts with a prefix
+     *
+     * @param method The name of the method of {@link StorageRpc}, or <code>batchGet</code> and <code>batchDelete</code> for gets and
+     *            deletes in batches
+     * @param namePrefix The beginning of the object names
+     * @param code The HTTP status of the failure
+     */
+    public void failOn(String method, String namePrefix, int code)
+    {
+        interceptors.add((m, name) ->
+        {
+            if (m.equals(method) && name != null && name.startsWith(namePrefix))
+            {
+                throw new StorageException(code, "Injected failure of " + method + " on " + name);
+            }
+        });
+    }
+
+    /**
+     * Fails the first call of an RPC method on the objects whose name starts with a prefix
+     */
+    public void failOnce(String method, String namePrefix, int code)
+    {
+        AtomicBoolean failed = new AtomicBoolean();
+        interceptors.add((m, name) ->
+        {
+            if (m.equals(method) && name != null && name.startsWith(namePrefix) && failed.compareAndSet(false, true))
+            {
+                throw new StorageException(code, "Injected failure of " + method + " on " + name);
+            }
+        });
+    }
+
+    /**
+     * Runs an action before the first call of an RPC method on the objects whose name starts with a prefix, such as a concurrent
+     * change made by another node
+     */
+    public void beforeOnce(String method, String namePrefix, Runnable action)
+    {
+        AtomicBoolean done = new AtomicBoolean();
+        interceptors.add((m, name) ->
+        {
+            if (m.equals(method) && name != null && name.startsWith(namePrefix) && done.compareAndSet(false, true))
+            {
+                action.run();
+            }
+        });
+    }
+
+    /**
+     * Slows down the calls of an RPC method on the objects whose name starts with a prefix
+     */
+    public void delayOn(String method, String namePrefix, long millis)
+    {
+        interceptors.add((m, name) ->
+        {
+            if (m.equals(method) && name != null && name.startsWith(namePrefix))
+            {
+                try
+                {
+                    Thread.sleep(millis);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new StorageException(0, "Interrupted");
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes the failures and delays
+     */
+    public void reset()
+    {
+        interceptors.clear();
+        corruptWrites = false;
+    }
+
+    /**
+     * @param corruptWrites <code>true</code> to flip a bit of every resumable upload chunk GCS receives
+     */
+    public void setCorruptWrites(boolean corruptWrites)
+    {
+        this.corruptWrites = corruptWrites;
+    }
+
+    /**
+     * @return How many times an RPC method was called
+     */
+    public int getCalls(String method)
+    {
+        AtomicInteger count = calls.get(method);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * @return How many RPC calls were made, whatever their method
+     */
+    public int getCalls()
+    {
+        int total = 0;
+        for (AtomicInteger count : calls.values())
+        {
+            total += count.get();
+        }
+        return total;
+    }
+
+    /**
+     * Lists the names of all the objects of a bucket
+     */
+    public List<String> list(String bucketName)
+    {
+        List<String> names = new ArrayList<>();
+        storage.list(bucketName).iterateAll().forEach(blob -> names.add(blob.getName()));
+        return names;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+    {
+        if (method.getDeclaringClass() == Object.class)
+        {
+            return method.invoke(delegate, args);
+        }
+        String name = method.getName();
+        calls.computeIfAbsent(name, n -> new AtomicInteger()).incrementAndGet();
+        intercept(name, getObjectName(args));
+        try
+        {
+            switch (name)
+            {
+            case "get":
+                return args[0] instanceof Bucket ? getBucket((Bucket) args[0]) : get((StorageObject) args[0]);
+            case "list":
+                return args.length == 2 && args[0] instanceof String ? list((String) args[0], method, args) : method.invoke(delegate, args);
+            case "create":
+                return args[0] instanceof StorageObject ? create((StorageObject) args[0], ByteStreams.toByteArray((InputStream) args[1]), option(args[2],
+                        StorageRpc.Option.IF_GENERATION_MATCH)) : method.invoke(delegate, args);
+            case "open":
+                return args[0] instanceof StorageObject ? open((StorageObject) args[0], option(args[1], StorageRpc.Option.IF_GENERATION_MATCH))
+                        : method.invoke(delegate, args);
+            case "write":
+                write(args);
+                return null;
+            case "read":
+            case "load":
+                checkReadable((StorageObject) args[0]);
+                synchronized (delegate)
+                {
+                    return method.invoke(delegate, args);
+                }
+            case "patch":
+                return args[0] instanceof StorageObject ? patch((StorageObject) args[0], option(args[1], StorageRpc.Option.IF_METAGENERATION_MATCH))
+                        : method.invoke(delegate, args);
+            case "delete":
+                return args[0] instanceof StorageObject ? delete((StorageObject) args[0], option(args[1], StorageRpc.Option.IF_METAGENERATION_MATCH))
+                        : method.invoke(delegate, args);
+            case "compose":
+                return compose(args);
+            case "openRewrite":
+                return rewrite(method, args);
+            case "createBatch":
+                return createBatch();
+            default:
+                synchronized (delegate)
+                {
+                    return method.invoke(delegate, args);
+                }
+            }
+        }
+        catch (InvocationTargetException e)
+        {
+            throw e.getCause();
+        }
+    }
+
+    private void intercept(String method, String name)
+    {
+        for (Interceptor interceptor : interceptors)
+        {
+            interceptor.before(method, name);
+        }
+    }
+
+    private static String getObjectName(Object[] args)
+    {
+        if (args == null || args.length == 0)
+        {
+            return null;
+        }
+        if (args[0] instanceof StorageObject)
+        {
+            return ((StorageObject) args[0]).getName();
+        }
+        if (args[0] instanceof StorageRpc.RewriteRequest)
+        {
+            return ((StorageRpc.RewriteRequest) args[0]).target.getName();
+        }
+        if (args.length > 1 && args[1] instanceof StorageObject)
+        {
+            // compose
+            return ((StorageObject) args[1]).getName();
+        }
+        if (args[0] instanceof String && args.length == 6)
+        {
+            // write, the upload id is the full name of the object
+            String uploadId = (String) args[0];
+            return uploadId.substring(uploadId.indexOf('/') + 1);
+        }
+        return null;
+    }
+
+    private static Long option(Object options, StorageRpc.Option option)
+    {
+        return options == null ? null : (Long) ((Map<?, ?>) options).get(option);
+    }
+
+    private Bucket getBucket(Bucket bucket)
+    {
+        return missingBuckets.contains(bucket.getName()) ? null : new Bucket().setName(bucket.getName());
+    }
+
+    /**
+     * Gets the current metadata of an object
+     */
+    private StorageObject stored(String bucketName, String objectName)
+    {
+        synchronized (delegate)
+        {
+            return delegate.get(new StorageObject().setBucket(bucketName).setName(objectName), Collections.emptyMap());
+        }
+    }
+
+    private StorageObject get(StorageObject object)
+    {
+        StorageObject stored = stored(object.getBucket(), object.getName());
+        if (stored == null || (object.getGeneration() != null && !object.getGeneration().equals(stored.getGeneration())))
+        {
+            return null;
+        }
+        return stored.clone();
+    }
+
+    private void checkReadable(StorageObject object)
+    {
+        if (get(object) == null)
+        {
+            throw new StorageException(NOT_FOUND, "Not found: " + object.getBucket() + "/" + object.getName());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Tuple<String, Iterable<StorageObject>> list(String bucketName, Method method, Object[] args) throws Exception
+    {
+        Tuple<String, Iterable<StorageObject>> result;
+        synchronized (delegate)
+        {
+            result = (Tuple<String, Iterable<StorageObject>>) method.invoke(delegate, args);
+        }
+        List<StorageObject> objects = new ArrayList<>();
+        for (StorageObject object : result.y())
+        {
+            // The fake lists the objects of every bucket, directories have no bucket
+            if (object.getBucket() == null || object.getBucket().equals(bucketName))
+            {
+                objects.add(object.clone());
+            }
+        }
+        objects.sort(Comparator.comparing(StorageObject::getName));
+        return Tuple.of(result.x(), objects);
+    }
+
+    private StorageObject create(StorageObject object, byte[] content, Long generationMatch)
+    {
+        synchronized (delegate)
+        {
+            checkGeneration(object, generationMatch);
+            checkCrc32c(object, content);
+            delegate.create(object, new ByteArrayInputStream(content), Collections.emptyMap());
+            return finish(object, content).clone();
+        }
+    }
+
+    private String open(StorageObject object, Long generationMatch)
+    {
+        synchronized (delegate)
+        {
+            checkGeneration(object, generationMatch);
+            String uploadId = object.getBucket() + "/" + object.getName() + "#" + generations.incrementAndGet();
+            uploads.put(uploadId, object.clone());
+            uploadContents.put(uploadId, new byte[0]);
+            return uploadId;
+        }
+    }
+
+    /**
+     * Adds a chunk to a resumable upload, and publishes the object on the last chunk
+     */
+    private void write(Object[] args)
+    {
+        String uploadId = (String) args[0];
+        StorageObject object = uploads.get(uploadId);
+        if (object == null)
+        {
+            throw new StorageException(NOT_FOUND, "Unknown upload " + uploadId);
+        }
+        byte[] chunk = new byte[(Integer) args[4]];
+        System.arraycopy((byte[]) args[1], (Integer) args[2], chunk, 0, chunk.length);
+        if (corruptWrites && chunk.length > 0)
+        {
+            chunk[0] ^= 1;
+        }
+        synchronized (delegate)
+        {
+            byte[] written = uploadContents.get(uploadId);
+            long offset = (Long) args[3];
+            byte[] content = new byte[(int) Math.max(written.length, offset + chunk.length)];
+            System.arraycopy(written, 0, content, 0, written.length);
+            System.arraycopy(chunk, 0, content, (int) offset, chunk.length);
+            uploadContents.put(uploadId, content);
+            if ((Boolean) args[5])
+            {
+                uploads.remove(uploadId);
+                uploadContents.remove(uploadId);
+                checkCrc32c(object, content);
+                delegate.create(object, new ByteArrayInputStream(content), Collections.emptyMap());
+                finish(object, content);
+            }
+        }
+    }
+
+    private StorageObject patch(StorageObject object, Long metagenerationMatch)
+    {
+        synchronized (delegate)
+        {
+            StorageObject stored = stored(object.getBucket(), object.getName());
+            if (stored == null)
+            {
+                throw new StorageException(NOT_FOUND, "Not found: " + object.getName());
+            }
+            if (metagenerationMatch != null && !metagenerationMatch.equals(stored.getMetageneration()))
+            {
+                throw new StorageException(PRECONDITION_FAILED, "Precondition failed: " + object.getName());
+            }
+            if (object.getMetadata() != null)
+            {
+                stored.setMetadata(new HashMap<>(object.getMetadata()));
+            }
+            stored.setMetageneration(stored.getMetageneration() + 1);
+            return stored.clone();
+        }
+    }
+
+    private boolean delete(StorageObject object, Long metagenerationMatch)
+    {
+        synchronized (delegate)
+        {
+            StorageObject stored = stored(object.getBucket(), object.getName());
+            if (stored == null || (object.getGeneration() != null && !object.getGeneration().equals(stored.getGeneration())))
+            {
+                return false;
+            }
+            if (metagenerationMatch != null && !metagenerationMatch.equals(stored.getMetageneration()))
+            {
+                throw new StorageException(PRECONDITION_FAILED, "Precondition failed: " + object.getName());
+            }
+            return delegate.delete(object, Collections.emptyMap());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private StorageObject compose(Object[] args) throws IOException
+    {
+        StorageObject target = (StorageObject) args[1];
+        synchronized (delegate)
+        {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            for (StorageObject source : (Iterable<StorageObject>) args[0])
+            {
+                checkReadable(new StorageObject().setBucket(target.getBucket()).setName(source.getName()).setGeneration(source.getGeneration()));
+                content.write(delegate.load(new StorageObject().setBucket(target.getBucket()).setName(source.getName()), Collections.emptyMap()));
+            }
+            return create(target, content.toByteArray(), option(args[2], StorageRpc.Option.IF_GENERATION_MATCH));
+        }
+    }
+
+    private Object rewrite(Method method, Object[] args) throws Exception
+    {
+        StorageRpc.RewriteRequest request = (StorageRpc.RewriteRequest) args[0];
+        synchronized (delegate)
+        {
+            checkReadable(request.source);
+            StorageRpc.RewriteResponse response = (StorageRpc.RewriteResponse) method.invoke(delegate, args);
+            StorageObject target = stored(request.target.getBucket(), request.target.getName());
+            finish(target, delegate.load(target, Collections.emptyMap()));
+            return response;
+        }
+    }
+
+    /**
+     * Batch running its gets and deletes one by one when it is submitted
+     */
+    private RpcBatch createBatch()
+    {
+        List<Runnable> operations = new ArrayList<>();
+        return (RpcBatch) Proxy.newProxyInstance(RpcBatch.class.getClassLoader(), new Class<?>[] { RpcBatch.class }, (proxy, method, args) ->
+        {
+            switch (method.getName())
+            {
+            case "addDelete":
+                StorageObject object = (StorageObject) args[0];
+                @SuppressWarnings("unchecked")
+                RpcBatch.Callback<Void> callback = (RpcBatch.Callback<Void>) args[1];
+                operations.add(() ->
+                {
+                    try
+                    {
+                        calls.computeIfAbsent("batchDelete", n -> new AtomicInteger()).incrementAndGet();
+                        intercept("batchDelete", object.getName());
+                        if (delete(object, option(args[2], StorageRpc.Option.IF_METAGENERATION_MATCH)))
+                        {
+                            callback.onSuccess(null);
+                        }
+                        else
+                        {
+                            callback.onFailure(error(NOT_FOUND));
+                        }
+                    }
+                    catch (StorageException e)
+                    {
+                        callback.onFailure(error(e.getCode()));
+                    }
+                });
+                return null;
+            case "addGet":
+                StorageObject target = (StorageObject) args[0];
+                @SuppressWarnings("unchecked")
+                RpcBatch.Callback<StorageObject> getCallback = (RpcBatch.Callback<StorageObject>) args[1];
+                operations.add(() ->
+                {
+                    try
+                    {
+                        calls.computeIfAbsent("batchGet", n -> new AtomicInteger()).incrementAndGet();
+                        intercept("batchGet", target.getName());
+                        StorageObject stored = get(target);
+                        if (stored != null)
+                        {
+                            getCallback.onSuccess(stored);
+                        }
+                        else
+                        {
+                            getCallback.onFailure(error(NOT_FOUND));
+                        }
+                    }
+                    catch (StorageException e)
+                    {
+                        getCallback.onFailure(error(e.getCode()));
+                    }
+                });
+                return null;
+            case "submit":
+                operations.forEach(Runnable::run);
+                operations.clear();
+                return null;
+            default:
+                if (method.getDeclaringClass() == Object.class)
+                {
+                    return method.invoke(operations, args);
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private static GoogleJsonError error(int code)
+    {
+        GoogleJsonError error = new GoogleJsonError();
+        error.setCode(code);
+        error.setMessage("Error " + code);
+        return error;
+    }
+
+    private void checkGeneration(StorageObject object, Long generationMatch)
+    {
+        if (generationMatch == null)
+        {
+            return;
+        }
+        StorageObject stored = stored(object.getBucket(), object.getName());
+        long generation = stored == null ? 0 : stored.getGeneration();
+        if (generation != generationMatch)
+        {
+            throw new StorageException(PRECONDITION_FAILED, "Precondition failed: " + object.getName());
+        }
+    }
+
+    /**
+     * Rejects uploads whose CRC32C was sent and doesn't match the bytes, like GCS
+     */
+    private static void checkCrc32c(StorageObject object, byte[] content)
+    {
+        if (object.getCrc32c() != null && !object.getCrc32c().equals(crc32c(content)))
+        {
+            throw new StorageException(400, "The CRC32C of " + object.getName() + " doesn't match");
+        }
+    }
+
+    private StorageObject finish(StorageObject object, byte[] content)
+    {
+        StorageObject stored = stored(object.getBucket(), object.getName());
+        stored.setGeneration(generations.incrementAndGet());
+        stored.setMetageneration(1L);
+        stored.setSize(BigInteger.valueOf(content.length));
+        stored.setCrc32c(crc32c(content));
+        stored.setUpdated(new DateTime(System.currentTimeMillis()));
+        return stored;
+    }
+
+    private static String crc32c(byte[] content)
+    {
+        GCSCrc32c checksum = new GCSCrc32c();
+        checksum.update(content, 0, content.length);
+        return checksum.getValue();
+    }
+
+    private interface Interceptor
+    {
+        void before(String method, String name);
+    }
+
+    private static class Factory implements StorageRpcFactory
+    {
+        private final StorageRpc rpc;
+
+        Factory(StorageRpc rpc)
+        {
+            this.rpc = rpc;
+        }
+
+        @Override
+        public ServiceRpc create(StorageOptions options)
+        {
+            return rpc;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.mintel.gcs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.alfresco.repo.content.ContentContext;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the archiving of deleted content to the deleted content store against an in-memory GCS
+ */
+public class GCSArchiveTest
+{
+    private FakeStorage gcs;
+    private GCSContentStore store;
+    private GCSContentStore deletedContentStore;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        gcs = new FakeStorage();
+        store = new GCSContentStore(gcs.getStorage(), "archive-test", "contentstore");
+        deletedContentStore = new GCSContentStore(gcs.getStorage(), "archive-test-deleted", "contentstore.deleted");
+        store.setArchiveOnDelete(true);
+        store.setDeletedContentStore(deletedContentStore);
+    }
+
+    @After
+    public void tearDown()
+    {
+        store.shutdown();
+        deletedContentStore.shutdown();
+    }
+
+    @Test
+    public void deletedContentIsArchived()
+    {
+        String contentUrl = write("Archived content");
+        assertTrue(store.delete(contentUrl));
+
+        assertFalse(store.exists(contentUrl));
+        assertEquals("Archived content", deletedContentStore.getReader(contentUrl).getContentString());
+    }
+
+    @Test
+    public void contentIsKeptWhenTheCopyFails()
+    {
+        String contentUrl = write("Kept content");
+        gcs.failOn("openRewrite", "contentstore.deleted/", 403);
+
+        assertFalse(store.delete(contentUrl));
+        assertFalse(store.delete(Collections.singletonList(contentUrl)).get(contentUrl));
+
+        assertTrue(store.exists(contentUrl));
+        assertFalse(deletedContentStore.exists(contentUrl));
+    }
+
+    @Test
+    public void deduplicatedContentIsArchivedFromTheSharedObject()
+    {
+        store.setDeduplication(true);
+        String contentUrl = write("Shared content");
+        String otherContentUrl = write("Shared content");
+
+        assertTrue(store.delete(Collections.singletonList(contentUrl)).get(contentUrl));
+
+        // The bytes rather than the empty pointer
+        assertEquals("Shared content", deletedContentStore.getReader(contentUrl).getContentString());
+        assertFalse(store.exists(contentUrl));
+        assertEquals("Shared content", store.getReader(otherContentUrl).getContentString());
+    }
+
+    private String write(String content)
+    {
+        ContentWriter writer = store.getWriter(new ContentContext(null, null));
+        writer.putContent(content);
+        return writer.getContentUrl();
+    }
+}
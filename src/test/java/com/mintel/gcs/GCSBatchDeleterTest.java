@@ -0,0 +1,159 @@
+package com.mintel.gcs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.repo.content.ContentContext;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the batch deletes against an in-memory GCS
+ */
+public class GCSBatchDeleterTest
+{
+    private static final String BUCKET_NAME = "batch-test";
+
+    private FakeStorage gcs;
+    private GCSContentStore store;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        gcs = new FakeStorage();
+        store = new GCSContentStore(gcs.getStorage(), BUCKET_NAME, "contentstore");
+    }
+
+    @After
+    public void tearDown()
+    {
+        store.shutdown();
+    }
+
+    @Test
+    public void deletesInBatches()
+    {
+        List<String> contentUrls = write(GCSBatchDeleter.MAX_BATCH_SIZE * 2 + 10);
+        Map<String, Boolean> results = store.delete(contentUrls);
+
+        assertEquals(contentUrls.size(), results.size());
+        for (String contentUrl : contentUrls)
+        {
+            assertTrue(results.get(contentUrl));
+            assertFalse(store.exists(contentUrl));
+        }
+        assertEquals(3, gcs.getCalls("createBatch"));
+        assertEquals(0, gcs.getCalls("delete"));
+    }
+
+    @Test
+    public void plainContentIsDeletedWithoutReadingItsMetadata()
+    {
+        List<String> contentUrls = write(5);
+        store.getMetadataCache().clear();
+        int gets = gcs.getCalls("get");
+
+        Map<String, Boolean> results = store.delete(contentUrls);
+
+        for (String contentUrl : contentUrls)
+        {
+            assertTrue(results.get(contentUrl));
+        }
+        assertEquals(gets, gcs.getCalls("get"));
+        assertEquals(0, gcs.getCalls("batchGet"));
+    }
+
+    @Test
+    public void missingContentCountsAsDeleted()
+    {
+        String contentUrl = GCSContentStore.createNewUrl();
+        assertTrue(store.delete(Collections.singletonList(contentUrl)).get(contentUrl));
+    }
+
+    @Test
+    public void failedDeletesOnlyFailTheirContentUrl()
+    {
+        List<String> contentUrls = write(5);
+        String failing = contentUrls.get(2);
+        gcs.failOn("batchDelete", store.getPath(failing), 503);
+
+        Map<String, Boolean> results = store.delete(contentUrls);
+
+        for (String contentUrl : contentUrls)
+        {
+            assertEquals(contentUrl, !contentUrl.equals(failing), results.get(contentUrl));
+            assertEquals(contentUrl, contentUrl.equals(failing), store.exists(contentUrl));
+        }
+    }
+
+    @Test
+    public void aFailedMetadataReadOnlyFailsItsContentUrl()
+    {
+        store.setDeduplication(true);
+        List<String> contentUrls = write(5);
+        store.getMetadataCache().clear();
+        String failing = contentUrls.get(2);
+        gcs.failOn("batchGet", store.getPath(failing), 503);
+
+        Map<String, Boolean> results = store.delete(contentUrls);
+
+        for (String contentUrl : contentUrls)
+        {
+            assertEquals(contentUrl, !contentUrl.equals(failing), results.get(contentUrl));
+            assertEquals(contentUrl, contentUrl.equals(failing), store.exists(contentUrl));
+        }
+    }
+
+    @Test
+    public void anInvalidContentUrlOnlyFailsItself()
+    {
+        List<String> contentUrls = write(3);
+        contentUrls.add(1, "not-a-content-url");
+
+        Map<String, Boolean> results = store.delete(contentUrls);
+
+        assertFalse(results.get("not-a-content-url"));
+        for (String contentUrl : contentUrls.subList(2, 4))
+        {
+            assertTrue(results.get(contentUrl));
+            assertFalse(store.exists(contentUrl));
+        }
+        assertTrue(results.get(contentUrls.get(0)));
+    }
+
+    @Test
+    public void failedDeletesCanBeRetried()
+    {
+        List<String> contentUrls = write(3);
+        gcs.failOn("batchDelete", store.getPath(contentUrls.get(0)), 503);
+        assertFalse(store.delete(contentUrls).get(contentUrls.get(0)));
+
+        gcs.reset();
+        Map<String, Boolean> results = store.delete(contentUrls);
+        for (String contentUrl : contentUrls)
+        {
+            assertTrue(results.get(contentUrl));
+            assertFalse(store.exists(contentUrl));
+        }
+    }
+
+    private List<String> write(int count)
+    {
+        List<String> contentUrls = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+        {
+            ContentWriter writer = store.getWriter(new ContentContext(null, null));
+            writer.putContent("Content " + i);
+            contentUrls.add(writer.getContentUrl());
+        }
+        return contentUrls;
+    }
+}
@@ -0,0 +1,191 @@
+package com.mintel.gcs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.cloud.storage.BlobId;
+
+/**
+ * Tests the local disk block cache without relying on Google Cloud Storage
+ */
+public class GCSBlockCacheTest
+{
+    private static final BlobId BLOB_ID = BlobId.of("bucket", "contentstore/a.bin", 1L);
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        directory = Files.createTempDirectory("gcs-block-cache-test").toFile();
+    }
+
+    @After
+    public void tearDown()
+    {
+        File[] files = directory.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void hitAfterMiss() throws IOException
+    {
+        GCSBlockCache cache = new GCSBlockCache(directory, 4, 100);
+        AtomicInteger loads = new AtomicInteger();
+
+        assertEquals(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4 }), cache.get(BLOB_ID, 0, () -> block(loads, 1, 2, 3, 4)));
+        assertEquals(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4 }), cache.get(BLOB_ID, 0, () -> block(loads, 1, 2, 3, 4)));
+
+        assertEquals(1, loads.get());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(4, cache.getSize());
+    }
+
+    @Test
+    public void objectsWithoutGenerationAreNotCached() throws IOException
+    {
+        GCSBlockCache cache = new GCSBlockCache(directory, 4, 100);
+        AtomicInteger loads = new AtomicInteger();
+        BlobId blobId = BlobId.of("bucket", "contentstore/a.bin");
+        cache.get(blobId, 0, () -> block(loads, 1));
+        cache.get(blobId, 0, () -> block(loads, 1));
+
+        assertEquals(2, loads.get());
+        assertEquals(0, cache.getBlockCount());
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() throws IOException
+    {
+        GCSBlockCache cache = new GCSBlockCache(directory, 4, 8);
+        AtomicInteger loads = new AtomicInteger();
+        cache.get(BLOB_ID, 0, () -> block(loads, 0, 0, 0, 0));
+        cache.get(BLOB_ID, 1, () -> block(loads, 1, 1, 1, 1));
+        cache.get(BLOB_ID, 0, () -> block(loads, 0, 0, 0, 0));
+        cache.get(BLOB_ID, 2, () -> block(loads, 2, 2, 2, 2));
+
+        assertEquals(2, cache.getBlockCount());
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(2, directory.list().length);
+        cache.get(BLOB_ID, 0, () -> block(loads, 0, 0, 0, 0));
+        assertEquals(3, loads.get());
+    }
+
+    @Test
+    public void indexIsRebuiltOnStartup() throws IOException
+    {
+        AtomicInteger loads = new AtomicInteger();
+        new GCSBlockCache(directory, 4, 100).get(BLOB_ID, 0, () -> block(loads, 1, 2, 3, 4));
+
+        GCSBlockCache cache = new GCSBlockCache(directory, 4, 100);
+        assertEquals(1, cache.getBlockCount());
+        assertEquals(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4 }), cache.get(BLOB_ID, 0, () -> block(loads, 1, 2, 3, 4)));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void blocksOfAnotherSizeAreNotReused() throws IOException
+    {
+        AtomicInteger loads = new AtomicInteger();
+        new GCSBlockCache(directory, 4, 100).get(BLOB_ID, 0, () -> block(loads, 1, 2, 3, 4));
+
+        GCSBlockCache cache = new GCSBlockCache(directory, 8, 100);
+        assertEquals(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }), cache.get(BLOB_ID, 0, () -> block(loads, 1, 2, 3, 4, 5, 6, 7, 8)));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void partsOfBlocksAreReadFromTheirFile() throws IOException
+    {
+        GCSBlockCache cache = new GCSBlockCache(directory, 4, 100);
+        AtomicInteger loads = new AtomicInteger();
+        ByteBuffer dst = ByteBuffer.allocate(2);
+        assertEquals(2, cache.read(BLOB_ID, 0, 1, dst, () -> block(loads, 1, 2, 3, 4)));
+        assertEquals(ByteBuffer.wrap(new byte[] { 2, 3 }), (ByteBuffer) dst.flip());
+
+        dst = ByteBuffer.allocate(10);
+        assertEquals(2, cache.read(BLOB_ID, 0, 2, dst, () -> block(loads, 1, 2, 3, 4)));
+        assertEquals(ByteBuffer.wrap(new byte[] { 3, 4 }), (ByteBuffer) dst.flip());
+        assertEquals(-1, cache.read(BLOB_ID, 0, 4, ByteBuffer.allocate(1), () -> block(loads, 1, 2, 3, 4)));
+
+        assertEquals(1, loads.get());
+        assertEquals(2, cache.getHitCount());
+    }
+
+    /**
+     * Readers asking for a block being downloaded wait for that download instead of starting their own
+     */
+    @Test
+    public void concurrentReadsAreCoalesced() throws Exception
+    {
+        GCSBlockCache cache = new GCSBlockCache(directory, 4, 100);
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try
+        {
+            Future<ByteBuffer> first = executor.submit(() -> cache.get(BLOB_ID, 0, () ->
+            {
+                loading.countDown();
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException e)
+                {
+                    throw new IOException(e);
+                }
+                return block(loads, 1, 2, 3, 4);
+            }));
+            assertTrue(loading.await(10, TimeUnit.SECONDS));
+            Future<ByteBuffer> second = executor.submit(() -> cache.get(BLOB_ID, 0, () -> block(loads, 1, 2, 3, 4)));
+            while (cache.getCoalescedCount() == 0)
+            {
+                Thread.sleep(10);
+            }
+            release.countDown();
+
+            assertEquals(first.get(10, TimeUnit.SECONDS), second.get(10, TimeUnit.SECONDS));
+            assertEquals(1, loads.get());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private static ByteBuffer block(AtomicInteger loads, int... bytes)
+    {
+        loads.incrementAndGet();
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
+        for (int b : bytes)
+        {
+            buffer.put((byte) b);
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,98 @@
+package com.mintel.gcs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests the routing of content to the buckets it is spread across
+ */
+public class GCSBucketShardsTest
+{
+    private static final List<String> BUCKETS = Arrays.asList("primary", "shard-1", "shard-2");
+
+    @Test
+    public void spreadsContentDeterministically()
+    {
+        GCSBucketShards shards = new GCSBucketShards(BUCKETS, "contentstore", "");
+        GCSBucketShards otherNode = new GCSBucketShards(BUCKETS, "contentstore", "");
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 3000; i++)
+        {
+            String path = "contentstore/2024/05/17/13/02/" + i + "-guid.bin";
+            String bucketName = shards.getBucketName(path);
+            assertEquals(bucketName, otherNode.getBucketName(path));
+            counts.merge(bucketName, 1, Integer::sum);
+        }
+        for (String bucketName : BUCKETS)
+        {
+            assertTrue(bucketName + ": " + counts.get(bucketName), counts.getOrDefault(bucketName, 0) > 800);
+        }
+    }
+
+    @Test
+    public void keepsOtherContentInThePrimaryBucket()
+    {
+        GCSBucketShards shards = new GCSBucketShards(BUCKETS, "contentstore", "2024/05/17/00/00");
+        for (int i = 0; i < 100; i++)
+        {
+            assertEquals("primary", shards.getBucketName("contentstore/2024/05/16/23/59/" + i + "-guid.bin"));
+            assertEquals("primary", shards.getBucketName("content-hashes/" + i));
+            assertEquals("primary", shards.getBucketName("contentstore/custom/" + i + ".bin"));
+        }
+    }
+
+    @Test
+    public void rejectsTimesInAnotherFormat()
+    {
+        for (String since : Arrays.asList("2024/5/1", "2024-05-01", "2024/05/01", "2024/05/01/00/00/00"))
+        {
+            try
+            {
+                new GCSBucketShards(BUCKETS, "contentstore", since);
+                fail(since + " isn't a yyyy/MM/dd/HH/mm time");
+            }
+            catch (IllegalArgumentException e)
+            {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void addingABucketKeepsExistingContentWhereItIs()
+    {
+        GCSBucketShards shards = new GCSBucketShards(BUCKETS, "", "");
+        Map<String, List<String>> bucketNamesSince = new LinkedHashMap<>();
+        bucketNamesSince.put("", BUCKETS);
+        bucketNamesSince.put("2024/06/01/00/00", Arrays.asList("primary", "shard-1", "shard-2", "shard-3"));
+        GCSBucketShards grown = new GCSBucketShards(bucketNamesSince, "");
+        assertEquals(Arrays.asList("primary", "shard-1", "shard-2", "shard-3"), grown.getBucketNames());
+
+        int added = 0;
+        for (int i = 0; i < 1000; i++)
+        {
+            // Existing content URLs still resolve to the bucket they were written to
+            String existing = "2024/05/31/23/59/" + i + "-guid.bin";
+            assertEquals(shards.getBucketName(existing), grown.getBucketName(existing));
+
+            // New content is spread across the added bucket too
+            String created = "2024/06/01/00/00/" + i + "-guid.bin";
+            String bucketName = grown.getBucketName(created);
+            assertTrue(bucketName.equals("shard-3") || bucketName.equals(shards.getBucketName(created)));
+            if (bucketName.equals("shard-3"))
+            {
+                added++;
+            }
+        }
+        assertTrue("Added: " + added, added > 150);
+    }
+}
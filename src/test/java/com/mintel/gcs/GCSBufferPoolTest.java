@@ -0,0 +1,46 @@
+package com.mintel.gcs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Tests the reuse of the upload buffers
+ */
+public class GCSBufferPoolTest
+{
+    @Test
+    public void reusesReleasedBuffers()
+    {
+        GCSBufferPool pool = new GCSBufferPool(1024, 2);
+        ByteBuffer buffer = pool.acquire();
+        assertTrue(buffer.isDirect());
+        assertEquals(1024, buffer.capacity());
+        buffer.put(new byte[100]);
+        pool.release(buffer);
+        assertEquals(1, pool.size());
+
+        ByteBuffer reused = pool.acquire();
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(1024, reused.remaining());
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void dropsBuffersOverTheLimit()
+    {
+        GCSBufferPool pool = new GCSBufferPool(16, 1);
+        ByteBuffer first = pool.acquire();
+        ByteBuffer second = pool.acquire();
+        assertNotSame(first, second);
+        pool.release(first);
+        pool.release(second);
+        assertEquals(1, pool.size());
+    }
+}
@@ -0,0 +1,81 @@
+package com.mintel.gcs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Random;
+
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.alfresco.util.TempFileProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+
+/**
+ * Tests the parallel composite uploads against an in-memory GCS
+ */
+public class GCSCompositeUploaderTest
+{
+    private static final String BUCKET_NAME = "composite-test";
+
+    private FakeStorage gcs;
+    private GCSCompositeUploader uploader;
+    private File file;
+    private byte[] content;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        gcs = new FakeStorage();
+        uploader = new GCSCompositeUploader(gcs.getStorage(), 4, 4);
+        content = new byte[10000];
+        new Random(42).nextBytes(content);
+        file = TempFileProvider.createTempFile("composite-test", ".bin");
+        Files.write(file.toPath(), content);
+    }
+
+    @After
+    public void tearDown()
+    {
+        uploader.shutdown();
+        file.delete();
+    }
+
+    @Test
+    public void composesThePartsAndDeletesThem()
+    {
+        uploader.upload(file, BlobInfo.newBuilder(BlobId.of(BUCKET_NAME, "target")).build());
+
+        assertArrayEquals(content, gcs.getStorage().readAllBytes(BUCKET_NAME, "target"));
+        assertEquals(Collections.singletonList("target"), gcs.list(BUCKET_NAME));
+    }
+
+    @Test
+    public void everyPartIsDeletedWhenOneFails() throws Exception
+    {
+        // The other parts are still being written when the first one fails
+        gcs.failOnce("open", GCSCompositeUploader.PART_PREFIX, 403);
+        gcs.delayOn("write", GCSCompositeUploader.PART_PREFIX, 300);
+        try
+        {
+            uploader.upload(file, BlobInfo.newBuilder(BlobId.of(BUCKET_NAME, "target")).build());
+            fail("A part failed");
+        }
+        catch (ContentIOException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().contains("Could not upload part of target"));
+        }
+        assertEquals(Collections.emptyList(), gcs.list(BUCKET_NAME));
+        // No part is created after the cleanup
+        Thread.sleep(500);
+        assertEquals(Collections.emptyList(), gcs.list(BUCKET_NAME));
+    }
+}
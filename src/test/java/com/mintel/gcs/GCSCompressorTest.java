@@ -0,0 +1,78 @@
+package com.mintel.gcs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Tests the compression of uploaded content without relying on Google Cloud Storage
+ */
+public class GCSCompressorTest
+{
+    private static final GCSCompressor COMPRESSOR = new GCSCompressor("text/*, application/json", 100, 0.9);
+
+    @Test
+    public void compressibleMimetypes()
+    {
+        assertTrue(COMPRESSOR.isCompressible("text/plain", 1000));
+        assertTrue(COMPRESSOR.isCompressible("text/html; charset=UTF-8", 1000));
+        assertTrue(COMPRESSOR.isCompressible("Application/JSON", 1000));
+        assertFalse(COMPRESSOR.isCompressible("application/json-patch", 1000));
+        assertFalse(COMPRESSOR.isCompressible("image/png", 1000));
+        assertFalse(COMPRESSOR.isCompressible(null, 1000));
+        assertFalse(COMPRESSOR.isCompressible("text/plain", 99));
+    }
+
+    @Test
+    public void disabled()
+    {
+        GCSCompressor compressor = new GCSCompressor("", 0, 0.9);
+        assertFalse(compressor.isEnabled());
+        assertFalse(compressor.isCompressible("text/plain", 1000));
+    }
+
+    @Test
+    public void roundTrip() throws IOException
+    {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+        {
+            text.append("<row id=\"").append(i).append("\">repeated content</row>\n");
+        }
+        byte[] content = text.toString().getBytes(StandardCharsets.UTF_8);
+
+        byte[] compressed = COMPRESSOR.compress(content);
+        assertNotNull(compressed);
+        assertTrue(compressed.length < content.length / 4);
+        try (InputStream is = GCSCompressor.decompress(GCSCompressor.GZIP, new ByteArrayInputStream(compressed)))
+        {
+            assertArrayEquals(content, ByteStreams.toByteArray(is));
+        }
+    }
+
+    @Test
+    public void incompressibleContentIsKept()
+    {
+        byte[] content = new byte[10000];
+        new Random(42).nextBytes(content);
+        assertNull(COMPRESSOR.compress(content));
+    }
+
+    @Test(expected = IOException.class)
+    public void unsupportedCompression() throws IOException
+    {
+        GCSCompressor.decompress("zstd", new ByteArrayInputStream(new byte[0]));
+    }
+}
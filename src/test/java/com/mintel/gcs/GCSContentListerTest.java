@@ -0,0 +1,186 @@
+package com.mintel.gcs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Bucket;
+
+/**
+ * Tests the sorted listing of the content of a store against an in-memory GCS
+ */
+public class GCSContentListerTest
+{
+    private static final String BUCKET_NAME = "lister-test";
+    private static final String ROOT_DIR = "contentstore";
+
+    private FakeStorage gcs;
+    private GCSContentStore store;
+    private CountingExecutor executor;
+
+    @Before
+    public void setUp()
+    {
+        gcs = new FakeStorage();
+        store = new GCSContentStore(gcs.getStorage(), BUCKET_NAME, ROOT_DIR);
+        executor = new CountingExecutor();
+    }
+
+    @After
+    public void tearDown()
+    {
+        executor.shutdownNow();
+        store.shutdown();
+    }
+
+    @Test
+    public void walksTheDirectoriesDownToTheShardDepth()
+    {
+        List<String> contentUrls = create(BUCKET_NAME, "2024/05/01/10/00/a.bin", "2024/05/01/10/30/b.bin", "2024/05/01/11/00/c.bin",
+                "2024/05/02/09/15/d.bin");
+
+        // One listing per hour
+        assertEquals(contentUrls, list(newLister("", 4, 16)));
+        assertEquals(3, executor.submitted.get());
+
+        // One listing per month
+        executor.submitted.set(0);
+        assertEquals(contentUrls, list(newLister("", 2, 16)));
+        assertEquals(1, executor.submitted.get());
+
+        // One listing per minute, under a prefix
+        executor.submitted.set(0);
+        assertEquals(contentUrls.subList(0, 3), list(newLister("2024/05/01/", 5, 16)));
+        assertEquals(3, executor.submitted.get());
+    }
+
+    @Test
+    public void listsInOrderAcrossDirectoriesAndBuckets()
+    {
+        List<String> contentUrls = new ArrayList<>();
+        contentUrls.addAll(create("lister-b", "2024/05/01/10/00/b.bin", "2024/12/31/23/59/z.bin"));
+        contentUrls.addAll(create(BUCKET_NAME, "2024/05/01/10/00/c.bin", "2024/05/01/10/00/a.bin", "2024/05/01/9/00/y.bin", "2023/01/01/00/00/e.bin"));
+        // Outside of the directory layout
+        contentUrls.addAll(create(BUCKET_NAME, "2024/05/notes.txt", "readme.txt"));
+        // Outside of the root directory
+        gcs.getStorage().create(BlobInfo.newBuilder(BlobId.of(BUCKET_NAME, GCSCompositeUploader.PART_PREFIX + "part-1")).build(), new byte[1]);
+        Collections.sort(contentUrls);
+
+        List<Bucket> buckets = Arrays.asList(gcs.getStorage().get(BUCKET_NAME), gcs.getStorage().get("lister-b"));
+        assertEquals(contentUrls, list(new GCSContentLister(store, buckets, executor, "", ROOT_DIR, 4, 2, false)));
+    }
+
+    @Test
+    public void listsAtMostPrefetchShardsAhead()
+    {
+        List<String> contentUrls = create(BUCKET_NAME, "2024/05/01/00/00/a.bin", "2024/05/01/01/00/b.bin", "2024/05/01/02/00/c.bin",
+                "2024/05/01/03/00/d.bin", "2024/05/01/04/00/e.bin");
+        try (GCSContentLister lister = newLister("", 4, 2))
+        {
+            assertEquals(contentUrls.get(0), lister.next());
+            // The shard being consumed and the two behind it
+            assertEquals(3, executor.submitted.get());
+            assertEquals(contentUrls.get(1), lister.next());
+            assertEquals(4, executor.submitted.get());
+        }
+
+        executor.submitted.set(0);
+        try (GCSContentLister lister = newLister("", 4, 2))
+        {
+            assertEquals(contentUrls, list(lister));
+            assertEquals(5, executor.submitted.get());
+        }
+    }
+
+    @Test
+    public void skipsEmptyHours()
+    {
+        List<String> contentUrls = create(BUCKET_NAME, "2024/05/01/10/00/a.bin", "2024/05/01/12/00/c.bin");
+        // Hours left with only the placeholders of their directories, as some tools create them
+        gcs.getStorage().create(BlobInfo.newBuilder(BlobId.of(BUCKET_NAME, ROOT_DIR + "/2024/05/01/11/")).build(), new byte[0]);
+        gcs.getStorage().create(BlobInfo.newBuilder(BlobId.of(BUCKET_NAME, ROOT_DIR + "/2024/05/01/13/")).build(), new byte[0]);
+
+        assertEquals(contentUrls, list(newLister("", 4, 1)));
+        assertEquals(contentUrls, list(newLister("", 5, 1)));
+        assertFalse(newLister("2024/05/01/11/", 4, 1).hasNext());
+        assertFalse(newLister("2023/", 4, 1).hasNext());
+    }
+
+    @Test
+    public void listsTheMetadataOfTheContentWhenAskedTo()
+    {
+        create(BUCKET_NAME, "2024/05/01/10/00/a.bin");
+        GCSContentLister withoutMetadata = newLister("", 4, 1);
+        withoutMetadata.next();
+        assertEquals(null, withoutMetadata.getMetadata());
+
+        GCSContentLister withMetadata = new GCSContentLister(store, store.getBuckets(), executor, "", ROOT_DIR, 4, 1, true);
+        String contentUrl = withMetadata.next();
+        assertTrue(withMetadata.getMetadata().exists());
+        assertEquals(store.getReader(contentUrl).getSize(), withMetadata.getMetadata().getSize());
+        assertEquals(store.getMetadata(store.getPath(contentUrl)).getGeneration(), withMetadata.getMetadata().getGeneration());
+    }
+
+    private GCSContentLister newLister(String prefix, int shardDepth, int prefetch)
+    {
+        return new GCSContentLister(store, store.getBuckets(), executor, prefix, ROOT_DIR, shardDepth, prefetch, false);
+    }
+
+    /**
+     * Creates objects at paths relative to the root directory
+     *
+     * @return Their content URLs
+     */
+    private List<String> create(String bucketName, String... paths)
+    {
+        List<String> contentUrls = new ArrayList<>();
+        for (String path : paths)
+        {
+            gcs.getStorage().create(BlobInfo.newBuilder(BlobId.of(bucketName, ROOT_DIR + "/" + path)).build(), path.getBytes());
+            contentUrls.add(store.getContentUrl(ROOT_DIR + "/" + path));
+        }
+        return contentUrls;
+    }
+
+    private static List<String> list(GCSContentLister lister)
+    {
+        List<String> contentUrls = new ArrayList<>();
+        lister.forEachRemaining(contentUrls::add);
+        return contentUrls;
+    }
+
+    /**
+     * Counts the shards submitted for listing
+     */
+    private static class CountingExecutor extends ThreadPoolExecutor
+    {
+        private final AtomicInteger submitted = new AtomicInteger();
+
+        CountingExecutor()
+        {
+            super(2, 2, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        }
+
+        @Override
+        public void execute(Runnable command)
+        {
+            submitted.incrementAndGet();
+            super.execute(command);
+        }
+    }
+}
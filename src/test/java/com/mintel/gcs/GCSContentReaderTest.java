@@ -0,0 +1,203 @@
+package com.mintel.gcs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.alfresco.repo.content.ContentContext;
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.cloud.storage.Blob;
+
+/**
+ * Tests the reads of the content reader against an in-memory GCS
+ */
+public class GCSContentReaderTest
+{
+    private static final String BUCKET_NAME = "reader-test";
+
+    private FakeStorage gcs;
+    private GCSContentStore store;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        gcs = new FakeStorage();
+        store = new GCSContentStore(gcs.getStorage(), BUCKET_NAME, "contentstore");
+    }
+
+    @After
+    public void tearDown()
+    {
+        store.shutdown();
+    }
+
+    @Test
+    public void readsContent()
+    {
+        String contentUrl = write("Some content");
+        ContentReader reader = store.getReader(contentUrl);
+        assertTrue(reader.exists());
+        assertEquals(12, reader.getSize());
+        assertEquals("Some content", reader.getContentString());
+    }
+
+    @Test
+    public void plainContentIsReadInASingleRoundTrip()
+    {
+        String contentUrl = write("Some content");
+        store.getMetadataCache().clear();
+        int gets = gcs.getCalls("get");
+
+        assertEquals("Some content", store.getReader(contentUrl).getContentString());
+        assertEquals(gets, gcs.getCalls("get"));
+    }
+
+    @Test
+    public void missingContentIsReportedOnTheFirstRead() throws Exception
+    {
+        ContentReader reader = store.getReader(GCSContentStore.createNewUrl());
+        try (ReadableByteChannel channel = reader.getReadableChannel())
+        {
+            channel.read(ByteBuffer.allocate(16));
+            fail("The content doesn't exist");
+        }
+        catch (ContentIOException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().contains("File doesn't exist"));
+        }
+        assertFalse(reader.exists());
+    }
+
+    @Test
+    public void missingContentIsReportedAsItIsWhenTheMetadataIsNeeded()
+    {
+        store.setSeekableRead(true);
+        ContentReader reader = store.getReader(GCSContentStore.createNewUrl());
+        try
+        {
+            reader.getFileChannel();
+            fail("The content doesn't exist");
+        }
+        catch (ContentIOException e)
+        {
+            // Not wrapped in a generic read failure
+            assertTrue(e.getMessage(), e.getMessage().contains("File doesn't exist"));
+        }
+    }
+
+    @Test
+    public void readsArePinnedToTheGenerationOfTheMetadata()
+    {
+        String contentUrl = write("First version");
+        ContentReader pinned = store.getReader(contentUrl);
+        assertEquals(13, pinned.getSize());
+
+        store.getWriterInternal(null, contentUrl).putContent("Second, longer version");
+
+        try
+        {
+            pinned.getContentString();
+            fail("The generation the size was read from is gone");
+        }
+        catch (ContentIOException e)
+        {
+            // Rather than bytes that don't match the size
+        }
+        assertEquals("Second, longer version", store.getReader(contentUrl).getContentString());
+    }
+
+    @Test
+    public void coalescedReadsOnlyShareTheDownloadOfTheSameGeneration() throws Exception
+    {
+        store.setCoalescedRead(true);
+        String contentUrl = write("First version");
+        gcs.delayOn("read", store.getPath(contentUrl), 500);
+        try (ReadableByteChannel first = store.getReader(contentUrl).getReadableChannel())
+        {
+            // The download of the first version is still running
+            store.getWriterInternal(null, contentUrl).putContent("Second version");
+
+            assertEquals("Second version", store.getReader(contentUrl).getContentString());
+        }
+    }
+
+    @Test
+    public void compressedContentIsDecompressedOnceCompressionIsDisabled()
+    {
+        store.setCompressMimetypes("text/*");
+        String text = StringUtils.repeat("Compressible content\n", 100);
+        ContentWriter writer = store.getWriter(new ContentContext(null, null));
+        writer.setMimetype("text/plain");
+        writer.putContent(text);
+        assertNotNull(store.getMetadata(store.getPath(writer.getContentUrl())).getCompression());
+
+        // A restarted node without compression
+        GCSContentStore restarted = new GCSContentStore(gcs.getStorage(), BUCKET_NAME, "contentstore");
+        restarted.setEncodedContent(true);
+        try
+        {
+            ContentReader reader = restarted.getReader(writer.getContentUrl());
+            assertEquals(text.length(), reader.getSize());
+            assertEquals(text, reader.getContentString());
+        }
+        finally
+        {
+            restarted.shutdown();
+        }
+    }
+
+    @Test
+    public void compressedContentIsCheckedOnceDecompressed()
+    {
+        store.setCompressMimetypes("text/*");
+        store.setReadChecksum(true);
+        String text = StringUtils.repeat("Compressible content\n", 100);
+        ContentWriter writer = store.getWriter(new ContentContext(null, null));
+        writer.setMimetype("text/plain");
+        writer.putContent(text);
+        String path = store.getPath(writer.getContentUrl());
+        GCSCrc32c checksum = new GCSCrc32c();
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        checksum.update(bytes, 0, bytes.length);
+        assertEquals(checksum.getValue(), store.getMetadata(path).getOriginalCrc32c());
+        assertEquals(text, store.getReader(writer.getContentUrl()).getContentString());
+
+        // Bytes that gzip accepts but aren't the ones written
+        Blob blob = gcs.getStorage().get(BUCKET_NAME, path);
+        Map<String, String> metadata = new HashMap<>(blob.getMetadata());
+        metadata.put(GCSMetadataCache.Metadata.CONTENT_ORIGINAL_CRC32C, "AAAAAA==");
+        gcs.getStorage().update(blob.toBuilder().setMetadata(metadata).build());
+        store.getMetadataCache().invalidate(path);
+        try
+        {
+            store.getReader(writer.getContentUrl()).getContentString();
+            fail("The decompressed content doesn't match its checksum");
+        }
+        catch (ContentIOException e)
+        {
+            // Expected
+        }
+    }
+
+    private String write(String content)
+    {
+        ContentWriter writer = store.getWriter(new ContentContext(null, null));
+        writer.putContent(content);
+        return writer.getContentUrl();
+    }
+}
@@ -0,0 +1,158 @@
+package com.mintel.gcs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+
+import org.alfresco.repo.content.ContentContext;
+import org.alfresco.repo.content.filestore.FileContentReader;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the uploads of the content writer against an in-memory GCS
+ */
+public class GCSContentWriterTest
+{
+    private static final String BUCKET_NAME = "writer-test";
+
+    private FakeStorage gcs;
+    private GCSContentStore store;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        gcs = new FakeStorage();
+        store = new GCSContentStore(gcs.getStorage(), BUCKET_NAME, "contentstore");
+    }
+
+    @After
+    public void tearDown()
+    {
+        store.shutdown();
+    }
+
+    @Test
+    public void streamsContentWithoutATemporaryFile()
+    {
+        store.setStreamingUpload(true);
+        GCSContentWriter writer = (GCSContentWriter) store.getWriter(new ContentContext(null, null));
+        writer.putContent("Streamed content");
+
+        assertNull(writer.getTempFile());
+        assertEquals(16, writer.getSize());
+        assertEquals("Streamed content", store.getReader(writer.getContentUrl()).getContentString());
+    }
+
+    @Test
+    public void corruptedStreamingUploadsAreDeleted()
+    {
+        store.setStreamingUpload(true);
+        gcs.setCorruptWrites(true);
+        GCSContentWriter writer = (GCSContentWriter) store.getWriter(new ContentContext(null, null));
+        try
+        {
+            writer.putContent("Streamed content");
+            fail("GCS received other bytes than the ones written");
+        }
+        catch (ContentIOException e)
+        {
+            // Logged as data loss, the transaction is expected to roll back
+        }
+        assertFalse(store.exists(writer.getContentUrl()));
+    }
+
+    @Test
+    public void pendingContentIsReadFromTheLocalCopy() throws Exception
+    {
+        store.setWriteBehind(true);
+        gcs.delayOn("open", "contentstore/", 1000);
+        GCSContentWriter writer = (GCSContentWriter) store.getWriter(new ContentContext(null, null));
+        writer.putContent("Pending content");
+
+        assertTrue(store.exists(writer.getContentUrl()));
+        ContentReader pending = store.getReader(writer.getContentUrl());
+        assertTrue(pending instanceof FileContentReader);
+        assertEquals("Pending content", pending.getContentString());
+
+        waitForUpload(store, writer.getPath());
+        ContentReader uploaded = store.getReader(writer.getContentUrl());
+        assertTrue(uploaded instanceof GCSContentReader);
+        assertEquals("Pending content", uploaded.getContentString());
+    }
+
+    @Test
+    public void failedUploadsAreRecoveredOnStartup() throws Exception
+    {
+        // A bucket of its own, as the spool directory is shared by every store
+        GCSContentStore failing = new GCSContentStore(gcs.getStorage(), "recovery-test", "contentstore");
+        failing.setWriteBehind(true);
+        failing.setWriteBehindMaxAttempts(1);
+        gcs.failOn("open", "contentstore/", 403);
+        GCSContentWriter writer = (GCSContentWriter) failing.getWriter(new ContentContext(null, null));
+        writer.putContent("Recovered content");
+        while (!failing.getWriteBehindQueue().isFailed(writer.getPath()))
+        {
+            Thread.sleep(10);
+        }
+        assertEquals("Recovered content", failing.getReader(writer.getContentUrl()).getContentString());
+        failing.shutdown();
+
+        gcs.reset();
+        GCSContentStore restarted = new GCSContentStore(gcs.getStorage(), "recovery-test", "contentstore");
+        restarted.setWriteBehind(true);
+        restarted.init();
+        waitForUpload(restarted, writer.getPath());
+        restarted.shutdown();
+
+        assertEquals("Recovered content", new String(gcs.getStorage().readAllBytes("recovery-test", writer.getPath()), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void recoveredUploadsAreUploadedLikeFirstAttempts() throws Exception
+    {
+        GCSContentStore failing = new GCSContentStore(gcs.getStorage(), "recovery-composite-test", "contentstore");
+        failing.setWriteBehind(true);
+        failing.setWriteBehindMaxAttempts(1);
+        failing.setCompositeUploadThreshold(16);
+        gcs.failOn("compose", "contentstore/", 403);
+        GCSContentWriter writer = (GCSContentWriter) failing.getWriter(new ContentContext(null, null));
+        writer.putContent("Recovered content in parts");
+        while (!failing.getWriteBehindQueue().isFailed(writer.getPath()))
+        {
+            Thread.sleep(10);
+        }
+        failing.shutdown();
+
+        gcs.reset();
+        int composed = gcs.getCalls("compose");
+        GCSContentStore restarted = new GCSContentStore(gcs.getStorage(), "recovery-composite-test", "contentstore");
+        restarted.setWriteBehind(true);
+        restarted.setCompositeUploadThreshold(16);
+        restarted.init();
+        waitForUpload(restarted, writer.getPath());
+
+        // Uploaded in parts and counted like any other upload
+        assertEquals(composed + 1, gcs.getCalls("compose"));
+        assertEquals(1, restarted.getMetrics().get(GCSMetrics.Operation.UPLOAD).getCount());
+        restarted.shutdown();
+        assertEquals("Recovered content in parts", new String(gcs.getStorage().readAllBytes("recovery-composite-test", writer.getPath()), StandardCharsets.UTF_8));
+    }
+
+    private static void waitForUpload(GCSContentStore store, String path) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (store.getWriteBehindQueue().getPendingFile(path) != null)
+        {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.mintel.gcs;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * Tests the CRC32C checksum against the values GCS uses
+ */
+public class GCSCrc32cTest
+{
+    /**
+     * The CRC32C of "123456789" is 0xE3069283, which GCS encodes as base64 of its big-endian bytes
+     */
+    private static final String CHECK_VALUE = "4waSgw==";
+    private static final byte[] CHECK_INPUT = "123456789".getBytes(StandardCharsets.US_ASCII);
+
+    @Test
+    public void checkValue()
+    {
+        GCSCrc32c checksum = new GCSCrc32c();
+        checksum.update(CHECK_INPUT, 0, CHECK_INPUT.length);
+        assertEquals(CHECK_VALUE, checksum.getValue());
+    }
+
+    @Test
+    public void incrementalBuffers()
+    {
+        GCSCrc32c checksum = new GCSCrc32c();
+        checksum.update(ByteBuffer.wrap(CHECK_INPUT, 0, 4));
+        ByteBuffer direct = ByteBuffer.allocateDirect(5);
+        direct.put(CHECK_INPUT, 4, 5);
+        direct.flip();
+        checksum.update(direct);
+        assertEquals(0, direct.remaining());
+        assertEquals(CHECK_VALUE, checksum.getValue());
+    }
+
+    @Test
+    public void empty()
+    {
+        assertEquals("AAAAAA==", new GCSCrc32c().getValue());
+    }
+}
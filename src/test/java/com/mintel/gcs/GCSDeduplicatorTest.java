@@ -0,0 +1,148 @@
+package com.mintel.gcs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.alfresco.repo.content.ContentContext;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.common.hash.Hashing;
+
+/**
+ * Tests the reference counting of deduplicated content against an in-memory GCS
+ */
+public class GCSDeduplicatorTest
+{
+    private static final String BUCKET_NAME = "dedup-test";
+    private static final String CONTENT = "Shared content";
+
+    private FakeStorage gcs;
+    private GCSContentStore store;
+    private BlobId sharedObject;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        gcs = new FakeStorage();
+        store = new GCSContentStore(gcs.getStorage(), BUCKET_NAME, "contentstore");
+        store.setDeduplication(true);
+        sharedObject = BlobId.of(BUCKET_NAME, GCSDeduplicator.getContentPath(Hashing.sha256().hashString(CONTENT, StandardCharsets.UTF_8).toString()));
+    }
+
+    @After
+    public void tearDown()
+    {
+        store.shutdown();
+    }
+
+    @Test
+    public void identicalContentIsStoredOnce()
+    {
+        String contentUrl = write();
+        assertEquals(1, getReferences());
+        String otherContentUrl = write();
+        assertEquals(2, getReferences());
+
+        assertEquals(CONTENT, store.getReader(contentUrl).getContentString());
+        assertEquals(CONTENT, store.getReader(otherContentUrl).getContentString());
+        // The pointers are empty
+        assertEquals(0L, (long) gcs.getStorage().get(BlobId.of(BUCKET_NAME, store.getPath(contentUrl))).getSize());
+    }
+
+    @Test
+    public void theSharedObjectIsDeletedWithItsLastReference()
+    {
+        String contentUrl = write();
+        String otherContentUrl = write();
+
+        assertTrue(store.delete(contentUrl));
+        assertEquals(1, getReferences());
+        assertEquals(CONTENT, store.getReader(otherContentUrl).getContentString());
+
+        assertTrue(store.delete(otherContentUrl));
+        assertNull(gcs.getStorage().get(sharedObject));
+        // Deleting it again doesn't release anything
+        assertTrue(store.delete(otherContentUrl));
+    }
+
+    @Test
+    public void concurrentReferencesAreAllCounted()
+    {
+        write();
+        // Another writer of the same bytes counts its reference between the read and the update of the count
+        gcs.beforeOnce("patch", GCSDeduplicator.CONTENT_PREFIX, this::write);
+        write();
+
+        assertEquals(3, getReferences());
+    }
+
+    @Test
+    public void theLastReferenceIsKeptWhenAnotherWriterRefersToItMeanwhile()
+    {
+        String contentUrl = write();
+        String[] otherContentUrl = new String[1];
+        // Another writer of the same bytes counts its reference between the read of the count and the deletion
+        gcs.beforeOnce("delete", GCSDeduplicator.CONTENT_PREFIX, () -> otherContentUrl[0] = write());
+
+        assertTrue(store.delete(contentUrl));
+        assertEquals(1, getReferences());
+        assertEquals(CONTENT, store.getReader(otherContentUrl[0]).getContentString());
+    }
+
+    @Test
+    public void deduplicatedContentIsReadAndReleasedOnceDisabled()
+    {
+        String contentUrl = write();
+        String otherContentUrl = write();
+        store.setDeduplication(false);
+        store.setEncodedContent(true);
+
+        assertEquals(CONTENT, store.getReader(contentUrl).getContentString());
+        assertEquals(CONTENT.length(), store.getReader(contentUrl).getSize());
+        assertTrue(store.delete(contentUrl));
+        assertEquals(1, getReferences());
+        assertTrue(store.delete(Collections.singletonList(otherContentUrl)).get(otherContentUrl));
+        assertNull(gcs.getStorage().get(sharedObject));
+    }
+
+    @Test
+    public void deletesInBatchesReadTheMetadataInABatch()
+    {
+        String contentUrl = write();
+        String otherContentUrl = write();
+        store.getMetadataCache().clear();
+
+        int gets = gcs.getCalls("get");
+        Map<String, Boolean> results = store.delete(Arrays.asList(contentUrl, otherContentUrl));
+        assertTrue(results.get(contentUrl));
+        assertTrue(results.get(otherContentUrl));
+        assertEquals(2, gcs.getCalls("batchGet"));
+        // Only the shared object is read on its own, to release its references
+        assertEquals(2, gcs.getCalls("get") - gets);
+        assertNull(gcs.getStorage().get(sharedObject));
+    }
+
+    private String write()
+    {
+        ContentWriter writer = store.getWriter(new ContentContext(null, null));
+        writer.putContent(CONTENT);
+        return writer.getContentUrl();
+    }
+
+    private long getReferences()
+    {
+        Blob blob = gcs.getStorage().get(sharedObject);
+        return Long.parseLong(blob.getMetadata().get(GCSDeduplicator.REFERENCES));
+    }
+}
@@ -0,0 +1,77 @@
+package com.mintel.gcs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.alfresco.repo.content.ContentContext;
+import org.alfresco.repo.content.UnsupportedContentUrlException;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that existence checks are answered without a reader and from the metadata cache, against an in-memory GCS
+ */
+public class GCSExistsTest
+{
+    private static final String BUCKET_NAME = "exists-test";
+
+    private FakeStorage gcs;
+    private GCSContentStore store;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        gcs = new FakeStorage();
+        store = new GCSContentStore(gcs.getStorage(), BUCKET_NAME, "contentstore");
+    }
+
+    @After
+    public void tearDown()
+    {
+        store.shutdown();
+    }
+
+    @Test
+    public void unsupportedContentUrlsMakeNoCall()
+    {
+        int calls = gcs.getCalls();
+        assertFalse(store.isContentUrlSupported(null));
+        assertFalse(store.isContentUrlSupported("no-protocol"));
+        assertFalse(store.isContentUrlSupported("store://"));
+        try
+        {
+            store.exists("no-protocol");
+            fail("The content URL has no protocol");
+        }
+        catch (UnsupportedContentUrlException e)
+        {
+            // Expected
+        }
+        assertEquals(calls, gcs.getCalls());
+    }
+
+    @Test
+    public void cachedExistenceMakesNoSecondCall()
+    {
+        ContentWriter writer = store.getWriter(new ContentContext(null, null));
+        writer.putContent("Some content");
+        String missing = GCSContentStore.createNewUrl();
+        store.getMetadataCache().clear();
+
+        int calls = gcs.getCalls();
+        int gets = gcs.getCalls("get");
+        assertTrue(store.exists(writer.getContentUrl()));
+        assertFalse(store.exists(missing));
+        // A metadata read each, without opening the objects
+        assertEquals(2, gcs.getCalls("get") - gets);
+        assertEquals(2, gcs.getCalls() - calls);
+
+        assertTrue(store.exists(writer.getContentUrl()));
+        assertFalse(store.exists(missing));
+        assertEquals(2, gcs.getCalls() - calls);
+    }
+}
@@ -0,0 +1,189 @@
+package com.mintel.gcs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+import com.google.cloud.storage.BlobId;
+import com.mintel.gcs.GCSMetadataCache.Metadata;
+
+/**
+ * Tests the metadata cache without relying on Google Cloud Storage
+ */
+public class GCSMetadataCacheTest
+{
+    private static final Metadata METADATA = new Metadata(true, 42L, 1000L, 7L);
+
+    @Test
+    public void hitAfterMiss()
+    {
+        GCSMetadataCache cache = new GCSMetadataCache(10, 60);
+        AtomicInteger loads = new AtomicInteger();
+        Function<String, Metadata> loader = path ->
+        {
+            loads.incrementAndGet();
+            return METADATA;
+        };
+
+        assertSame(METADATA, cache.get("a", loader));
+        assertSame(METADATA, cache.get("a", loader));
+
+        assertEquals(1, loads.get());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void missingObjectsAreCached()
+    {
+        GCSMetadataCache cache = new GCSMetadataCache(10, 60);
+        cache.get("missing", path -> Metadata.NOT_FOUND);
+
+        assertFalse(cache.getIfPresent("missing").exists());
+    }
+
+    @Test
+    public void missingObjectsAreCachedForTheirOwnTime()
+    {
+        GCSMetadataCache cache = new GCSMetadataCache(10, 60, 0);
+        AtomicInteger loads = new AtomicInteger();
+        Function<String, Metadata> loader = path ->
+        {
+            loads.incrementAndGet();
+            return Metadata.NOT_FOUND;
+        };
+        cache.get("missing", loader);
+        cache.get("missing", loader);
+        cache.get("a", path -> METADATA);
+
+        // Content another node writes at that path is found on the next lookup
+        assertEquals(2, loads.get());
+        assertNull(cache.getIfPresent("missing"));
+        assertSame(METADATA, cache.getIfPresent("a"));
+    }
+
+    @Test
+    public void hitsAndMissesAreCounted()
+    {
+        GCSMetadataCache cache = new GCSMetadataCache(10, 60);
+        cache.get("a", path -> METADATA);
+        cache.get("a", path -> METADATA);
+        cache.getIfPresent("a");
+        cache.getIfPresent("b");
+
+        assertEquals(2, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void invalidate()
+    {
+        GCSMetadataCache cache = new GCSMetadataCache(10, 60);
+        cache.get("a", path -> METADATA);
+        cache.invalidate("a");
+
+        assertNull(cache.getIfPresent("a"));
+    }
+
+    /**
+     * Metadata loaded while the object was being written mustn't be cached, as it may be out of date already
+     */
+    @Test
+    public void invalidateWhileLoading()
+    {
+        GCSMetadataCache cache = new GCSMetadataCache(10, 60);
+        cache.get("a", path ->
+        {
+            cache.invalidate("a");
+            return Metadata.NOT_FOUND;
+        });
+
+        assertNull(cache.getIfPresent("a"));
+    }
+
+    /**
+     * Writes of other objects don't keep the metadata being loaded out of the cache
+     */
+    @Test
+    public void invalidateAnotherPathWhileLoading()
+    {
+        GCSMetadataCache cache = new GCSMetadataCache(10, 60);
+        cache.get("a", path ->
+        {
+            cache.invalidate("b");
+            return METADATA;
+        });
+
+        assertSame(METADATA, cache.getIfPresent("a"));
+    }
+
+    /**
+     * A load that started before the invalidation isn't cached even when another load of the path started after it
+     */
+    @Test
+    public void invalidateWhileConcurrentLoads()
+    {
+        GCSMetadataCache cache = new GCSMetadataCache(10, 60);
+        Metadata newer = new Metadata(true, 43L, 2000L, 8L);
+        Metadata loaded = cache.get("a", path ->
+        {
+            cache.invalidate("a");
+            // Loads the metadata of the new generation
+            assertSame(newer, cache.get("a", p -> newer));
+            return METADATA;
+        });
+
+        assertSame(METADATA, loaded);
+        assertSame(newer, cache.getIfPresent("a"));
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted()
+    {
+        GCSMetadataCache cache = new GCSMetadataCache(2, 60);
+        cache.get("a", path -> METADATA);
+        cache.get("b", path -> METADATA);
+        cache.get("a", path -> METADATA);
+        cache.get("c", path -> METADATA);
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertNull(cache.getIfPresent("b"));
+    }
+
+    @Test
+    public void disabled()
+    {
+        GCSMetadataCache cache = new GCSMetadataCache(10, 0);
+        AtomicInteger loads = new AtomicInteger();
+        Function<String, Metadata> loader = path ->
+        {
+            loads.incrementAndGet();
+            return METADATA;
+        };
+        cache.get("a", loader);
+        cache.get("a", loader);
+
+        assertEquals(2, loads.get());
+        assertNull(cache.getIfPresent("a"));
+    }
+
+    @Test
+    public void contentBlobId()
+    {
+        BlobId blobId = METADATA.getContentBlobId("bucket", "a");
+        assertEquals("a", blobId.getName());
+        assertEquals(Long.valueOf(7L), blobId.getGeneration());
+
+        Metadata pointer = new Metadata(true, 42L, 1000L, 7L, "content-hashes/abc", 3L, null, null);
+        blobId = pointer.getContentBlobId("bucket", "a");
+        assertEquals("content-hashes/abc", blobId.getName());
+        assertEquals(Long.valueOf(3L), blobId.getGeneration());
+    }
+}
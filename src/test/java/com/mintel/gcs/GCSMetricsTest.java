@@ -0,0 +1,160 @@
+package com.mintel.gcs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.alfresco.repo.content.ContentContext;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.cloud.storage.StorageException;
+
+/**
+ * Tests the statistics of the GCS calls and their publication over JMX, against an in-memory GCS
+ */
+public class GCSMetricsTest
+{
+    private static final String BUCKET_NAME = "metrics-test";
+    private static final String ROOT_DIR = "contentstore";
+
+    private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    private FakeStorage gcs;
+    private GCSContentStore store;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        gcs = new FakeStorage();
+        store = new GCSContentStore(gcs.getStorage(), BUCKET_NAME, ROOT_DIR);
+    }
+
+    @After
+    public void tearDown()
+    {
+        store.shutdown();
+    }
+
+    @Test
+    public void latenciesAreCountedInCumulativeBuckets()
+    {
+        GCSOperationStats stats = new GCSOperationStats();
+        finish(stats, 0, -1);
+        finish(stats, 3, -1);
+        finish(stats, 250, -1);
+        finish(stats, 120000, -1);
+
+        Map<String, Long> histogram = stats.getLatencyHistogram();
+        assertEquals(Long.valueOf(1), histogram.get("1"));
+        assertEquals(Long.valueOf(1), histogram.get("2"));
+        assertEquals(Long.valueOf(2), histogram.get("5"));
+        // Upper bounds are inclusive
+        assertEquals(Long.valueOf(3), histogram.get("250"));
+        assertEquals(Long.valueOf(3), histogram.get("60000"));
+        assertEquals(Long.valueOf(4), histogram.get("+Inf"));
+        assertEquals(4, stats.getCount());
+        assertEquals(120000.0, stats.getMaxTimeMillis(), 0.001);
+    }
+
+    @Test
+    public void errorsAreCountedByStatus()
+    {
+        GCSOperationStats stats = new GCSOperationStats();
+        finish(stats, 1, 503);
+        finish(stats, 1, 503);
+        finish(stats, 1, 0);
+        finish(stats, 1, -1);
+
+        assertEquals(3, stats.getErrorCount());
+        assertEquals(Long.valueOf(2), stats.getErrorCountsByStatus().get("503"));
+        assertEquals(Long.valueOf(1), stats.getErrorCountsByStatus().get("0"));
+        assertEquals(4, stats.getCount());
+    }
+
+    @Test
+    public void callsInProgressAreCountedOnce()
+    {
+        GCSMetrics metrics = new GCSMetrics(BUCKET_NAME, "in-flight");
+        GCSOperationStats stats = metrics.get(GCSMetrics.Operation.UPLOAD);
+        GCSMetrics.Timer timer = metrics.start(GCSMetrics.Operation.UPLOAD);
+        assertEquals(1, stats.getInFlight());
+
+        timer.success(100);
+        // Only the first outcome is recorded
+        timer.failure(new StorageException(503, "Too late"));
+        assertEquals(0, stats.getInFlight());
+        assertEquals(1, stats.getCount());
+        assertEquals(0, stats.getErrorCount());
+        assertEquals(100, stats.getBytes());
+    }
+
+    @Test
+    public void storeCallsArePublishedOverJmx() throws Exception
+    {
+        ContentWriter writer = store.getWriter(new ContentContext(null, null));
+        writer.putContent("Some content");
+        assertEquals("Some content", store.getReader(writer.getContentUrl()).getContentString());
+        assertEquals(12, getStats("openRead").getBytes());
+        assertEquals(0, getStats("openRead").getInFlight());
+        assertTrue(getStats("upload").getCount() > 0);
+
+        // Not retried, so it fails right away
+        String contentUrl = GCSContentStore.createNewUrl();
+        gcs.failOn("get", store.getPath(contentUrl), 403);
+        try
+        {
+            store.exists(contentUrl);
+            fail("The metadata can't be read");
+        }
+        catch (StorageException e)
+        {
+            // Expected
+        }
+        GCSOperationStatsMXBean metadataGet = getStats("metadataGet");
+        assertEquals(Collections.singletonMap("403", 1L), metadataGet.getErrorCountsByStatus());
+        assertEquals(1, metadataGet.getErrorCount());
+        assertEquals(metadataGet.getCount(), metadataGet.getLatencyHistogram().get("+Inf").longValue());
+    }
+
+    @Test
+    public void statisticsAreUnregisteredOnShutdown() throws Exception
+    {
+        ObjectName name = getName("metadataGet");
+        assertTrue(server.isRegistered(name));
+
+        store.shutdown();
+        assertFalse(server.isRegistered(name));
+        for (GCSMetrics.Operation operation : GCSMetrics.Operation.values())
+        {
+            assertFalse(server.isRegistered(getName(operation.getTag())));
+        }
+    }
+
+    private static void finish(GCSOperationStats stats, long millis, int status)
+    {
+        stats.started();
+        stats.finished(TimeUnit.MILLISECONDS.toNanos(millis), 0, status);
+    }
+
+    private GCSOperationStatsMXBean getStats(String operation) throws Exception
+    {
+        return JMX.newMXBeanProxy(server, getName(operation), GCSOperationStatsMXBean.class);
+    }
+
+    private static ObjectName getName(String operation) throws Exception
+    {
+        return new ObjectName("com.mintel.gcs:type=GCSOperation,bucket=" + BUCKET_NAME + ",rootDir=" + ObjectName.quote(ROOT_DIR) + ",operation=" + operation);
+    }
+}
@@ -0,0 +1,94 @@
+package com.mintel.gcs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.alfresco.repo.content.ContentContext;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that prefetching only downloads the content the enabled caches can hold, against an in-memory GCS
+ */
+public class GCSPrefetcherTest
+{
+    private static final String BUCKET_NAME = "prefetch-test";
+
+    private FakeStorage gcs;
+    private GCSContentStore store;
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        gcs = new FakeStorage();
+        store = new GCSContentStore(gcs.getStorage(), BUCKET_NAME, "contentstore");
+        directory = Files.createTempDirectory("gcs-prefetch-test").toFile();
+    }
+
+    @After
+    public void tearDown()
+    {
+        store.shutdown();
+        File[] files = directory.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void largeContentIsSkippedWithOnlyTheSmallObjectCache()
+    {
+        store.setSmallObjectThreshold(100);
+        String small = write("Small content", "text/plain");
+        String large = write(StringUtils.repeat('x', 1000), "application/octet-stream");
+
+        int gets = gcs.getCalls("get");
+        assertEquals(13, store.prefetchPrefix(""));
+        // The large content was left out from its listed size, without a request
+        assertEquals(1, gcs.getCalls("get") - gets);
+        assertNotNull(store.getSmallObjectCache().get(store.getPath(small), store.getMetadata(store.getPath(small)).getGeneration()));
+
+        // Without a listing its metadata is requested, but it still isn't downloaded
+        assertEquals(13, store.prefetch(Arrays.asList(small, large)));
+    }
+
+    @Test
+    public void compressedContentIsSkippedWithOnlyTheBlockCache()
+    {
+        store.setBlockCacheDirectory(directory.getAbsolutePath());
+        store.setBlockCacheMaxSize(1024 * 1024);
+        store.setCompressMimetypes("text/*");
+        String compressed = write(StringUtils.repeat("Compressible content\n", 100), "text/plain");
+        String uncompressed = write(StringUtils.repeat('x', 2000), "application/octet-stream");
+        assertNotNull(store.getMetadata(store.getPath(compressed)).getCompression());
+        assertNull(store.getMetadata(store.getPath(uncompressed)).getCompression());
+
+        int reads = gcs.getCalls("read") + gcs.getCalls("load");
+        assertEquals(2000, store.prefetchPrefix(""));
+        assertEquals(2000, store.prefetch(Arrays.asList(compressed, uncompressed)));
+        // The uncompressed content was only downloaded once, into the block cache
+        assertEquals(1, gcs.getCalls("read") + gcs.getCalls("load") - reads);
+    }
+
+    private String write(String content, String mimetype)
+    {
+        ContentWriter writer = store.getWriter(new ContentContext(null, null));
+        writer.setMimetype(mimetype);
+        writer.putContent(content);
+        return writer.getContentUrl();
+    }
+}
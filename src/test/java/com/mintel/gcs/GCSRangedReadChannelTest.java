@@ -0,0 +1,184 @@
+package com.mintel.gcs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+
+/**
+ * Tests the concurrent ranged reads against an in-memory GCS
+ */
+public class GCSRangedReadChannelTest
+{
+    private static final String BUCKET_NAME = "ranged-test";
+    private static final int RANGE_SIZE = 1024;
+
+    private FakeStorage gcs;
+    private RecordingExecutor executor;
+    private byte[] content;
+    private BlobId blobId;
+
+    @Before
+    public void setUp()
+    {
+        gcs = new FakeStorage();
+        executor = new RecordingExecutor(4);
+        // Ends with a short range
+        content = new byte[10 * RANGE_SIZE + 300];
+        new Random(42).nextBytes(content);
+        Blob blob = gcs.getStorage().create(BlobInfo.newBuilder(BlobId.of(BUCKET_NAME, "object")).build(), content);
+        blobId = blob.getBlobId();
+    }
+
+    @After
+    public void tearDown()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void readsTheRangesInOrderWhateverOrderTheyArriveIn() throws Exception
+    {
+        // The first range arrives after the ones prefetched behind it
+        executor.delayFirst = 300;
+        try (ReadableByteChannel channel = new GCSRangedReadChannel(gcs.getStorage(), blobId, content.length, RANGE_SIZE, 3, executor))
+        {
+            assertArrayEquals(content, readAll(channel, 700));
+        }
+    }
+
+    @Test
+    public void prefetchesRangesConcurrentlyUpToTheLimit() throws Exception
+    {
+        executor.delayFirst = 300;
+        try (ReadableByteChannel channel = new GCSRangedReadChannel(gcs.getStorage(), blobId, content.length, RANGE_SIZE, 3, executor))
+        {
+            assertArrayEquals(content, readAll(channel, 4096));
+        }
+        assertTrue("Running at most: " + executor.maxRunning.get(), executor.maxRunning.get() > 1);
+        assertTrue("Running at most: " + executor.maxRunning.get(), executor.maxRunning.get() <= 3);
+    }
+
+    @Test
+    public void readsTheShortLastRange() throws Exception
+    {
+        try (ReadableByteChannel channel = new GCSRangedReadChannel(gcs.getStorage(), blobId, content.length, RANGE_SIZE, 2, executor))
+        {
+            ByteBuffer buffer = ByteBuffer.allocate(content.length + 100);
+            while (channel.read(buffer) >= 0)
+            {
+                // Each read stops at the end of a range
+            }
+            assertEquals(content.length, buffer.position());
+            assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+        }
+    }
+
+    @Test
+    public void failsWhenTheObjectIsReplacedMidStream() throws Exception
+    {
+        try (ReadableByteChannel channel = new GCSRangedReadChannel(gcs.getStorage(), blobId, content.length, RANGE_SIZE, 1, executor))
+        {
+            ByteBuffer buffer = ByteBuffer.allocate(RANGE_SIZE);
+            assertEquals(RANGE_SIZE, channel.read(buffer));
+
+            gcs.getStorage().create(BlobInfo.newBuilder(BlobId.of(BUCKET_NAME, "object")).build(), new byte[content.length]);
+            buffer.clear();
+            try
+            {
+                channel.read(buffer);
+                fail("The generation being read is gone");
+            }
+            catch (IOException e)
+            {
+                assertTrue(e.getMessage(), e.getMessage().contains("Could not read range"));
+            }
+        }
+    }
+
+    @Test
+    public void failsWhenTheObjectIsShorterThanExpected() throws Exception
+    {
+        try (ReadableByteChannel channel = new GCSRangedReadChannel(gcs.getStorage(), blobId, content.length + RANGE_SIZE, RANGE_SIZE, 2, executor))
+        {
+            readAll(channel, RANGE_SIZE);
+            fail("The object ends before the size given");
+        }
+        catch (IOException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().contains("Could not read range"));
+        }
+    }
+
+    private static byte[] readAll(ReadableByteChannel channel, int bufferSize) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+        while (channel.read(buffer) >= 0)
+        {
+            buffer.flip();
+            out.write(buffer.array(), 0, buffer.limit());
+            buffer.clear();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Counts the ranges downloaded at the same time, and can hold the first one back so the next ones complete before it
+     */
+    private static class RecordingExecutor extends ThreadPoolExecutor
+    {
+        private final AtomicInteger started = new AtomicInteger();
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicInteger maxRunning = new AtomicInteger();
+        private volatile long delayFirst = 0;
+
+        RecordingExecutor(int threads)
+        {
+            super(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable)
+        {
+            // Counted until the range is downloaded, before the reader can see it and request the next one
+            return new FutureTask<>(() ->
+            {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try
+                {
+                    if (started.getAndIncrement() == 0 && delayFirst > 0)
+                    {
+                        Thread.sleep(delayFirst);
+                    }
+                    return callable.call();
+                }
+                finally
+                {
+                    running.decrementAndGet();
+                }
+            });
+        }
+    }
+}
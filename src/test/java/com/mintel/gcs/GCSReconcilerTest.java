@@ -0,0 +1,166 @@
+package com.mintel.gcs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+import org.alfresco.repo.content.ContentContext;
+import org.alfresco.repo.content.ContentStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+
+/**
+ * Tests the reconciliation of the bucket with the content URL table, against an in-memory GCS and an in-memory database
+ */
+public class GCSReconcilerTest
+{
+    private static final String BUCKET_NAME = "reconciler-test";
+    /**
+     * Content URLs created long before the grace period
+     */
+    private static final String OLD_URL = "store://2020/01/01/00/00/";
+
+    private FakeStorage gcs;
+    private GCSContentStore store;
+    private SingleConnectionDataSource dataSource;
+    private JdbcTemplate jdbcTemplate;
+    private File reportDirectory;
+    private GCSReconciler reconciler;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        gcs = new FakeStorage();
+        store = new GCSContentStore(gcs.getStorage(), BUCKET_NAME, "contentstore");
+        // The database only lives as long as its single connection
+        dataSource = new SingleConnectionDataSource("jdbc:h2:mem:reconciler-test", "sa", "", true);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("CREATE TABLE alf_content_url (id BIGINT PRIMARY KEY, content_url VARCHAR(255) NOT NULL)");
+        reportDirectory = Files.createTempDirectory("reconciler-test").toFile();
+
+        reconciler = new GCSReconciler();
+        reconciler.setContentStore(store);
+        reconciler.setDataSource(dataSource);
+        reconciler.setReportDirectory(reportDirectory.getPath());
+    }
+
+    @After
+    public void tearDown()
+    {
+        store.shutdown();
+        dataSource.destroy();
+        File[] reports = reportDirectory.listFiles();
+        if (reports != null)
+        {
+            for (File report : reports)
+            {
+                report.delete();
+            }
+        }
+        reportDirectory.delete();
+    }
+
+    @Test
+    public void reportsOrphanedAndMissingContentUrls() throws Exception
+    {
+        write(OLD_URL + "referenced.bin");
+        insert(1, OLD_URL + "referenced.bin");
+        write(OLD_URL + "orphaned.bin");
+        // Its database transaction may not have committed yet
+        write(null);
+        insert(2, OLD_URL + "missing.bin");
+        insert(3, OLD_URL + "local.bin");
+        ContentStore fileStore = Mockito.mock(ContentStore.class);
+        Mockito.when(fileStore.isContentUrlSupported(Mockito.anyString())).thenReturn(true);
+        Mockito.when(fileStore.exists(OLD_URL + "local.bin")).thenReturn(true);
+        reconciler.setOtherStores(Collections.singletonList(fileStore));
+
+        GCSReconciler.Result result = reconciler.reconcile();
+
+        assertEquals(3, result.getDatabaseContentUrls());
+        assertEquals(3, result.getBucketContentUrls());
+        assertEquals(1, result.getOrphaned());
+        assertEquals(Collections.singletonList(OLD_URL + "orphaned.bin"), read(result.getOrphanedReport()));
+        assertEquals(1, result.getMissing());
+        assertEquals(Collections.singletonList(OLD_URL + "missing.bin"), read(result.getMissingReport()));
+    }
+
+    @Test
+    public void contentWrittenSinceTheListingIsNotMissing() throws Exception
+    {
+        String contentUrl = OLD_URL + "late.bin";
+        insert(1, contentUrl);
+        // Written by another node between the listing and the existence check
+        gcs.beforeOnce("get", store.getPath(contentUrl), () -> write(contentUrl));
+
+        GCSReconciler.Result result = reconciler.reconcile();
+
+        assertEquals(0, result.getBucketContentUrls());
+        assertEquals(0, result.getMissing());
+        assertEquals(Collections.emptyList(), read(result.getMissingReport()));
+    }
+
+    @Test
+    public void readsTheDatabaseInPagesOfItsPrimaryKey() throws Exception
+    {
+        reconciler.setPageSize(3);
+        // Inserted out of order, with gaps, and a last page that is full
+        long[] ids = { 40, 7, 3, 100, 12, 55, 9, 81 };
+        for (int i = 0; i < ids.length; i++)
+        {
+            String contentUrl = OLD_URL + "content-" + i + ".bin";
+            write(contentUrl);
+            insert(ids[i], contentUrl);
+        }
+        // Another kind of content URL, read but not compared
+        insert(60, "invalid");
+
+        GCSReconciler.Result result = reconciler.reconcile();
+
+        assertEquals(ids.length, result.getDatabaseContentUrls());
+        assertEquals(ids.length, result.getBucketContentUrls());
+        assertEquals(0, result.getOrphaned());
+        assertEquals(0, result.getMissing());
+    }
+
+    @Test
+    public void theFilterGrowsPastItsExpectedSize()
+    {
+        GCSReconciler.ContentUrlFilter filter = new GCSReconciler.ContentUrlFilter(1000, 0.01);
+        int contentUrls = 250000;
+        for (int i = 0; i < contentUrls; i++)
+        {
+            filter.put(OLD_URL + i + ".bin");
+        }
+        for (int i = 0; i < contentUrls; i++)
+        {
+            assertTrue(filter.mightContain(OLD_URL + i + ".bin"));
+        }
+        // A single filter sized for the expected content URLs would be far less accurate
+        assertTrue("False positive rate: " + filter.expectedFpp(), filter.expectedFpp() <= 0.01);
+    }
+
+    private void write(String contentUrl)
+    {
+        store.getWriter(new ContentContext(null, contentUrl)).putContent("Content of " + contentUrl);
+    }
+
+    private void insert(long id, String contentUrl)
+    {
+        jdbcTemplate.update("INSERT INTO alf_content_url (id, content_url) VALUES (?, ?)", id, contentUrl);
+    }
+
+    private static List<String> read(File report) throws IOException
+    {
+        return Files.readAllLines(report.toPath());
+    }
+}
@@ -0,0 +1,175 @@
+package com.mintel.gcs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+
+/**
+ * Tests the random access to objects against an in-memory GCS
+ */
+public class GCSSeekableChannelTest
+{
+    private static final String BUCKET_NAME = "seekable-test";
+    private static final int BLOCK_SIZE = 1024;
+
+    private FakeStorage gcs;
+    private byte[] content;
+    private BlobId blobId;
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        gcs = new FakeStorage();
+        content = new byte[4 * BLOCK_SIZE + 100];
+        new Random(42).nextBytes(content);
+        blobId = gcs.getStorage().create(BlobInfo.newBuilder(BlobId.of(BUCKET_NAME, "object")).build(), content).getBlobId();
+        directory = Files.createTempDirectory("gcs-seekable-test").toFile();
+    }
+
+    @After
+    public void tearDown()
+    {
+        File[] files = directory.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void readsFromThePosition() throws Exception
+    {
+        try (FileChannel channel = new GCSSeekableChannel(gcs.getStorage(), blobId, content.length, BLOCK_SIZE, 2))
+        {
+            assertEquals(content.length, channel.size());
+            channel.position(2000);
+            assertRead(2000, 10, channel);
+            assertEquals(2010, channel.position());
+
+            // Reads at an absolute position leave the position alone
+            ByteBuffer buffer = ByteBuffer.allocate(10);
+            assertEquals(10, channel.read(buffer, 100));
+            assertEquals(ByteBuffer.wrap(content, 100, 10), (ByteBuffer) buffer.flip());
+            assertEquals(2010, channel.position());
+        }
+    }
+
+    @Test
+    public void readsAcrossBlockBoundaries() throws Exception
+    {
+        try (FileChannel channel = new GCSSeekableChannel(gcs.getStorage(), blobId, content.length, BLOCK_SIZE, 4))
+        {
+            int reads = gcs.getCalls("read");
+            channel.position(BLOCK_SIZE - 50);
+            assertRead(BLOCK_SIZE - 50, 2 * BLOCK_SIZE, channel);
+            // The block the read starts in, the one it spans and the one it ends in
+            assertEquals(3, gcs.getCalls("read") - reads);
+        }
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedBlock() throws Exception
+    {
+        try (FileChannel channel = new GCSSeekableChannel(gcs.getStorage(), blobId, content.length, BLOCK_SIZE, 2))
+        {
+            int reads = gcs.getCalls("read");
+            read(channel, 0);
+            read(channel, BLOCK_SIZE);
+            read(channel, 0);
+            assertEquals(2, gcs.getCalls("read") - reads);
+
+            // Evicts the second block, the first one was used since
+            read(channel, 2 * BLOCK_SIZE);
+            read(channel, 0);
+            assertEquals(3, gcs.getCalls("read") - reads);
+            read(channel, BLOCK_SIZE);
+            assertEquals(4, gcs.getCalls("read") - reads);
+        }
+    }
+
+    @Test
+    public void readsPastTheEndReturnEndOfStream() throws Exception
+    {
+        try (FileChannel channel = new GCSSeekableChannel(gcs.getStorage(), blobId, content.length, BLOCK_SIZE, 2))
+        {
+            // The short last block
+            channel.position(content.length - 10);
+            ByteBuffer buffer = ByteBuffer.allocate(100);
+            assertEquals(10, channel.read(buffer));
+            assertEquals(ByteBuffer.wrap(content, content.length - 10, 10), (ByteBuffer) buffer.flip());
+            assertEquals(-1, channel.read(ByteBuffer.allocate(100)));
+
+            channel.position(content.length + 100);
+            assertEquals(-1, channel.read(ByteBuffer.allocate(100)));
+            assertEquals(-1, channel.read(ByteBuffer.allocate(100), content.length));
+        }
+    }
+
+    @Test
+    public void closedChannelsCantBeRead() throws Exception
+    {
+        FileChannel channel = new GCSSeekableChannel(gcs.getStorage(), blobId, content.length, BLOCK_SIZE, 2);
+        channel.close();
+        try
+        {
+            channel.read(ByteBuffer.allocate(10));
+            fail("The channel is closed");
+        }
+        catch (ClosedChannelException e)
+        {
+            // Expected
+        }
+    }
+
+    @Test
+    public void blocksAreSharedThroughTheDiskCache() throws Exception
+    {
+        GCSBlockCache blockCache = new GCSBlockCache(directory, BLOCK_SIZE, 100 * BLOCK_SIZE);
+        try (FileChannel channel = new GCSSeekableChannel(gcs.getStorage(), blobId, content.length, blockCache))
+        {
+            assertRead(0, content.length, channel);
+        }
+        int reads = gcs.getCalls("read");
+        try (FileChannel channel = new GCSSeekableChannel(gcs.getStorage(), blobId, content.length, blockCache))
+        {
+            channel.position(BLOCK_SIZE - 50);
+            assertRead(BLOCK_SIZE - 50, 3 * BLOCK_SIZE, channel);
+        }
+        assertEquals(reads, gcs.getCalls("read"));
+    }
+
+    private static void read(FileChannel channel, long position) throws Exception
+    {
+        channel.read(ByteBuffer.allocate(1), position);
+    }
+
+    private void assertRead(int position, int length, FileChannel channel) throws Exception
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0)
+        {
+            // Until the buffer is full
+        }
+        assertEquals(length, buffer.position());
+        assertEquals(ByteBuffer.wrap(Arrays.copyOfRange(content, position, position + length)), (ByteBuffer) buffer.flip());
+    }
+}
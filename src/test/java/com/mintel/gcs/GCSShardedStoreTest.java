@@ -0,0 +1,147 @@
+package com.mintel.gcs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.repo.content.ContentContext;
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests a store spreading its content across two buckets against an in-memory GCS
+ */
+public class GCSShardedStoreTest
+{
+    private static final String BUCKET_NAME = "shards-primary";
+    private static final String SHARD_NAME = "shards-secondary";
+
+    private FakeStorage gcs;
+    private GCSContentStore store;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        gcs = new FakeStorage();
+        store = new GCSContentStore(gcs.getStorage(), BUCKET_NAME, "contentstore");
+        store.setShardBucketNames(SHARD_NAME);
+        store.init();
+    }
+
+    @After
+    public void tearDown()
+    {
+        store.shutdown();
+    }
+
+    @Test
+    public void writesReadsListsAndDeletesAcrossTheBuckets()
+    {
+        Map<String, String> contents = new HashMap<>();
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 40; i++)
+        {
+            String content = "Content " + i;
+            ContentWriter writer = store.getWriter(new ContentContext(null, null));
+            writer.putContent(content);
+            String contentUrl = writer.getContentUrl();
+            contents.put(contentUrl, content);
+
+            // Stored in the bucket it is routed to, and only there
+            String path = store.getPath(contentUrl);
+            String bucketName = store.getShards().getBucketName(path);
+            assertNotNull(gcs.getStorage().get(bucketName, path));
+            assertNull(gcs.getStorage().get(bucketName.equals(BUCKET_NAME) ? SHARD_NAME : BUCKET_NAME, path));
+            counts.merge(bucketName, 1, Integer::sum);
+        }
+        assertTrue("Primary: " + counts.get(BUCKET_NAME), counts.getOrDefault(BUCKET_NAME, 0) > 5);
+        assertTrue("Shard: " + counts.get(SHARD_NAME), counts.getOrDefault(SHARD_NAME, 0) > 5);
+
+        for (Map.Entry<String, String> entry : contents.entrySet())
+        {
+            assertTrue(store.exists(entry.getKey()));
+            assertEquals(entry.getValue(), store.getReader(entry.getKey()).getContentString());
+        }
+
+        List<String> contentUrls = new ArrayList<>(contents.keySet());
+        Collections.sort(contentUrls);
+        List<String> listed = new ArrayList<>();
+        try (GCSContentLister lister = store.getContentUrls())
+        {
+            lister.forEachRemaining(listed::add);
+        }
+        assertEquals(contentUrls, listed);
+
+        // Half of them one by one, the others in a batch
+        for (String contentUrl : contentUrls.subList(0, 20))
+        {
+            assertTrue(store.delete(contentUrl));
+        }
+        Map<String, Boolean> results = store.delete(contentUrls.subList(20, 40));
+        for (String contentUrl : contentUrls)
+        {
+            assertFalse(store.exists(contentUrl));
+            String path = store.getPath(contentUrl);
+            assertNull(gcs.getStorage().get(BUCKET_NAME, path));
+            assertNull(gcs.getStorage().get(SHARD_NAME, path));
+        }
+        for (String contentUrl : contentUrls.subList(20, 40))
+        {
+            assertTrue(results.get(contentUrl));
+        }
+    }
+
+    @Test
+    public void aMissingShardBucketFailsTheStartup() throws Exception
+    {
+        gcs.setMissing("shards-missing");
+        GCSContentStore other = new GCSContentStore(gcs.getStorage(), BUCKET_NAME, "contentstore");
+        try
+        {
+            other.setShardBucketNames(SHARD_NAME + ",shards-missing");
+            other.init();
+            fail("The shard bucket doesn't exist");
+        }
+        catch (ContentIOException e)
+        {
+            // Expected
+        }
+        finally
+        {
+            other.shutdown();
+        }
+    }
+
+    @Test
+    public void anInvalidTimeFailsTheStartup() throws Exception
+    {
+        GCSContentStore other = new GCSContentStore(gcs.getStorage(), BUCKET_NAME, "contentstore");
+        try
+        {
+            other.setShardBucketNames(SHARD_NAME);
+            other.setShardSince("2024-05-01");
+            other.init();
+            fail("The time isn't yyyy/MM/dd/HH/mm");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // Expected
+        }
+        finally
+        {
+            other.shutdown();
+        }
+    }
+}
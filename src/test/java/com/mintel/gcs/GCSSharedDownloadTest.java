@@ -0,0 +1,100 @@
+package com.mintel.gcs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests downloads shared by several readers without relying on Google Cloud Storage
+ */
+public class GCSSharedDownloadTest
+{
+    @Test
+    public void readersShareTheDownload() throws IOException
+    {
+        byte[] content = new byte[1024 * 1024];
+        new Random(42).nextBytes(content);
+        File file = File.createTempFile("gcs-shared-test", ".bin");
+        AtomicInteger opened = new AtomicInteger();
+        AtomicInteger completed = new AtomicInteger();
+        GCSSharedDownload download = new GCSSharedDownload(file, () ->
+        {
+            opened.incrementAndGet();
+            return Channels.newChannel(new ByteArrayInputStream(content));
+        }, d -> completed.incrementAndGet());
+
+        ReadableByteChannel first = download.join();
+        ReadableByteChannel second = download.join();
+        download.run();
+
+        assertEquals(ByteBuffer.wrap(content), ByteBuffer.wrap(readFully(first)));
+        assertEquals(ByteBuffer.wrap(content), ByteBuffer.wrap(readFully(second)));
+        assertEquals(1, opened.get());
+        assertEquals(1, completed.get());
+        assertFalse(file.exists());
+        assertNull(download.join());
+    }
+
+    @Test(expected = IOException.class)
+    public void failuresAreReportedToReaders() throws IOException
+    {
+        File file = File.createTempFile("gcs-shared-test", ".bin");
+        GCSSharedDownload download = new GCSSharedDownload(file, () -> new ReadableByteChannel()
+        {
+            @Override
+            public int read(ByteBuffer dst) throws IOException
+            {
+                throw new IOException("Connection reset");
+            }
+
+            @Override
+            public boolean isOpen()
+            {
+                return true;
+            }
+
+            @Override
+            public void close()
+            {
+                // Nothing to release
+            }
+        }, d -> {});
+        try (ReadableByteChannel reader = download.join())
+        {
+            download.run();
+            readFully(reader);
+        }
+    }
+
+    private static byte[] readFully(ReadableByteChannel channel) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        try
+        {
+            while (channel.read(buffer) >= 0)
+            {
+                buffer.flip();
+                out.write(buffer.array(), 0, buffer.limit());
+                buffer.clear();
+            }
+        }
+        finally
+        {
+            channel.close();
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,72 @@
+package com.mintel.gcs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/**
+ * Tests the small object cache without relying on Google Cloud Storage
+ */
+public class GCSSmallObjectCacheTest
+{
+    private static final byte[] CONTENT = new byte[] { 1, 2, 3, 4 };
+
+    @Test
+    public void hitAfterPut()
+    {
+        GCSSmallObjectCache cache = new GCSSmallObjectCache(100);
+        cache.put("a", 1L, CONTENT);
+
+        assertSame(CONTENT, cache.get("a", 1L));
+        assertSame(CONTENT, cache.get("a", null));
+        assertEquals(4, cache.getSize());
+    }
+
+    @Test
+    public void otherGenerationIsAMiss()
+    {
+        GCSSmallObjectCache cache = new GCSSmallObjectCache(100);
+        cache.put("a", 1L, CONTENT);
+
+        assertNull(cache.get("a", 2L));
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted()
+    {
+        GCSSmallObjectCache cache = new GCSSmallObjectCache(8);
+        cache.put("a", 1L, CONTENT);
+        cache.put("b", 1L, CONTENT);
+        cache.get("a", 1L);
+        cache.put("c", 1L, CONTENT);
+
+        assertEquals(2, cache.getEntryCount());
+        assertEquals(8, cache.getSize());
+        assertEquals(1, cache.getEvictionCount());
+        assertNull(cache.get("b", 1L));
+    }
+
+    @Test
+    public void tooBigIsNotCached()
+    {
+        GCSSmallObjectCache cache = new GCSSmallObjectCache(2);
+        cache.put("a", 1L, CONTENT);
+
+        assertNull(cache.get("a", 1L));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void invalidate()
+    {
+        GCSSmallObjectCache cache = new GCSSmallObjectCache(100);
+        cache.put("a", 1L, CONTENT);
+        cache.invalidate("a");
+
+        assertNull(cache.get("a", 1L));
+        assertEquals(0, cache.getSize());
+    }
+}
@@ -0,0 +1,202 @@
+package com.mintel.gcs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+import org.alfresco.util.GUID;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the background uploads of spooled content
+ */
+public class GCSWriteBehindQueueTest
+{
+    private String bucketName;
+    private GCSWriteBehindQueue queue;
+
+    @Before
+    public void setUp()
+    {
+        // The spool directory is shared, recovery only picks up the content of its own buckets
+        bucketName = "queue-" + GUID.generate();
+    }
+
+    @After
+    public void tearDown()
+    {
+        if (queue != null)
+        {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void contentDeletedWhileUploadingIsUndone() throws Exception
+    {
+        queue = new GCSWriteBehindQueue(1, 1, 1, 0);
+        File file = spool("Deleted content");
+        CountDownLatch uploading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch undone = new CountDownLatch(1);
+        queue.submit(bucketName, "deleted", file, () ->
+        {
+            uploading.countDown();
+            await(release);
+        }, undone::countDown);
+
+        assertTrue(uploading.await(10, TimeUnit.SECONDS));
+        queue.remove("deleted");
+        release.countDown();
+
+        assertTrue(undone.await(10, TimeUnit.SECONDS));
+        waitFor(() -> !file.exists());
+    }
+
+    @Test
+    public void contentDeletedBeforeItsUploadIsSkipped() throws Exception
+    {
+        queue = new GCSWriteBehindQueue(1, 1, 1, 0);
+        CountDownLatch release = new CountDownLatch(1);
+        queue.submit(bucketName, "busy", spool("Busy"), () -> await(release), () -> {});
+        AtomicBoolean uploaded = new AtomicBoolean();
+        File file = spool("Deleted content");
+        queue.submit(bucketName, "deleted", file, () -> uploaded.set(true), () -> {});
+        queue.remove("deleted");
+        release.countDown();
+
+        waitFor(() -> !file.exists());
+        assertFalse(uploaded.get());
+    }
+
+    @Test
+    public void writersUploadThemselvesWhenTheQueueIsFull() throws Exception
+    {
+        queue = new GCSWriteBehindQueue(1, 1, 1, 0);
+        CountDownLatch uploading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        queue.submit(bucketName, "running", spool("Running"), () ->
+        {
+            uploading.countDown();
+            await(release);
+        }, () -> {});
+        assertTrue(uploading.await(10, TimeUnit.SECONDS));
+        queue.submit(bucketName, "queued", spool("Queued"), () -> {}, () -> {});
+
+        AtomicReference<Thread> uploader = new AtomicReference<>();
+        File file = spool("Rejected");
+        queue.submit(bucketName, "rejected", file, () -> uploader.set(Thread.currentThread()), () -> {});
+
+        assertSame(Thread.currentThread(), uploader.get());
+        assertNull(queue.getPendingFile("rejected"));
+        assertFalse(file.exists());
+        release.countDown();
+    }
+
+    @Test
+    public void failedUploadsAreTriedAgain() throws Exception
+    {
+        queue = new GCSWriteBehindQueue(1, 10, 3, 10);
+        AtomicInteger attempts = new AtomicInteger();
+        File file = spool("Flaky");
+        queue.submit(bucketName, "flaky", file, () ->
+        {
+            if (attempts.incrementAndGet() < 3)
+            {
+                throw new IllegalStateException("Injected failure");
+            }
+        }, () -> {});
+        assertEquals(file, queue.getPendingFile("flaky"));
+
+        waitFor(() -> queue.getPendingFile("flaky") == null);
+        assertEquals(3, attempts.get());
+        assertFalse(queue.isFailed("flaky"));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void failedUploadsAreKeptForTheNextStart() throws Exception
+    {
+        queue = new GCSWriteBehindQueue(1, 10, 2, 10);
+        File file = spool("Failing");
+        queue.submit(bucketName, "failing", file, () ->
+        {
+            throw new IllegalStateException("Injected failure");
+        }, () -> {});
+
+        waitFor(() -> queue.isFailed("failing"));
+        // Still served from the local copy
+        assertEquals(file, queue.getPendingFile("failing"));
+        assertTrue(file.exists());
+        queue.shutdown();
+
+        queue = new GCSWriteBehindQueue(1, 10, 2, 10);
+        AtomicReference<String> recovered = new AtomicReference<>();
+        assertEquals(0, queue.recover(Collections.singleton("other-" + bucketName), (path, spooled) -> {}, path -> {}));
+        assertEquals(1, queue.recover(Collections.singleton(bucketName), (path, spooled) ->
+        {
+            assertEquals("Failing", new String(read(spooled), StandardCharsets.UTF_8));
+            recovered.set(path);
+        }, path -> {}));
+
+        waitFor(() -> !file.exists());
+        assertEquals("failing", recovered.get());
+        assertNull(queue.getPendingFile("failing"));
+    }
+
+    private File spool(String content) throws Exception
+    {
+        File file = queue.createSpoolFile("queue-test");
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static byte[] read(File file)
+    {
+        try
+        {
+            return Files.readAllBytes(file.toPath());
+        }
+        catch (Exception e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void await(CountDownLatch latch)
+    {
+        try
+        {
+            latch.await(10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean())
+        {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}